@@ -0,0 +1,125 @@
+package net.flibusta.concurrent;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Cancellation token of a request: cancelled explicitly (client went away) or when request deadline passes.
+ * Token of current request is bound to the thread, long running steps check it and stop cooperatively by
+ * {@link CancellationException}.
+ */
+public class Cancellation {
+    private static final ThreadLocal<Cancellation> current = new ThreadLocal<Cancellation>();
+
+    private static final long POLL_MILLIS = 100;
+
+    private final boolean hasDeadline;
+    private final long deadline; // System.nanoTime() value
+    private volatile boolean cancelled = false;
+
+    public Cancellation() {
+        this(0);
+    }
+
+    /**
+     * @param timeoutMillis time left to request deadline, 0 - no deadline
+     */
+    public Cancellation(long timeoutMillis) {
+        this.hasDeadline = timeoutMillis > 0;
+        this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled || getRemainingMillis() <= 0;
+    }
+
+    /**
+     * @return milliseconds left to the deadline or Long.MAX_VALUE if there is no deadline
+     */
+    public long getRemainingMillis() {
+        if (!hasDeadline) {
+            return Long.MAX_VALUE;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+    }
+
+    /**
+     * @throws CancellationException if cancelled
+     */
+    public void check() {
+        if (isCancelled()) {
+            throw new CancellationException(getRemainingMillis() <= 0 ? "Request deadline exceeded" : "Request cancelled");
+        }
+    }
+
+    /**
+     * @return token bound to the current thread or null
+     */
+    public static Cancellation current() {
+        return current.get();
+    }
+
+    /**
+     * Binds token to the current thread
+     *
+     * @return previously bound token, to be restored by {@link #restore}
+     */
+    public static Cancellation attach(Cancellation cancellation) {
+        Cancellation previous = current.get();
+        current.set(cancellation);
+        return previous;
+    }
+
+    public static void restore(Cancellation previous) {
+        if (previous == null) {
+            current.remove();
+        } else {
+            current.set(previous);
+        }
+    }
+
+    /**
+     * @throws CancellationException if token bound to the current thread is cancelled
+     */
+    public static void checkCurrent() {
+        Cancellation cancellation = current.get();
+        if (cancellation != null) {
+            cancellation.check();
+        }
+    }
+
+    /**
+     * Waits for result of the future no longer than timeout, or until token bound to the current thread is
+     * cancelled. The future itself is not cancelled.
+     *
+     * @throws CancellationException if current token is cancelled before the future is done
+     */
+    public static <T> T await(Future<T> future, long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        Cancellation cancellation = current.get();
+        if (cancellation == null) {
+            return future.get(timeout, unit);
+        }
+        long start = System.nanoTime();
+        long timeoutMillis = unit.toMillis(timeout);
+        while (true) {
+            cancellation.check();
+            long left = timeoutMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (left <= 0) {
+                throw new TimeoutException();
+            }
+            try {
+                return future.get(Math.min(left, POLL_MILLIS), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // check the token again
+            }
+        }
+    }
+}
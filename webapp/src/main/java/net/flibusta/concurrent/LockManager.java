@@ -1,9 +1,16 @@
 package net.flibusta.concurrent;
 
+import java.util.concurrent.TimeUnit;
+
 public interface LockManager {
 
     void lock(String id) throws InterruptedException;
 
+    /**
+     * @return true if lock acquired, false if timeout elapsed before lock acquired
+     */
+    boolean tryLock(String id, long timeout, TimeUnit unit) throws InterruptedException;
+
     void unlock(String id);
 
 }
@@ -0,0 +1,22 @@
+package net.flibusta.concurrent;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Thrown when request can't be accepted because server is overloaded. Client is expected to repeat request
+ * after <code>retryAfterSeconds</code>.
+ */
+public class OverloadException extends RejectedExecutionException {
+    public static final int DEFAULT_RETRY_AFTER_SECONDS = 30;
+
+    private final int retryAfterSeconds;
+
+    public OverloadException(String message, int retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,23 @@
+package net.flibusta.concurrent;
+
+/**
+ * Priority class of scheduled work, from the highest to the lowest
+ */
+public enum Priority {
+    /**
+     * single book requested by user who waits for it
+     */
+    INTERACTIVE,
+    /**
+     * book sent by mail
+     */
+    MAIL,
+    /**
+     * book of mass conversion request
+     */
+    BATCH,
+    /**
+     * conversion nobody requested yet
+     */
+    SPECULATIVE
+}
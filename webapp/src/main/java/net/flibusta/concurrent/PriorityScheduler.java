@@ -0,0 +1,293 @@
+package net.flibusta.concurrent;
+
+import net.flibusta.monitor.LatencyHistogram;
+import net.flibusta.monitor.StatisticsSource;
+import net.flibusta.monitor.TimeStatistics;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs tasks of all {@link Priority} classes in shared pool of threads. Free thread takes the oldest task of the
+ * highest priority class, but waiting task is promoted by one class every <code>agingSeconds</code>, so low
+ * priority work is not starved. Every class has bounded queue and limit of tasks running at once, so i.e. large
+ * batch can't occupy all threads.
+ */
+public class PriorityScheduler implements StatisticsSource {
+    Logger logger = Logger.getLogger(PriorityScheduler.class);
+
+    private int poolSize = 0;
+    private long agingSeconds = 30;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final Map<Priority, ClassQueue> queues = new EnumMap<Priority, ClassQueue>(Priority.class);
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private boolean shutdown = false;
+
+    public PriorityScheduler() {
+        for (Priority priority : Priority.values()) {
+            queues.put(priority, new ClassQueue(priority));
+        }
+    }
+
+    public void init() {
+        int limitedThreads = 0;
+        for (ClassQueue queue : queues.values()) {
+            if (queue.maxRunning != Integer.MAX_VALUE) {
+                limitedThreads += queue.maxRunning;
+            }
+        }
+        int threads = poolSize > 0 ? poolSize : limitedThreads + Runtime.getRuntime().availableProcessors();
+        if (threads <= limitedThreads) {
+            logger.warn("Scheduler pool of " + threads + " threads may be taken by limited classes running "
+                    + limitedThreads + " tasks, interactive tasks would wait for them");
+        }
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "scheduler-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        logger.info("Priority scheduler started with " + threads + " threads");
+    }
+
+    /**
+     * @throws RejectedExecutionException if queue of the class is full
+     */
+    public void execute(Priority priority, Runnable task) {
+        lock.lock();
+        try {
+            if (shutdown) {
+                throw new RejectedExecutionException("Scheduler is shut down");
+            }
+            ClassQueue queue = queues.get(priority);
+            if (queue.tasks.size() >= queue.capacity) {
+                queue.rejectedCount.incrementAndGet();
+                throw new RejectedExecutionException("Server overloaded. Please try late.");
+            }
+            queue.tasks.add(new QueuedTask(task));
+            queue.submittedCount.incrementAndGet();
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @throws RejectedExecutionException if queue of the class is full
+     */
+    public <T> Future<T> submit(Priority priority, Callable<T> task) {
+        FutureTask<T> futureTask = new FutureTask<T>(task);
+        execute(priority, futureTask);
+        return futureTask;
+    }
+
+    private void work() {
+        while (true) {
+            ClassQueue queue;
+            QueuedTask task;
+            lock.lock();
+            try {
+                while ((queue = nextRunnable()) == null) {
+                    if (shutdown) {
+                        return;
+                    }
+                    try {
+                        available.await();
+                    } catch (InterruptedException e) {
+                        // only shutdown stops a worker, stray interrupt must not shrink the pool
+                        logger.warn("Scheduler worker interrupted while idle");
+                    }
+                }
+                task = queue.tasks.removeFirst();
+                queue.running++;
+            } finally {
+                lock.unlock();
+            }
+
+            long start = System.nanoTime();
+            queue.waitTime.record(start - task.queuedTime);
+            try {
+                task.task.run();
+            } catch (Throwable e) {
+                logger.error("Scheduled task failed", e);
+            } finally {
+                Thread.interrupted(); // clear interrupt of cancelled task
+                queue.runTime.record(System.nanoTime() - start);
+                queue.completedCount.incrementAndGet();
+                release(queue);
+            }
+        }
+    }
+
+    /**
+     * @return queue which task should run next or null
+     */
+    private ClassQueue nextRunnable() {
+        long now = System.nanoTime();
+        long agingNanos = TimeUnit.SECONDS.toNanos(agingSeconds);
+        ClassQueue next = null;
+        long nextRank = 0;
+        long nextQueuedTime = 0;
+        for (ClassQueue queue : queues.values()) {
+            if (queue.tasks.isEmpty() || queue.running >= queue.maxRunning) {
+                continue;
+            }
+            long queuedTime = queue.tasks.getFirst().queuedTime;
+            long rank = queue.priority.ordinal();
+            if (agingNanos > 0) {
+                rank -= (now - queuedTime) / agingNanos;
+            }
+            if (next == null || rank < nextRank || (rank == nextRank && queuedTime < nextQueuedTime)) {
+                next = queue;
+                nextRank = rank;
+                nextQueuedTime = queuedTime;
+            }
+        }
+        return next;
+    }
+
+    private void release(ClassQueue queue) {
+        lock.lock();
+        try {
+            queue.running--;
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+            for (ClassQueue queue : queues.values()) {
+                for (QueuedTask task : queue.tasks) {
+                    if (task.task instanceof Future) {
+                        ((Future<?>) task.task).cancel(false);
+                    }
+                }
+                queue.tasks.clear();
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    @Override
+    public void collectStatistics(Map<String, Object> statistics) {
+        for (ClassQueue queue : queues.values()) {
+            String prefix = "scheduler." + queue.priority.name().toLowerCase();
+            lock.lock();
+            try {
+                statistics.put(prefix + ".queue", queue.tasks.size());
+                statistics.put(prefix + ".running", queue.running);
+            } finally {
+                lock.unlock();
+            }
+            statistics.put(prefix + ".submitted", queue.submittedCount.get());
+            statistics.put(prefix + ".rejected", queue.rejectedCount.get());
+            statistics.put(prefix + ".completed", queue.completedCount.get());
+            queue.waitTime.collectStatistics(prefix + ".wait", statistics);
+            queue.runTime.collectStatistics(prefix + ".time", statistics);
+        }
+    }
+
+    private static class QueuedTask {
+        private final Runnable task;
+        private final long queuedTime = System.nanoTime();
+
+        private QueuedTask(Runnable task) {
+            this.task = task;
+        }
+    }
+
+    private static class ClassQueue {
+        private final Priority priority;
+        private final LinkedList<QueuedTask> tasks = new LinkedList<QueuedTask>();
+        private int capacity = 100;
+        private int maxRunning = Integer.MAX_VALUE;
+        private int running = 0;
+
+        private final AtomicLong submittedCount = new AtomicLong();
+        private final AtomicLong rejectedCount = new AtomicLong();
+        private final AtomicLong completedCount = new AtomicLong();
+        private final LatencyHistogram waitTime = new LatencyHistogram();
+        private final TimeStatistics runTime = new TimeStatistics();
+
+        private ClassQueue(Priority priority) {
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * @param poolSize threads shared by all classes, 0 - sum of running limits of the classes plus number of CPUs
+     */
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * @param agingSeconds waiting time which promotes task by one priority class, 0 - no aging
+     */
+    public void setAgingSeconds(long agingSeconds) {
+        this.agingSeconds = agingSeconds;
+    }
+
+    public void setQueueCapacity(Priority priority, int capacity) {
+        queues.get(priority).capacity = capacity;
+    }
+
+    /**
+     * @param maxRunning max tasks of the class running at once
+     */
+    public void setMaxRunning(Priority priority, int maxRunning) {
+        queues.get(priority).maxRunning = maxRunning > 0 ? maxRunning : Integer.MAX_VALUE;
+    }
+
+    public void setInteractiveQueueCapacity(int capacity) {
+        setQueueCapacity(Priority.INTERACTIVE, capacity);
+    }
+
+    public void setMailQueueCapacity(int capacity) {
+        setQueueCapacity(Priority.MAIL, capacity);
+    }
+
+    public void setMailMaxRunning(int maxRunning) {
+        setMaxRunning(Priority.MAIL, maxRunning);
+    }
+
+    public void setBatchQueueCapacity(int capacity) {
+        setQueueCapacity(Priority.BATCH, capacity);
+    }
+
+    public void setBatchMaxRunning(int maxRunning) {
+        setMaxRunning(Priority.BATCH, maxRunning);
+    }
+
+    public void setSpeculativeQueueCapacity(int capacity) {
+        setQueueCapacity(Priority.SPECULATIVE, capacity);
+    }
+
+    public void setSpeculativeMaxRunning(int maxRunning) {
+        setMaxRunning(Priority.SPECULATIVE, maxRunning);
+    }
+}
@@ -0,0 +1,167 @@
+package net.flibusta.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of in-flight tasks. The first caller for a key executes the task in its own thread, concurrent callers
+ * with the same key just wait for the result of that execution.
+ * <p/>
+ * Task is executed with {@link Cancellation} token shared by all callers: it is cancelled only when every caller
+ * is cancelled, so the task is aborted only when nobody waits for its result anymore. Cancelled caller stops
+ * waiting at once.
+ */
+public class SingleFlight<V> {
+
+    private final ConcurrentMap<String, Flight<V>> flights = new ConcurrentHashMap<String, Flight<V>>();
+
+    private final AtomicLong executedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong abandonedCount = new AtomicLong();
+
+    public V execute(String key, Callable<V> task) throws Exception {
+        Cancellation cancellation = Cancellation.current();
+        while (true) {
+            Flight<V> flight = new Flight<V>(task);
+            flight.join(cancellation);
+            Flight<V> existingFlight = flights.putIfAbsent(key, flight);
+            if (existingFlight == null) {
+                return run(key, flight);
+            }
+
+            existingFlight.join(cancellation);
+            coalescedCount.incrementAndGet();
+            try {
+                return await(existingFlight, cancellation);
+            } catch (CancellationException e) {
+                if (cancellation != null && cancellation.isCancelled()) {
+                    throw e;
+                }
+                // flight was abandoned by other callers just before this one joined, start new one
+                Thread.yield();
+            }
+        }
+    }
+
+    private V run(String key, Flight<V> flight) throws Exception {
+        executedCount.incrementAndGet();
+        Cancellation previous = Cancellation.attach(flight.cancellation);
+        try {
+            flight.run();
+        } finally {
+            Cancellation.restore(previous);
+            flights.remove(key, flight);
+        }
+        try {
+            return getResult(flight);
+        } catch (CancellationException e) {
+            abandonedCount.incrementAndGet();
+            throw e;
+        }
+    }
+
+    private V await(Flight<V> flight, Cancellation cancellation) throws Exception {
+        if (cancellation == null) {
+            return getResult(flight);
+        }
+        try {
+            return Cancellation.await(flight, Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    private V getResult(FutureTask<V> flight) throws Exception {
+        try {
+            return flight.get();
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    private Exception unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Exception) {
+            return (Exception) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return e;
+    }
+
+    public boolean isInFlight(String key) {
+        return flights.containsKey(key);
+    }
+
+    public int getInFlightCount() {
+        return flights.size();
+    }
+
+    public long getExecutedCount() {
+        return executedCount.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * @return count of flights aborted because all callers were cancelled
+     */
+    public long getAbandonedCount() {
+        return abandonedCount.get();
+    }
+
+    private static class Flight<V> extends FutureTask<V> {
+        private final List<Cancellation> waiters = new ArrayList<Cancellation>(2);
+        private boolean uncancellable = false;
+
+        private final Cancellation cancellation = new Cancellation() {
+            @Override
+            public boolean isCancelled() {
+                synchronized (waiters) {
+                    if (uncancellable) {
+                        return false;
+                    }
+                    for (Cancellation waiter : waiters) {
+                        if (!waiter.isCancelled()) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            }
+
+            @Override
+            public long getRemainingMillis() {
+                synchronized (waiters) {
+                    long remaining = uncancellable ? Long.MAX_VALUE : 0;
+                    for (Cancellation waiter : waiters) {
+                        remaining = Math.max(remaining, waiter.getRemainingMillis());
+                    }
+                    return remaining;
+                }
+            }
+        };
+
+        private Flight(Callable<V> task) {
+            super(task);
+        }
+
+        /**
+         * @param waiter token of the caller or null if the caller can't be cancelled
+         */
+        private void join(Cancellation waiter) {
+            synchronized (waiters) {
+                if (waiter == null) {
+                    uncancellable = true;
+                } else {
+                    waiters.add(waiter);
+                }
+            }
+        }
+    }
+}
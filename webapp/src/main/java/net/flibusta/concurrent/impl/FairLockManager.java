@@ -0,0 +1,180 @@
+package net.flibusta.concurrent.impl;
+
+import net.flibusta.concurrent.LockManager;
+import net.flibusta.monitor.StatisticsSource;
+import net.flibusta.monitor.TimeStatistics;
+import org.apache.log4j.Logger;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keyed lock with FIFO hand-off between waiters. Every locked id owns a fair semaphore which is shared by lock
+ * holder and waiters and is removed from the lock table when the last of them releases it.
+ * Lock is not reentrant and may be unlocked by any thread.
+ */
+public class FairLockManager implements LockManager, StatisticsSource {
+    Logger logger = Logger.getLogger(FairLockManager.class);
+
+    public static final String KEY_CLASS_URL = "url";
+    public static final String KEY_CLASS_BOOK = "book";
+
+    private final ConcurrentMap<String, LockEntry> locks = new ConcurrentHashMap<String, LockEntry>();
+
+    private final LockStatistics urlStatistics = new LockStatistics();
+    private final LockStatistics bookStatistics = new LockStatistics();
+
+    @Override
+    public void lock(String id) throws InterruptedException {
+        acquire(id, -1);
+    }
+
+    @Override
+    public boolean tryLock(String id, long timeout, TimeUnit unit) throws InterruptedException {
+        return acquire(id, unit.toNanos(timeout));
+    }
+
+    @Override
+    public void unlock(String id) {
+        LockEntry entry = locks.get(id);
+        if (entry == null || !entry.held.compareAndSet(true, false)) {
+            logger.warn("Unlock of not locked id " + id);
+            return;
+        }
+        getStatistics(id).holdTime.record(System.nanoTime() - entry.acquiredTime);
+        entry.semaphore.release();
+        release(id, entry);
+    }
+
+    private boolean acquire(String id, long timeoutNanos) throws InterruptedException {
+        LockStatistics statistics = getStatistics(id);
+        LockEntry entry = retain(id);
+        long start = System.nanoTime();
+        boolean acquired = false;
+        try {
+            acquired = entry.semaphore.tryAcquire(0, TimeUnit.NANOSECONDS); // respects fairness unlike tryAcquire()
+            if (!acquired) {
+                statistics.contendedCount.incrementAndGet();
+                statistics.waiting(1);
+                logger.debug("Waiting lock " + id);
+                try {
+                    if (timeoutNanos < 0) {
+                        entry.semaphore.acquire();
+                        acquired = true;
+                    } else {
+                        acquired = entry.semaphore.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS);
+                    }
+                } finally {
+                    statistics.waiting(-1);
+                }
+                if (acquired) {
+                    logger.debug("Got lock " + id);
+                } else {
+                    statistics.timeoutCount.incrementAndGet();
+                }
+            }
+        } finally {
+            if (acquired) {
+                long now = System.nanoTime();
+                statistics.waitTime.record(now - start);
+                entry.acquiredTime = now;
+                entry.held.set(true);
+            } else {
+                release(id, entry);
+            }
+        }
+        return acquired;
+    }
+
+    /**
+     * Finds or creates lock entry for id and increments its reference count
+     */
+    private LockEntry retain(String id) {
+        while (true) {
+            LockEntry entry = locks.get(id);
+            if (entry == null) {
+                entry = new LockEntry();
+                if (locks.putIfAbsent(id, entry) == null) {
+                    return entry;
+                }
+            } else if (entry.retain()) {
+                return entry;
+            } else {
+                // entry is released by last user but not removed yet
+                locks.remove(id, entry);
+            }
+        }
+    }
+
+    private void release(String id, LockEntry entry) {
+        if (entry.references.decrementAndGet() == 0) {
+            locks.remove(id, entry);
+        }
+    }
+
+    private LockStatistics getStatistics(String id) {
+        return id.indexOf("://") > 0 ? urlStatistics : bookStatistics;
+    }
+
+    public int getLockCount() {
+        return locks.size();
+    }
+
+    @Override
+    public void collectStatistics(Map<String, Object> statistics) {
+        statistics.put("locks.active", locks.size());
+        urlStatistics.collectStatistics("locks." + KEY_CLASS_URL, statistics);
+        bookStatistics.collectStatistics("locks." + KEY_CLASS_BOOK, statistics);
+    }
+
+    private static class LockEntry {
+        private final Semaphore semaphore = new Semaphore(1, true);
+        private final AtomicInteger references = new AtomicInteger(1);
+        private final AtomicBoolean held = new AtomicBoolean(false);
+        private volatile long acquiredTime;
+
+        private boolean retain() {
+            int count;
+            while ((count = references.get()) > 0) {
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class LockStatistics {
+        private final TimeStatistics waitTime = new TimeStatistics();
+        private final TimeStatistics holdTime = new TimeStatistics();
+        private final AtomicLong contendedCount = new AtomicLong();
+        private final AtomicLong timeoutCount = new AtomicLong();
+        private final AtomicInteger waitingCount = new AtomicInteger();
+        private final AtomicInteger maxWaitingCount = new AtomicInteger();
+
+        private void waiting(int delta) {
+            int count = waitingCount.addAndGet(delta);
+            int max;
+            while ((max = maxWaitingCount.get()) < count) {
+                if (maxWaitingCount.compareAndSet(max, count)) {
+                    break;
+                }
+            }
+        }
+
+        private void collectStatistics(String prefix, Map<String, Object> statistics) {
+            waitTime.collectStatistics(prefix + ".wait", statistics);
+            holdTime.collectStatistics(prefix + ".hold", statistics);
+            statistics.put(prefix + ".contended", contendedCount.get());
+            statistics.put(prefix + ".timeouts", timeoutCount.get());
+            statistics.put(prefix + ".queue", waitingCount.get());
+            statistics.put(prefix + ".queue.max", maxWaitingCount.get());
+        }
+    }
+}
@@ -5,6 +5,7 @@ import org.apache.log4j.Logger;
 
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 public class HashLockManager implements LockManager {
     Logger logger = org.apache.log4j.Logger.getLogger(HashLockManager.class);
@@ -22,6 +23,22 @@ public class HashLockManager implements LockManager {
         }
     }
 
+    @Override
+    public boolean tryLock(String id, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (locks) {
+            while (locks.contains(id)) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(locks, remaining);
+            }
+            locks.add(id);
+            return true;
+        }
+    }
+
     @Override
     public void unlock(String id) {
         synchronized (locks) {
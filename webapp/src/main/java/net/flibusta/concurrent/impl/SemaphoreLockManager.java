@@ -6,6 +6,7 @@ import org.apache.log4j.Logger;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class SemaphoreLockManager implements LockManager {
     Logger logger = org.apache.log4j.Logger.getLogger(SemaphoreLockManager.class);
@@ -29,6 +30,25 @@ public class SemaphoreLockManager implements LockManager {
         lock(id);
     }
 
+    @Override
+    public boolean tryLock(String id, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            CountDownLatch monitor;
+            synchronized (this) {
+                monitor = locks.get(id);
+                if (monitor == null) {
+                    locks.put(id, new CountDownLatch(1));
+                    return true;
+                }
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || !monitor.await(remaining, TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+    }
+
     @Override
     public void unlock(String id) {
         synchronized (this) {
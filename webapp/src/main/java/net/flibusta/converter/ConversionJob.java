@@ -0,0 +1,130 @@
+package net.flibusta.converter;
+
+import net.flibusta.concurrent.Cancellation;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Conversion submitted to {@link ConversionScheduler}. Job is identified by random id which is returned to client
+ * and may be used later to poll job status.
+ */
+public class ConversionJob extends FutureTask<ConversionResult> {
+    Logger logger = Logger.getLogger(ConversionJob.class);
+
+    public enum Status {QUEUED, RUNNING, DONE, FAILED}
+
+    private final String id;
+    private final long createdTime = System.currentTimeMillis();
+    private volatile long finishedTime = 0;
+    private volatile boolean started = false;
+    private final List<Runnable> completionListeners = new ArrayList<Runnable>(1);
+    private final Cancellation cancellation;
+
+    public ConversionJob(String id, Callable<ConversionResult> task) {
+        this(id, task, new Cancellation());
+    }
+
+    /**
+     * @param cancellation token bound to the thread running the job
+     */
+    public ConversionJob(String id, Callable<ConversionResult> task, Cancellation cancellation) {
+        super(task);
+        this.id = id;
+        this.cancellation = cancellation;
+    }
+
+    @Override
+    public void run() {
+        started = true;
+        Cancellation previous = Cancellation.attach(cancellation);
+        try {
+            super.run();
+        } finally {
+            Cancellation.restore(previous);
+        }
+    }
+
+    /**
+     * Running job is stopped cooperatively, conversion shared with other requests goes on.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        cancellation.cancel();
+        return super.cancel(mayInterruptIfRunning);
+    }
+
+    @Override
+    protected void done() {
+        finishedTime = System.currentTimeMillis();
+        List<Runnable> listeners;
+        synchronized (completionListeners) {
+            listeners = new ArrayList<Runnable>(completionListeners);
+            completionListeners.clear();
+        }
+        for (Runnable listener : listeners) {
+            runListener(listener);
+        }
+    }
+
+    /**
+     * Listener is called by the thread which completes the job, or at once if the job is already completed.
+     */
+    public void addCompletionListener(Runnable listener) {
+        synchronized (completionListeners) {
+            if (!isDone()) {
+                completionListeners.add(listener);
+                return;
+            }
+        }
+        runListener(listener);
+    }
+
+    private void runListener(Runnable listener) {
+        try {
+            listener.run();
+        } catch (Throwable e) {
+            logger.error("Completion listener of job " + id + " failed", e);
+        }
+    }
+
+    public Status getStatus() {
+        if (!isDone()) {
+            return started ? Status.RUNNING : Status.QUEUED;
+        }
+        return getFailure() == null ? Status.DONE : Status.FAILED;
+    }
+
+    /**
+     * @return cause of job failure or null if job is not finished yet or finished successfully
+     */
+    public Throwable getFailure() {
+        if (!isDone()) {
+            return null;
+        }
+        try {
+            get();
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        } catch (Exception e) {
+            return e;
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public long getCreatedTime() {
+        return createdTime;
+    }
+
+    public long getFinishedTime() {
+        return finishedTime;
+    }
+}
@@ -0,0 +1,27 @@
+package net.flibusta.converter;
+
+import java.io.File;
+
+public class ConversionResult {
+    private final String bookId;
+    private final String format;
+    private final File file;
+
+    public ConversionResult(String bookId, String format, File file) {
+        this.bookId = bookId;
+        this.format = format;
+        this.file = file;
+    }
+
+    public String getBookId() {
+        return bookId;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public File getFile() {
+        return file;
+    }
+}
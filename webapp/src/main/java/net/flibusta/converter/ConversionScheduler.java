@@ -0,0 +1,21 @@
+package net.flibusta.converter;
+
+import net.flibusta.concurrent.Priority;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+
+public interface ConversionScheduler {
+
+    /**
+     * Submits job of {@link Priority#INTERACTIVE} class
+     */
+    ConversionJob submit(Callable<ConversionResult> task) throws RejectedExecutionException;
+
+    ConversionJob submit(Priority priority, Callable<ConversionResult> task) throws RejectedExecutionException;
+
+    /**
+     * @return submitted job or null if job unknown or already expired
+     */
+    ConversionJob findJob(String jobId);
+}
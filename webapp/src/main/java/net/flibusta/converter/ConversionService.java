@@ -3,5 +3,9 @@ package net.flibusta.converter;
 import java.io.File;
 
 public interface ConversionService {
+    /**
+     * Conversion is stopped by {@link java.util.concurrent.CancellationException} when
+     * {@link net.flibusta.concurrent.Cancellation} of the current thread is cancelled.
+     */
     File convert(String bookId) throws ConversionException;
 }
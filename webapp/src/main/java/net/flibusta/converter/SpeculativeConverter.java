@@ -0,0 +1,14 @@
+package net.flibusta.converter;
+
+/**
+ * Converts freshly downloaded books to other formats in background, before anyone requests them.
+ */
+public interface SpeculativeConverter {
+
+    /**
+     * Queues conversion of the book to all configured formats except requested one. Does nothing if queue is full.
+     *
+     * @param requestedFormat format converted by the request itself, may be null
+     */
+    void submit(String bookId, String requestedFormat);
+}
@@ -0,0 +1,90 @@
+package net.flibusta.converter.impl;
+
+import net.flibusta.concurrent.Cancellation;
+import net.flibusta.converter.ConversionException;
+import net.flibusta.converter.ConversionService;
+import net.flibusta.converter.ConversionServiceFactory;
+import net.flibusta.persistence.dao.BookDao;
+
+import java.io.File;
+
+/**
+ * Runs conversion only when admitted by {@link ConversionAdmissionController}. Heap cost of conversion is
+ * estimated by size of stored source file.
+ * <p/>
+ * Book in <code>intermediateFormat</code> is obtained before admission, so conversion doesn't hold its slot while
+ * it waits for the conversion it depends on, which may itself wait in admission queue.
+ */
+public class AdmissionControlledConversionService implements ConversionService {
+
+    private static final String[] SOURCE_FORMATS = {"fb2", "rtf", "docx", "epub"};
+
+    private ConversionService conversionService;
+    private ConversionAdmissionController admissionController;
+    private BookDao bookDao;
+    private ConversionServiceFactory conversionServiceFactory;
+    private String intermediateFormat;
+    private int heapCostFactor = 10;
+
+    @Override
+    public File convert(String bookId) throws ConversionException {
+        if (admissionController.isAdmitted()) { // conversion to intermediate format
+            return conversionService.convert(bookId);
+        }
+
+        if (intermediateFormat != null && bookDao.findBook(bookId, intermediateFormat) == null) {
+            conversionServiceFactory.getConversionService(intermediateFormat).convert(bookId);
+        }
+
+        long heapCost = estimateHeapCost(bookId);
+        try {
+            admissionController.acquire(heapCost);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConversionException("Conversion interrupted for bookId = " + bookId, e);
+        }
+        try {
+            Cancellation.checkCurrent(); // request may be cancelled while waiting in queue
+            return conversionService.convert(bookId);
+        } finally {
+            admissionController.release(heapCost);
+        }
+    }
+
+    private long estimateHeapCost(String bookId) {
+        for (String format : SOURCE_FORMATS) {
+            File source = bookDao.findBook(bookId, format);
+            if (source != null) {
+                return source.length() * heapCostFactor;
+            }
+        }
+        return 0;
+    }
+
+    public void setConversionService(ConversionService conversionService) {
+        this.conversionService = conversionService;
+    }
+
+    public void setAdmissionController(ConversionAdmissionController admissionController) {
+        this.admissionController = admissionController;
+    }
+
+    public void setBookDao(BookDao bookDao) {
+        this.bookDao = bookDao;
+    }
+
+    public void setConversionServiceFactory(ConversionServiceFactory conversionServiceFactory) {
+        this.conversionServiceFactory = conversionServiceFactory;
+    }
+
+    /**
+     * @param intermediateFormat format the book is converted from, converted before admission
+     */
+    public void setIntermediateFormat(String intermediateFormat) {
+        this.intermediateFormat = intermediateFormat;
+    }
+
+    public void setHeapCostFactor(int heapCostFactor) {
+        this.heapCostFactor = heapCostFactor;
+    }
+}
@@ -0,0 +1,178 @@
+package net.flibusta.converter.impl;
+
+import net.flibusta.concurrent.OverloadException;
+import net.flibusta.monitor.StatisticsSource;
+import net.flibusta.monitor.TimeStatistics;
+import org.apache.log4j.Logger;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits number of conversions running at once and total heap they are expected to consume. Conversions which
+ * can't start immediately wait in bounded queue, conversions which don't fit into the queue or wait too long
+ * are rejected with {@link OverloadException}.
+ */
+public class ConversionAdmissionController implements StatisticsSource {
+    Logger logger = Logger.getLogger(ConversionAdmissionController.class);
+
+    private int maxConcurrent = 0;
+    private long maxHeapCost = 0;
+    private int maxQueueLength = 50;
+    private long maxQueueWaitSeconds = 30;
+    private int retryAfterSeconds = 30;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private int running = 0;
+    private long usedHeapCost = 0;
+    private int waiting = 0;
+
+    private final ThreadLocal<Boolean> admitted = new ThreadLocal<Boolean>();
+
+    private final AtomicLong admittedCount = new AtomicLong();
+    private final AtomicLong queuedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final TimeStatistics queueTime = new TimeStatistics();
+
+    public void init() {
+        if (maxConcurrent <= 0) {
+            maxConcurrent = Runtime.getRuntime().availableProcessors();
+        }
+        if (maxHeapCost <= 0) {
+            maxHeapCost = Runtime.getRuntime().maxMemory() / 2;
+        }
+        logger.info("Conversion admission: maxConcurrent=" + maxConcurrent + " maxHeapCost=" + maxHeapCost
+                + " maxQueueLength=" + maxQueueLength);
+    }
+
+    /**
+     * Waits until conversion with given heap cost is allowed to run.
+     *
+     * @throws OverloadException if wait queue is full or conversion waits too long
+     */
+    public void acquire(long heapCost) throws InterruptedException {
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            if (!canRun(heapCost)) {
+                if (waiting >= maxQueueLength) {
+                    throw reject("Conversion queue is full");
+                }
+                queuedCount.incrementAndGet();
+                waiting++;
+                try {
+                    long nanos = TimeUnit.SECONDS.toNanos(maxQueueWaitSeconds);
+                    while (!canRun(heapCost)) {
+                        if (nanos <= 0) {
+                            throw reject("Conversion queue wait timed out");
+                        }
+                        nanos = available.awaitNanos(nanos);
+                    }
+                } finally {
+                    waiting--;
+                }
+            }
+            running++;
+            usedHeapCost += heapCost;
+        } finally {
+            lock.unlock();
+        }
+        queueTime.record(System.nanoTime() - start);
+        admittedCount.incrementAndGet();
+        admitted.set(Boolean.TRUE);
+    }
+
+    public void release(long heapCost) {
+        admitted.remove();
+        lock.lock();
+        try {
+            running--;
+            usedHeapCost -= heapCost;
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if current thread already runs admitted conversion, i.e. nested conversion to intermediate format
+     */
+    public boolean isAdmitted() {
+        return admitted.get() != null;
+    }
+
+    /**
+     * @return number of admitted conversions running now
+     */
+    public int getRunning() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of conversions waiting for admission
+     */
+    public int getWaiting() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean canRun(long heapCost) {
+        // conversion which exceeds heap limit by itself is allowed to run alone
+        return running < maxConcurrent && (running == 0 || usedHeapCost + heapCost <= maxHeapCost);
+    }
+
+    private OverloadException reject(String reason) {
+        rejectedCount.incrementAndGet();
+        logger.warn(reason + ". running=" + running + " waiting=" + waiting + " heapCost=" + usedHeapCost);
+        return new OverloadException("Server overloaded. Please try late.", retryAfterSeconds);
+    }
+
+    @Override
+    public void collectStatistics(Map<String, Object> statistics) {
+        lock.lock();
+        try {
+            statistics.put("admission.running", running);
+            statistics.put("admission.queue", waiting);
+            statistics.put("admission.heapCost", usedHeapCost);
+        } finally {
+            lock.unlock();
+        }
+        statistics.put("admission.admitted", admittedCount.get());
+        statistics.put("admission.queued", queuedCount.get());
+        statistics.put("admission.rejected", rejectedCount.get());
+        queueTime.collectStatistics("admission.wait", statistics);
+    }
+
+    public void setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    public void setMaxHeapCostMb(long maxHeapCostMb) {
+        this.maxHeapCost = maxHeapCostMb * 1024 * 1024;
+    }
+
+    public void setMaxQueueLength(int maxQueueLength) {
+        this.maxQueueLength = maxQueueLength;
+    }
+
+    public void setMaxQueueWaitSeconds(long maxQueueWaitSeconds) {
+        this.maxQueueWaitSeconds = maxQueueWaitSeconds;
+    }
+
+    public void setRetryAfterSeconds(int retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+}
@@ -1,7 +1,10 @@
 package net.flibusta.converter.impl;
 
+import net.flibusta.concurrent.Cancellation;
 import net.flibusta.converter.ConversionException;
 import net.flibusta.converter.Converter;
+import net.flibusta.monitor.LatencyHistogram;
+import net.flibusta.monitor.StatisticsSource;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
@@ -14,27 +17,94 @@ import org.springframework.core.io.Resource;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class EpubToMobiConverter implements Converter, ApplicationContextAware {
+/**
+ * Converts epub to mobi by kindlegen. Number of kindlegen processes running at once is limited by size of
+ * process pool, other conversions wait in queue. Process running longer than <code>processTimeoutSeconds</code>
+ * or cancelled by caller is destroyed. Output of all processes is read by shared pool of threads.
+ */
+public class EpubToMobiConverter implements Converter, ApplicationContextAware, StatisticsSource {
     final Logger logger = Logger.getLogger(EpubToMobiConverter.class);
 
+    private static final long PROCESS_POLL_MILLIS = 100;
+    private static final long OUTPUT_WAIT_SECONDS = 5;
+    private static final int MAX_OUTPUT_LENGTH = 64 * 1024;
+
     private String path2kindlegen;
+    private int maxProcesses = 2;
+    private long processTimeoutSeconds = 300;
+
+    private ExecutorService processExecutor;
+    private ExecutorService outputExecutor;
+
+    private final AtomicInteger queuedCount = new AtomicInteger();
+    private final AtomicInteger runningCount = new AtomicInteger();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong cancelCount = new AtomicLong();
+    private final LatencyHistogram durations = new LatencyHistogram();
+    private final ConcurrentMap<Integer, AtomicLong> exitCodes = new ConcurrentHashMap<Integer, AtomicLong>();
+
+    public void init() {
+        processExecutor = Executors.newFixedThreadPool(maxProcesses, new NamedThreadFactory("kindlegen-"));
+        outputExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("kindlegen-output-"));
+        logger.info("kindlegen pool started with " + maxProcesses + " processes");
+    }
+
+    public void shutdown() {
+        processExecutor.shutdownNow();
+        outputExecutor.shutdownNow();
+    }
 
     @Override
     public File convert(File epub) throws ConversionException {
 
-        String[] cmd = new String[2];
+        final String[] cmd = new String[2];
         cmd[0] = path2kindlegen;
         cmd[1] = epub.getAbsolutePath();
 
+        final AtomicBoolean dequeued = new AtomicBoolean(false);
+        queuedCount.incrementAndGet();
+        Future<Integer> process = processExecutor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                if (dequeued.compareAndSet(false, true)) {
+                    queuedCount.decrementAndGet();
+                }
+                return execProcess(cmd);
+            }
+        });
         try {
-            int exitCode = execProcess(cmd);
+            int exitCode = Cancellation.await(process, Long.MAX_VALUE, TimeUnit.MILLISECONDS);
 
             if (exitCode != 0 && exitCode != 1) { // ok or warning
                 throw new ConversionException("Epub to mobi conversion failed with error code " + exitCode);
             }
-        } catch (IOException e) {
-            throw new ConversionException("Epub to mobi conversion failed: " + e.getMessage(), e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ConversionException) {
+                throw (ConversionException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ConversionException("Epub to mobi conversion failed: " + cause.getMessage(), cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConversionException("Epub to mobi conversion interrupted", e);
+        } catch (TimeoutException e) {
+            throw new ConversionException("Epub to mobi conversion timed out", e);
+        } finally {
+            if (!process.isDone() && process.cancel(true)) { // queued or running process is not needed anymore
+                cancelCount.incrementAndGet();
+            }
+            if (dequeued.compareAndSet(false, true)) { // cancelled before start
+                queuedCount.decrementAndGet();
+            }
         }
 
         String name = FilenameUtils.getBaseName(epub.getName());
@@ -43,41 +113,85 @@ public class EpubToMobiConverter implements Converter, ApplicationContextAware {
         return new File(epub.getParent(), name + ".mobi");
     }
 
-    private int execProcess(String[] cmd) throws IOException {
-        final Process process = Runtime.getRuntime().exec(cmd);
-        StreamConsumer stdout = new StreamConsumer(process.getInputStream());
-        Thread inputReader = new Thread(stdout);
-        inputReader.start();
-        StreamConsumer stderr = new StreamConsumer(process.getErrorStream());
-        Thread stdErrReader = new Thread(stderr);
-        stdErrReader.start();
+    /**
+     * Runs process in the current thread of process pool
+     */
+    private int execProcess(String[] cmd) throws IOException, ConversionException {
+        long start = System.nanoTime();
+        ProcessBuilder processBuilder = new ProcessBuilder(cmd);
+        processBuilder.redirectErrorStream(true);
+        final Process process = processBuilder.start();
+        runningCount.incrementAndGet();
+        StreamConsumer output = new StreamConsumer(process.getInputStream());
+        Future<?> outputReader = outputExecutor.submit(output);
         int exitCode = -1;
         try {
-            exitCode = process.waitFor();
+            IOUtils.closeQuietly(process.getOutputStream());
+            exitCode = waitFor(process);
         } catch (InterruptedException e) {
-            process.destroy();
-            inputReader.interrupt();
-            stdErrReader.interrupt();
+            throw new CancellationException("kindlegen cancelled");
         } finally {
+            process.destroy(); // no-op for exited process
+            runningCount.decrementAndGet();
+            durations.record(System.nanoTime() - start);
+            getExitCodeCounter(exitCode).incrementAndGet();
             try {
-                inputReader.join();
-            } catch (InterruptedException e) {
-                // exit
+                outputReader.get(OUTPUT_WAIT_SECONDS, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                outputReader.cancel(true);
             }
+        }
+
+        if (exitCode == 0) {
+            logger.debug("kindlegen output: " + output.getResult());
+        } else {
+            logger.warn("kindlegen exit code " + exitCode + " output: " + output.getResult());
+        }
+
+        return exitCode;
+    }
+
+    /**
+     * Waits for process exit no longer than process timeout
+     */
+    private int waitFor(Process process) throws InterruptedException, ConversionException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(processTimeoutSeconds);
+        while (true) {
             try {
-                stdErrReader.join();
-            } catch (InterruptedException e) {
-                // exit
+                return process.exitValue();
+            } catch (IllegalThreadStateException e) {
+                // still running
+            }
+            if (System.nanoTime() - deadline > 0) {
+                timeoutCount.incrementAndGet();
+                throw new ConversionException("kindlegen killed after " + processTimeoutSeconds + " seconds");
             }
+            Thread.sleep(PROCESS_POLL_MILLIS);
         }
+    }
 
-        logger.debug("kindlegen stdout: " + stdout.getResult());
-        String stderrResult = stderr.getResult();
-        if (stderrResult.length() > 0) {
-            logger.warn("kindlegen stderr: " + stderrResult);
+    private AtomicLong getExitCodeCounter(int exitCode) {
+        AtomicLong counter = exitCodes.get(exitCode);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = exitCodes.putIfAbsent(exitCode, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
         }
+        return counter;
+    }
 
-        return exitCode;
+    @Override
+    public void collectStatistics(Map<String, Object> statistics) {
+        statistics.put("kindlegen.queued", queuedCount.get());
+        statistics.put("kindlegen.running", runningCount.get());
+        statistics.put("kindlegen.timeouts", timeoutCount.get());
+        statistics.put("kindlegen.cancelled", cancelCount.get());
+        durations.collectStatistics("kindlegen.duration", statistics);
+        for (Map.Entry<Integer, AtomicLong> entry : exitCodes.entrySet()) {
+            statistics.put("kindlegen.exit." + entry.getKey(), entry.getValue().get());
+        }
     }
 
     @Override
@@ -87,10 +201,9 @@ public class EpubToMobiConverter implements Converter, ApplicationContextAware {
             throw new FatalBeanException("Required conversion utility not found: WEB-INF/bin/kindlegen");
         }
         try {
-            this.path2kindlegen = resource.getFile().getAbsolutePath();
-            String[] cmd = new String[] {"chmod", "a+x", this.path2kindlegen};
-            int exitCode = execProcess(cmd);
-            if (exitCode != 0) {
+            File kindlegen = resource.getFile();
+            this.path2kindlegen = kindlegen.getAbsolutePath();
+            if (!kindlegen.canExecute() && !kindlegen.setExecutable(true, false)) {
                 throw new FatalBeanException("Can not set executable bin on conversion utility " + this.path2kindlegen);
             }
         } catch (IOException e) {
@@ -98,10 +211,18 @@ public class EpubToMobiConverter implements Converter, ApplicationContextAware {
         }
     }
 
+    public void setMaxProcesses(int maxProcesses) {
+        this.maxProcesses = maxProcesses;
+    }
+
+    public void setProcessTimeoutSeconds(long processTimeoutSeconds) {
+        this.processTimeoutSeconds = processTimeoutSeconds;
+    }
+
 
     private static class StreamConsumer implements Runnable {
         private final InputStream stream;
-        private StringBuilder logMessage = new StringBuilder(4096);
+        private final StringBuffer logMessage = new StringBuffer(4096);
 
         public StreamConsumer(InputStream stream) {
             this.stream = stream;
@@ -113,13 +234,15 @@ public class EpubToMobiConverter implements Converter, ApplicationContextAware {
             int count;
             try {
                 while ((count = stream.read(buffer)) > 0) {
-                    logMessage.append(new String(buffer, 0, count));
+                    if (logMessage.length() < MAX_OUTPUT_LENGTH) {
+                        logMessage.append(new String(buffer, 0, count));
+                    }
                     if (Thread.interrupted()) {
                         return;
                     }
                 }
             } catch (IOException e) {
-                throw new RuntimeException("Can't read stdin from kindlegen");
+                throw new RuntimeException("Can't read output of kindlegen");
             } finally {
                 IOUtils.closeQuietly(stream);
             }
@@ -131,4 +254,20 @@ public class EpubToMobiConverter implements Converter, ApplicationContextAware {
         }
     }
 
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
 }
@@ -0,0 +1,92 @@
+package net.flibusta.converter.impl;
+
+import net.flibusta.concurrent.Cancellation;
+import net.flibusta.concurrent.Priority;
+import net.flibusta.concurrent.PriorityScheduler;
+import net.flibusta.converter.ConversionJob;
+import net.flibusta.converter.ConversionResult;
+import net.flibusta.converter.ConversionScheduler;
+import org.apache.log4j.Logger;
+
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+/**
+ * Runs conversion jobs by shared {@link PriorityScheduler}. Finished jobs are kept for
+ * <code>jobTtlSeconds</code> so clients are able to fetch conversion result by job id.
+ */
+public class ExecutorConversionScheduler implements ConversionScheduler {
+    Logger logger = Logger.getLogger(ExecutorConversionScheduler.class);
+
+    private long jobTtlSeconds = 600;
+    private long jobDeadlineSeconds = 600;
+
+    private PriorityScheduler priorityScheduler;
+    private ScheduledExecutorService cleaner;
+    private final ConcurrentMap<String, ConversionJob> jobs = new ConcurrentHashMap<String, ConversionJob>();
+
+    public void init() {
+        cleaner = Executors.newSingleThreadScheduledExecutor();
+        cleaner.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                removeExpiredJobs();
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public ConversionJob submit(Callable<ConversionResult> task) throws RejectedExecutionException {
+        return submit(Priority.INTERACTIVE, task);
+    }
+
+    @Override
+    public ConversionJob submit(Priority priority, Callable<ConversionResult> task) throws RejectedExecutionException {
+        ConversionJob job = new ConversionJob(UUID.randomUUID().toString().replace("-", ""), task,
+                new Cancellation(TimeUnit.SECONDS.toMillis(jobDeadlineSeconds)));
+        jobs.put(job.getId(), job);
+        try {
+            priorityScheduler.execute(priority, job);
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.getId());
+            logger.warn("Conversion queue overloaded. priority=" + priority);
+            throw new RejectedExecutionException("Server overloaded. Please try late.");
+        }
+        return job;
+    }
+
+    @Override
+    public ConversionJob findJob(String jobId) {
+        return jobs.get(jobId);
+    }
+
+    private void removeExpiredJobs() {
+        long expirationTime = System.currentTimeMillis() - TimeUnit.MILLISECONDS.convert(jobTtlSeconds, TimeUnit.SECONDS);
+        for (Iterator<ConversionJob> iterator = jobs.values().iterator(); iterator.hasNext(); ) {
+            ConversionJob job = iterator.next();
+            if (job.isDone() && job.getFinishedTime() < expirationTime) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public void shutdown() {
+        cleaner.shutdownNow();
+    }
+
+    public void setPriorityScheduler(PriorityScheduler priorityScheduler) {
+        this.priorityScheduler = priorityScheduler;
+    }
+
+    public void setJobTtlSeconds(long jobTtlSeconds) {
+        this.jobTtlSeconds = jobTtlSeconds;
+    }
+
+    /**
+     * @param jobDeadlineSeconds job is cancelled when not completed in time after submit, 0 - no deadline
+     */
+    public void setJobDeadlineSeconds(long jobDeadlineSeconds) {
+        this.jobDeadlineSeconds = jobDeadlineSeconds;
+    }
+}
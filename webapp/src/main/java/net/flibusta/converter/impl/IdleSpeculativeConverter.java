@@ -0,0 +1,247 @@
+package net.flibusta.converter.impl;
+
+import net.flibusta.concurrent.Cancellation;
+import net.flibusta.concurrent.Priority;
+import net.flibusta.concurrent.PriorityScheduler;
+import net.flibusta.converter.ConversionServiceFactory;
+import net.flibusta.converter.SpeculativeConverter;
+import net.flibusta.monitor.StatisticsSource;
+import net.flibusta.persistence.dao.BookDao;
+import org.apache.log4j.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Starts speculative conversions one by one with {@link Priority#SPECULATIVE} priority, only while the server is
+ * idle: no foreground conversion runs or waits for admission and system load is low. Running speculative conversion is preempted
+ * (cancelled cooperatively) as soon as foreground conversion starts or has to wait, and retried later.
+ * Foreground request for the same book and format joins speculative conversion, which is not preempted then.
+ */
+public class IdleSpeculativeConverter implements SpeculativeConverter, StatisticsSource {
+    Logger logger = Logger.getLogger(IdleSpeculativeConverter.class);
+
+    private ConversionServiceFactory conversionServiceFactory;
+    private ConversionAdmissionController admissionController;
+    private PriorityScheduler priorityScheduler;
+    private BookDao bookDao;
+    private boolean enabled = false;
+    private String[] formats = {"epub", "mobi"};
+    private int maxQueueLength = 100;
+    private int maxAttempts = 3;
+    private double maxLoadPerCpu = 0.5;
+    private long idleCheckMillis = 1000;
+
+    private BlockingQueue<Task> queue;
+    private Thread worker;
+    private volatile boolean shutdown = false;
+
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong convertedCount = new AtomicLong();
+    private final AtomicLong preemptedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    public void init() {
+        queue = new LinkedBlockingQueue<Task>(maxQueueLength);
+        if (!enabled) {
+            return;
+        }
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "speculative-converter");
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.start();
+        logger.info("Speculative conversion to " + Arrays.toString(formats) + " started");
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    @Override
+    public void submit(String bookId, String requestedFormat) {
+        if (!enabled) {
+            return;
+        }
+        if (queue.offer(new Task(bookId, requestedFormat))) {
+            submittedCount.incrementAndGet();
+        } else {
+            droppedCount.incrementAndGet();
+        }
+    }
+
+    private void work() {
+        while (!shutdown) {
+            try {
+                Task task = queue.take();
+                if (!convert(task) && ++task.attempts < maxAttempts && !queue.offer(task)) {
+                    droppedCount.incrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Throwable e) {
+                logger.error("Speculative conversion failed", e);
+            }
+        }
+    }
+
+    /**
+     * @return false if conversion was preempted and should be retried
+     */
+    boolean convert(final Task task) throws InterruptedException {
+        for (final String format : formats) {
+            if (format.equals(task.requestedFormat)) {
+                continue;
+            }
+            waitUntilIdle();
+            if (bookDao.findBook(task.bookId, format) != null) {
+                continue;
+            }
+            try {
+                Future<Object> conversion = priorityScheduler.submit(Priority.SPECULATIVE, new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        Cancellation previous = Cancellation.attach(new PreemptingCancellation());
+                        try {
+                            return conversionServiceFactory.getConversionService(format).convert(task.bookId);
+                        } finally {
+                            Cancellation.restore(previous);
+                        }
+                    }
+                });
+                conversion.get();
+                convertedCount.incrementAndGet();
+                logger.debug("Speculative conversion bookId=" + task.bookId + " format=" + format);
+            } catch (RejectedExecutionException e) {
+                return false;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof CancellationException) {
+                    preemptedCount.incrementAndGet();
+                    return false;
+                }
+                failedCount.incrementAndGet();
+                logger.debug("Speculative conversion failed bookId=" + task.bookId + " format=" + format + ": " + e.getCause().getMessage());
+            }
+        }
+        return true;
+    }
+
+    private void waitUntilIdle() throws InterruptedException {
+        while (!isIdle()) {
+            Thread.sleep(idleCheckMillis);
+        }
+    }
+
+    /**
+     * @return true if speculative conversion may start
+     */
+    boolean isIdle() {
+        if (admissionController.getRunning() > 0 || admissionController.getWaiting() > 0) {
+            return false;
+        }
+        double load = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+        return load < 0 || load / Runtime.getRuntime().availableProcessors() < maxLoadPerCpu; // negative if unknown
+    }
+
+    /**
+     * Checked by the thread of speculative conversion, which holds admission slot only while its own step runs,
+     * not while it waits for admission or for the step it depends on.
+     *
+     * @return true if running speculative conversion should give way to foreground ones
+     */
+    boolean isPreempted() {
+        int heldSlots = admissionController.isAdmitted() ? 1 : 0;
+        return shutdown || admissionController.getRunning() > heldSlots || admissionController.getWaiting() > 0;
+    }
+
+    /**
+     * Cancelled when foreground conversion needs resources
+     */
+    private class PreemptingCancellation extends Cancellation {
+        @Override
+        public boolean isCancelled() {
+            return super.isCancelled() || isPreempted();
+        }
+    }
+
+    static class Task {
+        private final String bookId;
+        private final String requestedFormat;
+        private int attempts = 0;
+
+        Task(String bookId, String requestedFormat) {
+            this.bookId = bookId;
+            this.requestedFormat = requestedFormat;
+        }
+    }
+
+    @Override
+    public void collectStatistics(Map<String, Object> statistics) {
+        statistics.put("speculative.queue", queue.size());
+        statistics.put("speculative.submitted", submittedCount.get());
+        statistics.put("speculative.dropped", droppedCount.get());
+        statistics.put("speculative.converted", convertedCount.get());
+        statistics.put("speculative.preempted", preemptedCount.get());
+        statistics.put("speculative.failed", failedCount.get());
+    }
+
+    public void setConversionServiceFactory(ConversionServiceFactory conversionServiceFactory) {
+        this.conversionServiceFactory = conversionServiceFactory;
+    }
+
+    public void setAdmissionController(ConversionAdmissionController admissionController) {
+        this.admissionController = admissionController;
+    }
+
+    public void setPriorityScheduler(PriorityScheduler priorityScheduler) {
+        this.priorityScheduler = priorityScheduler;
+    }
+
+    public void setBookDao(BookDao bookDao) {
+        this.bookDao = bookDao;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param formats comma separated formats to convert to, in order of conversion
+     */
+    public void setFormats(String formats) {
+        this.formats = formats.trim().split("\\s*,\\s*");
+    }
+
+    public void setMaxQueueLength(int maxQueueLength) {
+        this.maxQueueLength = maxQueueLength;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public void setMaxLoadPerCpu(double maxLoadPerCpu) {
+        this.maxLoadPerCpu = maxLoadPerCpu;
+    }
+
+    public void setIdleCheckMillis(long idleCheckMillis) {
+        this.idleCheckMillis = idleCheckMillis;
+    }
+}
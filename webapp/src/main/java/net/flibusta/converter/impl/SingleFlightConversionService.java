@@ -0,0 +1,141 @@
+package net.flibusta.converter.impl;
+
+import net.flibusta.concurrent.LockManager;
+import net.flibusta.concurrent.SingleFlight;
+import net.flibusta.converter.ConversionException;
+import net.flibusta.converter.ConversionService;
+import net.flibusta.persistence.dao.BookDao;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces concurrent conversions of the same book to the same format: only one conversion is executed,
+ * all other callers receive its result.
+ */
+public class SingleFlightConversionService implements ConversionService {
+    private Logger logger = Logger.getLogger(SingleFlightConversionService.class);
+
+    /**
+     * Output formats, mobi is converted from epub
+     */
+    private static final String[] LOCK_ORDER = {"mobi", "epub"};
+
+    private ConversionService conversionService;
+    private String format;
+    private BookDao bookDao;
+    private LockManager lockManager;
+    private SingleFlight<File> singleFlight;
+
+    @Override
+    public File convert(final String bookId) throws ConversionException {
+        final String key = getFlightKey(bookId, format);
+        if (singleFlight.isInFlight(key)) {
+            logger.debug("Join conversion in progress bookId=" + bookId + " format=" + format);
+        }
+        try {
+            return singleFlight.execute(key, new Callable<File>() {
+                @Override
+                public File call() throws Exception {
+                    lockManager.lock(key);
+                    try {
+                        File convertedFile = bookDao.findBook(bookId, format);
+                        if (convertedFile != null) { // converted by just finished flight
+                            return convertedFile;
+                        }
+                        return conversionService.convert(bookId);
+                    } finally {
+                        lockManager.unlock(key);
+                    }
+                }
+            });
+        } catch (ConversionException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConversionException("Conversion interrupted for bookId = " + bookId, e);
+        } catch (Exception e) {
+            throw new ConversionException("Conversion to " + format + " failed for bookId = " + bookId + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return key used both for in-flight registry and for {@link LockManager} lock of converted file
+     */
+    public static String getFlightKey(String bookId, String format) {
+        return bookId + "." + format;
+    }
+
+    /**
+     * Locks conversions of the book to every format, files of the book may be deleted or moved while it is held.
+     * Formats converted from another output format are locked first, in the same order as a conversion holding
+     * its own lock waits for the conversion it depends on.
+     */
+    public static void lockBook(LockManager lockManager, String bookId) throws InterruptedException {
+        int locked = 0;
+        try {
+            for (String format : LOCK_ORDER) {
+                lockManager.lock(getFlightKey(bookId, format));
+                locked++;
+            }
+        } finally {
+            if (locked < LOCK_ORDER.length) {
+                unlockBook(lockManager, bookId, locked);
+            }
+        }
+    }
+
+    /**
+     * @return true if no conversion of the book is running and all its locks are acquired
+     */
+    public static boolean tryLockBook(LockManager lockManager, String bookId) throws InterruptedException {
+        int locked = 0;
+        try {
+            for (String format : LOCK_ORDER) {
+                if (!lockManager.tryLock(getFlightKey(bookId, format), 0, TimeUnit.SECONDS)) {
+                    return false;
+                }
+                locked++;
+            }
+        } finally {
+            if (locked < LOCK_ORDER.length) {
+                unlockBook(lockManager, bookId, locked);
+            }
+        }
+        return true;
+    }
+
+    public static void unlockBook(LockManager lockManager, String bookId) {
+        unlockBook(lockManager, bookId, LOCK_ORDER.length);
+    }
+
+    private static void unlockBook(LockManager lockManager, String bookId, int locked) {
+        for (int i = locked - 1; i >= 0; i--) {
+            lockManager.unlock(getFlightKey(bookId, LOCK_ORDER[i]));
+        }
+    }
+
+    public void setConversionService(ConversionService conversionService) {
+        this.conversionService = conversionService;
+    }
+
+    public void setFormat(String format) {
+        this.format = format;
+    }
+
+    public void setBookDao(BookDao bookDao) {
+        this.bookDao = bookDao;
+    }
+
+    public void setLockManager(LockManager lockManager) {
+        this.lockManager = lockManager;
+    }
+
+    public void setSingleFlight(SingleFlight<File> singleFlight) {
+        this.singleFlight = singleFlight;
+    }
+}
@@ -1,5 +1,6 @@
 package net.flibusta.converter.impl;
 
+import net.flibusta.concurrent.Cancellation;
 import net.flibusta.converter.ConversionException;
 import net.flibusta.converter.ConversionService;
 import net.flibusta.converter.ConversionServiceFactory;
@@ -36,6 +37,7 @@ public class ToMobiConversionService implements ConversionService {
             ConversionService conversionService = conversionServiceFactory.getConversionService("epub");
             epub = conversionService.convert(bookId);
         }
+        Cancellation.checkCurrent();
         File mobi = epub2mobi.convert(epub);
         return bookDao.addBook(bookId, "mobi", mobi);
     }
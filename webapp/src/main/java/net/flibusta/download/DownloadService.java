@@ -1,8 +1,12 @@
 package net.flibusta.download;
 
-import java.io.File;
 import java.net.URL;
 
 public interface DownloadService {
-    File fetch(URL url) throws Exception;
+    /**
+     * Download is stopped when {@link net.flibusta.concurrent.Cancellation} of the current thread is cancelled.
+     *
+     * @return downloaded file or null if nothing downloaded (i.e. archive is empty)
+     */
+    DownloadedFile fetch(URL url) throws Exception;
 }
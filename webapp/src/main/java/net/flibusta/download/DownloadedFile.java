@@ -0,0 +1,49 @@
+package net.flibusta.download;
+
+import java.io.File;
+
+/**
+ * Downloaded (and unpacked if it was compressed) source file with properties calculated while downloading.
+ */
+public class DownloadedFile {
+    private final File file;
+    private final String md5;
+    private final String format;
+    private final long size;
+
+    public DownloadedFile(File file, String md5, String format, long size) {
+        this.file = file;
+        this.md5 = md5;
+        this.format = format;
+        this.size = size;
+    }
+
+    /**
+     * @return downloaded file or null if download was skipped because the book is already stored
+     */
+    public File getFile() {
+        return file;
+    }
+
+    public boolean isAlreadyStored() {
+        return file == null;
+    }
+
+    /**
+     * @return md5 hex of file content, used as book id
+     */
+    public String getMd5() {
+        return md5;
+    }
+
+    /**
+     * @return format detected by file name or content or null if format is unknown
+     */
+    public String getFormat() {
+        return format;
+    }
+
+    public long getSize() {
+        return size;
+    }
+}
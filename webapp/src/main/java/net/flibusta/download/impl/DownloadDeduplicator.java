@@ -0,0 +1,163 @@
+package net.flibusta.download.impl;
+
+import net.flibusta.download.DownloadedFile;
+import net.flibusta.monitor.StatisticsSource;
+import net.flibusta.persistence.dao.BookDao;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recognizes downloads of already stored books before the whole file is transferred. Download is recognized by
+ * Content-MD5 response header or by fingerprint (content length and hash of the first bytes) of content downloaded
+ * earlier from other url. Different books may share fingerprint, so fingerprint match is accepted only when
+ * Content-MD5 of the response confirms it.
+ */
+public class DownloadDeduplicator implements StatisticsSource {
+    private static final String[] SOURCE_FORMATS = {"fb2", "rtf", "docx", "epub"};
+
+    private BookDao bookDao;
+    private int prefixSize = 16 * 1024;
+    private int maxEntries = 100000;
+
+    private Map<String, Fingerprinted> fingerprints;
+
+    private final AtomicLong probeCount = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong unconfirmedCount = new AtomicLong();
+    private final AtomicLong savedBytes = new AtomicLong();
+
+    public void init() {
+        fingerprints = new LinkedHashMap<String, Fingerprinted>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Fingerprinted> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param contentMd5 value of Content-MD5 header of not compressed content
+     * @return descriptor of stored book or null if book is not stored yet
+     */
+    public DownloadedFile findByContentMd5(String contentMd5, long contentLength) {
+        probeCount.incrementAndGet();
+        String bookId = decodeContentMd5(contentMd5);
+        if (bookId == null) {
+            return null;
+        }
+        for (String format : SOURCE_FORMATS) {
+            if (bookDao.findBook(bookId, format) != null) {
+                return hit(new DownloadedFile(null, bookId, format, contentLength), contentLength);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param contentMd5 value of Content-MD5 header or null, confirms the match by md5 of the stored book or by
+     *                   Content-MD5 of the response the fingerprint was registered from
+     * @return descriptor of stored book or null if book is not stored yet or the match is not confirmed
+     */
+    public DownloadedFile findByFingerprint(String fingerprint, String contentMd5, long contentLength) {
+        probeCount.incrementAndGet();
+        Fingerprinted fingerprinted;
+        synchronized (fingerprints) {
+            fingerprinted = fingerprints.get(fingerprint);
+        }
+        if (fingerprinted == null || bookDao.findBook(fingerprinted.bookId, fingerprinted.format) == null) {
+            return null;
+        }
+        String md5 = contentMd5 != null ? decodeContentMd5(contentMd5) : null;
+        if (md5 == null || !(md5.equals(fingerprinted.bookId) || md5.equals(fingerprinted.transferMd5))) {
+            unconfirmedCount.incrementAndGet(); // downloaded in full, stored book is found by md5 of content
+            return null;
+        }
+        return hit(new DownloadedFile(null, fingerprinted.bookId, fingerprinted.format, fingerprinted.size), contentLength);
+    }
+
+    /**
+     * @param contentMd5 value of Content-MD5 header of the response or null
+     */
+    public void register(String fingerprint, String contentMd5, DownloadedFile downloadedFile) {
+        if (downloadedFile.getFormat() == null) {
+            return;
+        }
+        Fingerprinted fingerprinted = new Fingerprinted(downloadedFile.getMd5(), downloadedFile.getFormat(),
+                downloadedFile.getSize(), contentMd5 != null ? decodeContentMd5(contentMd5) : null);
+        synchronized (fingerprints) {
+            fingerprints.put(fingerprint, fingerprinted);
+        }
+    }
+
+    /**
+     * @return md5 in hex or null if header value is not md5
+     */
+    private static String decodeContentMd5(String contentMd5) {
+        byte[] md5 = Base64.decodeBase64(contentMd5.trim().getBytes());
+        if (md5.length != 16) {
+            return null;
+        }
+        return new String(Hex.encodeHex(md5));
+    }
+
+    public String getFingerprint(long contentLength, byte[] prefix, int prefixLength) {
+        byte[] data = prefix;
+        if (prefixLength != prefix.length) {
+            data = new byte[prefixLength];
+            System.arraycopy(prefix, 0, data, 0, prefixLength);
+        }
+        return contentLength + ":" + DigestUtils.md5Hex(data);
+    }
+
+    private DownloadedFile hit(DownloadedFile downloadedFile, long contentLength) {
+        hitCount.incrementAndGet();
+        savedBytes.addAndGet(contentLength);
+        return downloadedFile;
+    }
+
+    public int getPrefixSize() {
+        return prefixSize;
+    }
+
+    @Override
+    public void collectStatistics(Map<String, Object> statistics) {
+        synchronized (fingerprints) {
+            statistics.put("dedup.fingerprints", fingerprints.size());
+        }
+        statistics.put("dedup.probes", probeCount.get());
+        statistics.put("dedup.hits", hitCount.get());
+        statistics.put("dedup.unconfirmed", unconfirmedCount.get());
+        statistics.put("dedup.savedBytes", savedBytes.get());
+    }
+
+    public void setBookDao(BookDao bookDao) {
+        this.bookDao = bookDao;
+    }
+
+    public void setPrefixSize(int prefixSize) {
+        this.prefixSize = prefixSize;
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    private static class Fingerprinted {
+        private final String bookId;
+        private final String format;
+        private final long size;
+        private final String transferMd5;
+
+        private Fingerprinted(String bookId, String format, long size, String transferMd5) {
+            this.bookId = bookId;
+            this.format = format;
+            this.size = size;
+            this.transferMd5 = transferMd5;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package net.flibusta.download.impl;
+
+import net.flibusta.monitor.StatisticsSource;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs downloads in fixed pool of threads. Downloads are queued per key (host or proxy route), every key has its own
+ * limit of running downloads, and free threads serve keys in round-robin order. So slow host can occupy no more than
+ * its limit of threads and doesn't delay downloads from other hosts.
+ */
+public class FairDownloadScheduler implements StatisticsSource {
+    Logger logger = Logger.getLogger(FairDownloadScheduler.class);
+
+    private int poolSize = 2;
+    private int maxQueueLength = 50;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final Map<String, KeyQueue> queues = new HashMap<String, KeyQueue>();
+    private final LinkedList<KeyQueue> ready = new LinkedList<KeyQueue>();
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private boolean shutdown = false;
+
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    public void init() {
+        for (int i = 0; i < poolSize; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "download-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * @param key   scheduling key, i.e. host name
+     * @param limit max downloads of the key running at once
+     * @throws RejectedExecutionException if queue of the key is full
+     */
+    public <T> Future<T> submit(String key, int limit, Callable<T> task) {
+        FutureTask<T> futureTask = new FutureTask<T>(task);
+        lock.lock();
+        try {
+            if (shutdown) {
+                throw new RejectedExecutionException("Download scheduler is shut down");
+            }
+            KeyQueue queue = queues.get(key);
+            if (queue == null) {
+                queue = new KeyQueue(key);
+                queues.put(key, queue);
+            }
+            if (queue.tasks.size() >= maxQueueLength) {
+                rejectedCount.incrementAndGet();
+                throw new RejectedExecutionException("Download queue for " + key + " is full");
+            }
+            queue.limit = limit;
+            queue.tasks.add(futureTask);
+            if (queue.tasks.size() == 1) {
+                ready.add(queue);
+            }
+            submittedCount.incrementAndGet();
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+        return futureTask;
+    }
+
+    private void work() {
+        while (true) {
+            KeyQueue queue;
+            FutureTask<?> task;
+            lock.lock();
+            try {
+                while ((queue = nextRunnable()) == null) {
+                    if (shutdown) {
+                        return;
+                    }
+                    available.await();
+                }
+                task = queue.tasks.removeFirst();
+                queue.running++;
+                if (!queue.tasks.isEmpty()) {
+                    ready.add(queue); // to the end of round
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                task.run();
+            } catch (Throwable e) {
+                logger.error("Download task failed", e);
+            } finally {
+                Thread.interrupted(); // clear interrupt of cancelled task
+                release(queue);
+            }
+        }
+    }
+
+    /**
+     * Removes and returns the first queue of the round which may start one more download.
+     */
+    private KeyQueue nextRunnable() {
+        for (Iterator<KeyQueue> iterator = ready.iterator(); iterator.hasNext(); ) {
+            KeyQueue queue = iterator.next();
+            if (queue.running < queue.limit) {
+                iterator.remove();
+                return queue;
+            }
+        }
+        return null;
+    }
+
+    private void release(KeyQueue queue) {
+        lock.lock();
+        try {
+            queue.running--;
+            if (queue.running == 0 && queue.tasks.isEmpty()) {
+                queues.remove(queue.key);
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+            for (KeyQueue queue : queues.values()) {
+                for (FutureTask<?> task : queue.tasks) {
+                    task.cancel(false);
+                }
+            }
+            ready.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    @Override
+    public void collectStatistics(Map<String, Object> statistics) {
+        int queued = 0;
+        int running = 0;
+        lock.lock();
+        try {
+            for (KeyQueue queue : queues.values()) {
+                queued += queue.tasks.size();
+                running += queue.running;
+                statistics.put("download.scheduler." + queue.key + ".queue", queue.tasks.size());
+                statistics.put("download.scheduler." + queue.key + ".running", queue.running);
+            }
+        } finally {
+            lock.unlock();
+        }
+        statistics.put("download.scheduler.queue", queued);
+        statistics.put("download.scheduler.running", running);
+        statistics.put("download.scheduler.submitted", submittedCount.get());
+        statistics.put("download.scheduler.rejected", rejectedCount.get());
+    }
+
+    private static class KeyQueue {
+        private final String key;
+        private final LinkedList<FutureTask<?>> tasks = new LinkedList<FutureTask<?>>();
+        private int limit;
+        private int running = 0;
+
+        private KeyQueue(String key) {
+            this.key = key;
+        }
+    }
+
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    public void setMaxQueueLength(int maxQueueLength) {
+        this.maxQueueLength = maxQueueLength;
+    }
+}
@@ -0,0 +1,168 @@
+package net.flibusta.download.impl;
+
+import net.flibusta.download.DownloadedFile;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Stores downloaded stream into temporary file in one pass: unpacks single file archives, calculates md5 of
+ * (unpacked) content and detects source format by file name or by first bytes of content.
+ */
+public class SourceFileWriter {
+
+    private static final int HEAD_SIZE = 4096;
+
+    public static DownloadedFile write(InputStream source, String fileName, boolean zipped) throws Exception {
+        if (!zipped) {
+            return writeFile(source, fileName);
+        }
+
+        ZipInputStream zipStream = new ZipInputStream(source);
+        DownloadedFile downloadedFile = null;
+        try {
+            ZipEntry zipEntry;
+            while ((zipEntry = zipStream.getNextEntry()) != null) {
+                if (zipEntry.isDirectory() || zipEntry.getName().endsWith(".fbd")) {
+                    continue;
+                }
+                if (downloadedFile != null) {
+                    throw new Exception("Multifile archives not supported");
+                }
+                downloadedFile = writeFile(zipStream, zipEntry.getName());
+            }
+        } catch (Exception e) {
+            if (downloadedFile != null) {
+                FileUtils.deleteQuietly(downloadedFile.getFile());
+            }
+            throw e;
+        }
+        return downloadedFile;
+    }
+
+    private static DownloadedFile writeFile(InputStream source, String fileName) throws IOException {
+        File file = createTempFile(fileName);
+        MessageDigest digest = createDigest();
+        HeadOutputStream headStream = new HeadOutputStream(new FileOutputStream(file));
+        OutputStream targetStream = new DigestOutputStream(headStream, digest);
+        try {
+            IOUtils.copy(source, targetStream);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(targetStream);
+            FileUtils.deleteQuietly(file);
+            throw e;
+        } finally {
+            IOUtils.closeQuietly(targetStream);
+        }
+
+        String md5 = new String(Hex.encodeHex(digest.digest()));
+        return new DownloadedFile(file, md5, detectFormat(file.getName(), headStream.getHead()), headStream.getSize());
+    }
+
+    /**
+     * Detects format by file name extension or by file content
+     *
+     * @return detected format or null
+     */
+    static String detectFormat(String fileName, byte[] head) {
+        String extension = FilenameUtils.getExtension(fileName);
+        if (extension.length() > 1) {
+            return extension.toLowerCase();
+        }
+
+        String text;
+        try {
+            text = new String(head, "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        if (text.startsWith("\u00ef\u00bb\u00bf")) { // utf-8 BOM
+            text = text.substring(3);
+        }
+        text = text.trim();
+        if (text.startsWith("<?xml")) {
+            if (text.toLowerCase().contains("<fictionbook")) {
+                return "fb2";
+            }
+        } else if (text.contains("mimetypeapplication/epub+zip")) {
+            return "epub";
+        }
+        return null;
+    }
+
+    /**
+     * Creates new empty file in temporary directory. File name is kept as is if possible.
+     */
+    private static File createTempFile(String path) throws IOException {
+        String name = FilenameUtils.getName(path);
+        if (name.length() == 0) {
+            return File.createTempFile("tmp", null);
+        }
+        File systemTempDir = new File(System.getProperty("java.io.tmpdir"));
+        int tryCount = 20;
+        do {
+            File file = new File(systemTempDir, name);
+            if (file.createNewFile()) {
+                return file;
+            }
+            name = name.substring(0, 1) + name; // avoid name collision
+        } while (tryCount-- > 0);
+        throw new IOException("Can't create file " + name + " in " + systemTempDir.getName());
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Keeps copy of the first bytes written and counts total size
+     */
+    private static class HeadOutputStream extends FilterOutputStream {
+        private final byte[] head = new byte[HEAD_SIZE];
+        private long size = 0;
+
+        private HeadOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (size < head.length) {
+                head[(int) size] = (byte) b;
+            }
+            size++;
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (size < head.length) {
+                System.arraycopy(b, off, head, (int) size, (int) Math.min(len, head.length - size));
+            }
+            size += len;
+            out.write(b, off, len);
+        }
+
+        private byte[] getHead() {
+            int length = (int) Math.min(size, head.length);
+            byte[] result = new byte[length];
+            System.arraycopy(head, 0, result, 0, length);
+            return result;
+        }
+
+        private long getSize() {
+            return size;
+        }
+    }
+}
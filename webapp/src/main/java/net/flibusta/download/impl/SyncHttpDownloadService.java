@@ -2,20 +2,17 @@ package net.flibusta.download.impl;
 
 import net.flibusta.download.DownloadException;
 import net.flibusta.download.DownloadService;
-import net.flibusta.util.TempFileUtil;
+import net.flibusta.download.DownloadedFile;
 import org.apache.commons.httpclient.*;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.commons.httpclient.params.HttpMethodParams;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 
-import java.io.*;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 public class SyncHttpDownloadService implements DownloadService {
     Logger logger = Logger.getLogger(SyncHttpDownloadService.class);
@@ -24,7 +21,7 @@ public class SyncHttpDownloadService implements DownloadService {
     private HttpClient httpClient = null;
 
     @Override
-    public File fetch(URL url) throws Exception {
+    public DownloadedFile fetch(URL url) throws Exception {
         HttpClient httpClient = getHttpClient();
         String uri = url.toString();
         GetMethod method = new GetMethod(uri);
@@ -33,7 +30,7 @@ public class SyncHttpDownloadService implements DownloadService {
         int retryCount = 10;
         int code;
         String fileName;
-        File file;
+        DownloadedFile downloadedFile;
         try {
             try {
 
@@ -67,41 +64,22 @@ public class SyncHttpDownloadService implements DownloadService {
                 }
             }
 
-            file = createTempFile(fileName);
-
-            OutputStream targetStream = new FileOutputStream(file);
-
+            Header contentType = method.getResponseHeader("Content-Type");
+            boolean zipped = (contentType != null && "application/zip".equals(contentType.getValue())) || fileName.endsWith(".zip");
             try {
-                IOUtils.copy(sourceStream, targetStream);
-            } catch (Exception e) {
-                IOUtils.closeQuietly(targetStream);
-                FileUtils.deleteQuietly(file);
-                throw e;
+                downloadedFile = SourceFileWriter.write(sourceStream, fileName, zipped);
             } finally {
                 IOUtils.closeQuietly(sourceStream);
-                IOUtils.closeQuietly(targetStream);
-                method.releaseConnection();
             }
         } finally {
             method.releaseConnection();
             httpClient.getHttpConnectionManager().closeIdleConnections(0);
         }
 
-        Header contentType = method.getResponseHeader("Content-Type");
-        if ((contentType != null && "application/zip".equals(contentType.getValue())) || fileName.endsWith(".zip")) {
-            file = unzip(file);
+        if (downloadedFile != null) {
+            logger.debug("Downloaded " + downloadedFile.getFile().getName());
         }
-        logger.debug("Downloaded " + file.getName());
-        return file;
-    }
-
-    private File createTempFile(String path) throws IOException {
-        String name = FilenameUtils.getName(path);
-        if (name.length() == 0) {
-            return File.createTempFile("tmp", null);
-        }
-        File systemTempDir = new File(System.getProperty("java.io.tmpdir"));
-        return new File(systemTempDir, name);
+        return downloadedFile;
     }
 
     private HttpClient getHttpClient() {
@@ -146,62 +124,4 @@ public class SyncHttpDownloadService implements DownloadService {
 
     }
 
-    private File unzip(File file) throws Exception {
-        File tempDir = TempFileUtil.createTempDir();
-        File tempFile = null;
-        ZipInputStream inputStream = new ZipInputStream(new FileInputStream(file));
-        try {
-            ZipEntry zipEntry;
-            int archiveFileCount = 0;
-            while ((zipEntry = inputStream.getNextEntry()) != null) {
-                if (zipEntry.getName().endsWith(".fbd")) {
-                    continue;
-                }
-                tempFile = new File(tempDir, zipEntry.getName());
-
-                OutputStream outputStream = new FileOutputStream(tempFile);
-                try {
-                    IOUtils.copy(inputStream, outputStream);
-                } finally {
-                    IOUtils.closeQuietly(outputStream);
-                }
-                if (++archiveFileCount > 1) {
-                    throw new Exception("Multifile archives not supported");
-                }
-            }
-        } finally {
-            IOUtils.closeQuietly(inputStream);
-            file.delete();
-        }
-
-        if (tempFile == null) {
-            FileUtils.deleteDirectory(tempDir);
-            return null;
-        }
-
-        // move unpacked file to upper level and remove temporary directory
-        File systemTempDir = new File(System.getProperty("java.io.tmpdir"));
-        String tempFileName = tempFile.getName();
-        boolean isFileMoved = false;
-        int tryCount = 20;
-        File targetFile;
-        do {
-            targetFile = new File(systemTempDir, tempFileName);
-            try {
-                FileUtils.moveFile(tempFile, targetFile);
-                isFileMoved = true;
-            } catch (IOException e) {
-                tempFileName = tempFileName.substring(0, 1) + tempFileName;
-            }
-        } while (!isFileMoved && tryCount-- > 0);
-
-        FileUtils.deleteDirectory(tempDir);
-
-        if (!isFileMoved) {
-            throw new IOException("Can't move file " + tempFile.getName() + " to " + systemTempDir.getName());
-        }
-
-        return targetFile;
-    }
-
 }
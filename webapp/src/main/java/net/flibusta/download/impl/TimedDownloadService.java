@@ -1,29 +1,69 @@
 package net.flibusta.download.impl;
 
+import net.flibusta.concurrent.Cancellation;
 import net.flibusta.download.DownloadException;
 import net.flibusta.download.DownloadService;
-import net.flibusta.util.TempFileUtil;
+import net.flibusta.download.DownloadedFile;
+import net.flibusta.monitor.LatencyHistogram;
+import net.flibusta.monitor.StatisticsSource;
+import net.flibusta.monitor.TimeStatistics;
 import org.apache.commons.httpclient.*;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.commons.httpclient.params.HttpMethodParams;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 
-import java.io.*;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.net.URL;
+import java.util.EnumMap;
+import java.util.Map;
 import java.util.concurrent.*;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class TimedDownloadService implements DownloadService {
+public class TimedDownloadService implements DownloadService, StatisticsSource {
     Logger logger = Logger.getLogger(TimedDownloadService.class);
 
-    private ExecutorService fetchExecutor;
+    /**
+     * Connection route. Every route has its own connection pool.
+     */
+    private enum Route {
+        DIRECT, ONION, I2P
+    }
+
+    private static final String OTHER_HOSTS = "other";
+
+    private FairDownloadScheduler fetchScheduler;
     private int fetchPoolSize = 2;
+    private int maxFetchesPerHost = 10;
+    private int maxProxyFetches = 5;
+    private int maxQueuedFetches = 50;
+    private int maxTrackedHosts = 100;
     private long fetchTimeoutSeconds = 60;
+    private long proxyFetchTimeoutSeconds = 180;
+    private int maxConnectionsPerHost = 20;
+    private int maxTotalConnections = 30;
+    private int maxProxyConnections = 10;
+    private long idleConnectionTimeoutSeconds = 60;
+    private long maxDownloadSizeMb = 50;
+    private long minThroughputBytesPerSecond = 1024;
+    private long throughputWindowSeconds = 20;
+
+    private final Map<Route, HttpClient> httpClients = new EnumMap<Route, HttpClient>(Route.class);
+    private final Map<Route, MultiThreadedHttpConnectionManager> connectionManagers = new EnumMap<Route, MultiThreadedHttpConnectionManager>(Route.class);
+    private final Map<Route, RouteStatistics> routeStatistics = new EnumMap<Route, RouteStatistics>(Route.class);
+    private final ConcurrentMap<String, LatencyHistogram> hostLatencies = new ConcurrentHashMap<String, LatencyHistogram>();
+    private IdleConnectionTimeoutThread idleConnectionTimeoutThread;
+    private DownloadDeduplicator deduplicator;
+
+    private final AtomicLong timeoutAbortCount = new AtomicLong();
+    private final AtomicLong sizeAbortCount = new AtomicLong();
+    private final AtomicLong slowAbortCount = new AtomicLong();
+    private final AtomicLong cancelAbortCount = new AtomicLong();
     private String onionProxyHost;
     private int onionProxyPort;
 
@@ -50,57 +90,127 @@ public class TimedDownloadService implements DownloadService {
     }
 
     public void init() {
-        fetchExecutor = Executors.newFixedThreadPool(fetchPoolSize);
+        fetchScheduler = new FairDownloadScheduler();
+        fetchScheduler.setPoolSize(fetchPoolSize);
+        fetchScheduler.setMaxQueueLength(maxQueuedFetches);
+        fetchScheduler.init();
+
+        idleConnectionTimeoutThread = new IdleConnectionTimeoutThread();
+        idleConnectionTimeoutThread.setName("download-idle-connections");
+        idleConnectionTimeoutThread.setConnectionTimeout(TimeUnit.SECONDS.toMillis(idleConnectionTimeoutSeconds));
+        idleConnectionTimeoutThread.setTimeoutInterval(TimeUnit.SECONDS.toMillis(idleConnectionTimeoutSeconds) / 2);
+        for (Route route : Route.values()) {
+            MultiThreadedHttpConnectionManager connectionManager = createConnectionManager(route);
+            connectionManagers.put(route, connectionManager);
+            HttpClient httpClient = new HttpClient(connectionManager);
+            // fetch waiting for pooled connection fails instead of blocking forever
+            httpClient.getParams().setConnectionManagerTimeout(TimeUnit.SECONDS.toMillis(getFetchTimeoutSeconds(route)));
+            httpClients.put(route, httpClient);
+            routeStatistics.put(route, new RouteStatistics());
+            idleConnectionTimeoutThread.addConnectionManager(connectionManager);
+        }
+        idleConnectionTimeoutThread.start();
+    }
+
+    private MultiThreadedHttpConnectionManager createConnectionManager(Route route) {
+        MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+        HttpConnectionManagerParams params = connectionManager.getParams();
+        if (route == Route.DIRECT) {
+            params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+            params.setMaxTotalConnections(maxTotalConnections);
+        } else { // all connections of proxy route go to the same proxy host
+            params.setDefaultMaxConnectionsPerHost(maxProxyConnections);
+            params.setMaxTotalConnections(maxProxyConnections);
+        }
+        params.setConnectionTimeout((int) TimeUnit.SECONDS.toMillis(getFetchTimeoutSeconds(route)));
+        params.setLinger(10);
+        return connectionManager;
+    }
+
+    private GetMethod createMethod(String uri, Route route, FetchTask task) {
+        GetMethod method = new GetMethod(uri);
+        task.setMethod(method);
+        method.getParams().setParameter(HttpMethodParams.USER_AGENT, "Mobipocket/ePub Converter");
+//        method.getParams().setParameter(HttpMethodParams.USER_AGENT, "Mozilla/5.0 (X11; Linux i686) AppleWebKit/536.5 (KHTML, like Gecko) Chrome/19.0.1084.46 Safari/536.5");
+        method.getParams().setParameter(HttpMethodParams.SO_TIMEOUT, (int) TimeUnit.SECONDS.toMillis(getFetchTimeoutSeconds(route)));
+        return method;
     }
 
     @Override
-    public File fetch(final URL url) throws Exception {
+    public DownloadedFile fetch(URL url) throws Exception {
         logger.debug("Fetch " + url);
-        Callable<File> task = new Callable<File>() {
-            @Override
-            public File call() throws Exception {
-                return executeFetch(url);
-            }
-        };
-        Future<File> submit;
+        Route route = getRoute(url);
+        String scheduleKey = getScheduleKey(url, route);
+        FetchTask task = new FetchTask(url, scheduleKey);
+        Future<DownloadedFile> submit;
         try {
-            submit = fetchExecutor.submit(task);
+            submit = fetchScheduler.submit(scheduleKey, route == Route.DIRECT ? maxFetchesPerHost : maxProxyFetches, task);
         } catch (RejectedExecutionException e) {
-            logger.warn("Fetch Pool overloaded. url=" + url);
+            logger.warn("Fetch Pool overloaded. url=" + url + " reason=" + e.getMessage());
             throw new RejectedExecutionException("Server overloaded. Please try late.");
         }
         try {
-            return submit.get(fetchTimeoutSeconds, TimeUnit.SECONDS);
+            // stop waiting when the request is cancelled or its deadline passes
+            return Cancellation.await(submit, getFetchTimeoutSeconds(route), TimeUnit.SECONDS);
+        } catch (CancellationException e) {
+            cancelAbortCount.incrementAndGet();
+            logger.debug("Fetch cancelled url=" + url + " reason=" + e.getMessage());
+            throw e;
         } catch (TimeoutException e) {
+            timeoutAbortCount.incrementAndGet();
             throw new TimeoutException("Book download timed out for " + url);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof WatchdogInputStream.LimitExceededException) {
+                if (((WatchdogInputStream.LimitExceededException) cause).isSizeExceeded()) {
+                    sizeAbortCount.incrementAndGet();
+                } else {
+                    slowAbortCount.incrementAndGet();
+                }
+            }
+            throw cause instanceof Exception ? (Exception) cause : e;
+        } finally {
+            // nobody waits for the download anymore, free the fetch thread and the connection
+            if (!submit.isDone()) {
+                task.abort();
+                submit.cancel(true);
+            }
         }
     }
 
-    public File executeFetch(URL url) throws Exception {
-        HttpClient httpClient = getHttpClient();
+    private DownloadedFile executeFetch(URL url, FetchTask task) throws Exception {
+        Route route = getRoute(url);
+        HttpClient httpClient = httpClients.get(route);
+        RouteStatistics statistics = routeStatistics.get(route);
         HostConfiguration hostConfiguration = getHostConfiguration(url);
 
         String uri = url.toString();
-        GetMethod method = new GetMethod(uri);
-        method.getParams().setParameter(HttpMethodParams.USER_AGENT, "Mobipocket/ePub Converter");
-//        method.getParams().setParameter(HttpMethodParams.USER_AGENT, "Mozilla/5.0 (X11; Linux i686) AppleWebKit/536.5 (KHTML, like Gecko) Chrome/19.0.1084.46 Safari/536.5");
-        method.getParams().setParameter(HttpMethodParams.SO_TIMEOUT, (int) TimeUnit.MILLISECONDS.convert(fetchTimeoutSeconds, TimeUnit.SECONDS));
+        GetMethod method = createMethod(uri, route, task);
         int retryCount = 10;
         int code;
         String fileName;
-        File file;
+        DownloadedFile downloadedFile;
         try {
             try {
 
                 do {
                     logger.debug("Start download " + url + " try=" + (10 - retryCount));
+                    statistics.requestCount.incrementAndGet();
+                    long start = System.nanoTime();
                     code = httpClient.executeMethod(hostConfiguration, method);
+                    statistics.responseTime.record(System.nanoTime() - start);
                     if (code == 503) {
+                        // return pooled connection, executed method keeps only the last one
+                        method.releaseConnection();
                         Thread.sleep(500);
+                        if (retryCount > 0) {
+                            method = createMethod(uri, route, task);
+                        }
                     }
                 } while (code == 503 && retryCount-- > 0);
 
             } catch (IOException e) {
+                statistics.failureCount.incrementAndGet();
                 logger.error("Download from " + uri + " failed with exception " + e.getMessage(), e);
                 method.releaseConnection();
                 throw new DownloadException("Download from " + uri + " failed with exception " + e.getMessage(), e);
@@ -110,7 +220,14 @@ public class TimedDownloadService implements DownloadService {
                 throw new DownloadException("File download failed with code " + code + " from url " + uri);
             }
 
-            InputStream sourceStream = method.getResponseBodyAsStream();
+            long maxSize = maxDownloadSizeMb * 1024 * 1024;
+            if (maxSize > 0 && method.getResponseContentLength() > maxSize) {
+                method.abort();
+                throw new WatchdogInputStream.LimitExceededException("Book size " + method.getResponseContentLength()
+                        + " exceeds limit of " + maxSize + " bytes", true);
+            }
+            InputStream sourceStream = new WatchdogInputStream(method.getResponseBodyAsStream(), maxSize,
+                    minThroughputBytesPerSecond, throughputWindowSeconds);
 
             fileName = method.getPath();
 
@@ -122,34 +239,104 @@ public class TimedDownloadService implements DownloadService {
                 }
             }
 
-            file = createTempFile(fileName);
-
-            OutputStream targetStream = new FileOutputStream(file);
-
+            Header contentType = method.getResponseHeader("Content-Type");
+            boolean zipped = (contentType != null && "application/zip".equals(contentType.getValue())) || fileName.endsWith(".zip");
+            String fingerprint = null;
+            String contentMd5 = null;
             try {
-                IOUtils.copy(sourceStream, targetStream);
+                if (deduplicator != null) {
+                    long contentLength = method.getResponseContentLength();
+                    DownloadedFile storedFile = null;
+                    Header contentMd5Header = method.getResponseHeader("Content-MD5");
+                    contentMd5 = contentMd5Header != null ? contentMd5Header.getValue() : null;
+                    if (contentMd5 != null && !zipped) {
+                        storedFile = deduplicator.findByContentMd5(contentMd5, contentLength);
+                    }
+                    if (storedFile == null && contentLength > 0) {
+                        byte[] prefix = new byte[(int) Math.min(contentLength, deduplicator.getPrefixSize())];
+                        int prefixLength = readPrefix(sourceStream, prefix);
+                        fingerprint = deduplicator.getFingerprint(contentLength, prefix, prefixLength);
+                        storedFile = deduplicator.findByFingerprint(fingerprint, contentMd5, contentLength);
+                        sourceStream = new SequenceInputStream(new ByteArrayInputStream(prefix, 0, prefixLength), sourceStream);
+                    }
+                    if (storedFile != null) {
+                        method.abort(); // don't read the rest of response
+                        logger.debug("Download of " + uri + " skipped, bookId=" + storedFile.getMd5());
+                        return storedFile;
+                    }
+                }
+                downloadedFile = SourceFileWriter.write(sourceStream, fileName, zipped);
             } catch (Exception e) {
-                IOUtils.closeQuietly(targetStream);
-                FileUtils.deleteQuietly(file);
+                method.abort(); // don't drain the rest of response on close
                 throw e;
             } finally {
                 IOUtils.closeQuietly(sourceStream);
-                IOUtils.closeQuietly(targetStream);
-                method.releaseConnection();
+            }
+            if (fingerprint != null && downloadedFile != null) {
+                deduplicator.register(fingerprint, contentMd5, downloadedFile);
             }
         } finally {
-            method.releaseConnection();
-            httpClient.getHttpConnectionManager().closeIdleConnections(0);
+            method.releaseConnection(); // return connection to the pool for reuse
         }
 
-        Header contentType = method.getResponseHeader("Content-Type");
-        if ((contentType != null && "application/zip".equals(contentType.getValue())) || fileName.endsWith(".zip")) {
-            file = unzip(file);
+        if (downloadedFile != null) {
+            logger.debug("Downloaded " + downloadedFile.getFile().getName() + " md5=" + downloadedFile.getMd5()
+                    + " format=" + downloadedFile.getFormat() + " size=" + downloadedFile.getSize());
         }
-        if (file != null) {
-            logger.debug("Downloaded " + file.getName());
+        return downloadedFile;
+    }
+
+    /**
+     * Download task which can be aborted from other thread. Abort closes connection, so blocked read is
+     * interrupted at once.
+     */
+    private class FetchTask implements Callable<DownloadedFile> {
+        private final URL url;
+        private final String scheduleKey;
+        private GetMethod method;
+        private boolean aborted = false;
+
+        private FetchTask(URL url, String scheduleKey) {
+            this.url = url;
+            this.scheduleKey = scheduleKey;
         }
-        return file;
+
+        @Override
+        public DownloadedFile call() throws Exception {
+            long start = System.nanoTime();
+            try {
+                return executeFetch(url, this);
+            } finally {
+                getHostLatency(scheduleKey).record(System.nanoTime() - start);
+            }
+        }
+
+        private synchronized void setMethod(GetMethod method) {
+            this.method = method;
+            if (aborted) {
+                method.abort();
+            }
+        }
+
+        private synchronized void abort() {
+            aborted = true;
+            if (method != null) {
+                logger.warn("Abort download from " + url);
+                method.abort();
+            }
+        }
+    }
+
+    private static int readPrefix(InputStream stream, byte[] prefix) throws IOException {
+        int length = 0;
+        while (length < prefix.length) {
+            int count = stream.read(prefix, length, prefix.length - length);
+            if (count < 0) {
+                break;
+            }
+            length += count;
+        }
+        return length;
     }
 
     private HostConfiguration getHostConfiguration(URL url) {
@@ -165,87 +352,78 @@ public class TimedDownloadService implements DownloadService {
         return hostConfiguration;
     }
 
-    private HttpClient getHttpClient() {
-        HttpConnectionManager httpConnectionManager = new SimpleHttpConnectionManager(false);
-        HttpConnectionManagerParams params = httpConnectionManager.getParams();
-        params.setDefaultMaxConnectionsPerHost(20);
-        params.setMaxTotalConnections(30);
-        params.setLinger(10);
-
-        return new HttpClient(httpConnectionManager);
-
+    /**
+     * Downloads through proxy are limited per route, as the proxy is the bottleneck, direct downloads are
+     * limited per host.
+     */
+    private String getScheduleKey(URL url, Route route) {
+        return route == Route.DIRECT ? url.getHost().toLowerCase() : route.name().toLowerCase();
     }
 
-    private File unzip(File file) throws Exception {
-        File tempDir = TempFileUtil.createTempDir();
-        File tempFile = null;
-        ZipInputStream inputStream = new ZipInputStream(new FileInputStream(file));
-        try {
-            ZipEntry zipEntry;
-            int archiveFileCount = 0;
-            while ((zipEntry = inputStream.getNextEntry()) != null) {
-                if (zipEntry.getName().endsWith(".fbd")) {
-                    continue;
-                }
-                tempFile = new File(tempDir, zipEntry.getName());
+    private long getFetchTimeoutSeconds(Route route) {
+        return route == Route.DIRECT ? fetchTimeoutSeconds : proxyFetchTimeoutSeconds;
+    }
 
-                OutputStream outputStream = new FileOutputStream(tempFile);
-                try {
-                    IOUtils.copy(inputStream, outputStream);
-                } finally {
-                    IOUtils.closeQuietly(outputStream);
-                }
-                if (++archiveFileCount > 1) {
-                    throw new Exception("Multifile archives not supported");
-                }
+    private LatencyHistogram getHostLatency(String scheduleKey) {
+        LatencyHistogram histogram = hostLatencies.get(scheduleKey);
+        if (histogram == null) {
+            if (hostLatencies.size() >= maxTrackedHosts) {
+                scheduleKey = OTHER_HOSTS;
             }
-        } finally {
-            IOUtils.closeQuietly(inputStream);
-            file.delete();
+            hostLatencies.putIfAbsent(scheduleKey, new LatencyHistogram());
+            histogram = hostLatencies.get(scheduleKey);
         }
+        return histogram;
+    }
 
-        if (tempFile == null) {
-            FileUtils.deleteDirectory(tempDir);
-            return null;
+    private Route getRoute(URL url) {
+        if (url.getHost().endsWith(".i2p")) {
+            return Route.I2P;
         }
-
-        // move unpacked file to upper level and remove temporary directory
-        File systemTempDir = new File(System.getProperty("java.io.tmpdir"));
-        String tempFileName = tempFile.getName();
-        boolean isFileMoved = false;
-        int tryCount = 20;
-        File targetFile;
-        do {
-            targetFile = new File(systemTempDir, tempFileName);
-            try {
-                FileUtils.moveFile(tempFile, targetFile);
-                isFileMoved = true;
-            } catch (IOException e) {
-                tempFileName = tempFileName.substring(0, 1) + tempFileName;
-            }
-        } while (!isFileMoved && tryCount-- > 0);
-
-        FileUtils.deleteDirectory(tempDir);
-
-        if (!isFileMoved) {
-            throw new IOException("Can't move file " + tempFile.getName() + " to " + systemTempDir.getName());
+        if (url.getHost().endsWith(".onion")) {
+            return Route.ONION;
         }
-
-        return targetFile;
+        return Route.DIRECT;
     }
 
-    private File createTempFile(String path) throws IOException {
-        String name = FilenameUtils.getName(path);
-        if (name.length() == 0) {
-            return File.createTempFile("tmp", null);
+    public void shutdown() {
+        fetchScheduler.shutdown();
+        idleConnectionTimeoutThread.shutdown();
+        for (MultiThreadedHttpConnectionManager connectionManager : connectionManagers.values()) {
+            connectionManager.shutdown();
         }
-        File systemTempDir = new File(System.getProperty("java.io.tmpdir"));
-        return new File(systemTempDir, name);
     }
 
+    @Override
+    public void collectStatistics(Map<String, Object> statistics) {
+        for (Route route : Route.values()) {
+            String prefix = "download." + route.name().toLowerCase();
+            MultiThreadedHttpConnectionManager connectionManager = connectionManagers.get(route);
+            RouteStatistics routeStatistics = this.routeStatistics.get(route);
+            if (connectionManager == null || routeStatistics == null) {
+                continue;
+            }
+            statistics.put(prefix + ".connections", connectionManager.getConnectionsInPool());
+            statistics.put(prefix + ".requests", routeStatistics.requestCount.get());
+            statistics.put(prefix + ".failures", routeStatistics.failureCount.get());
+            routeStatistics.responseTime.collectStatistics(prefix + ".response", statistics);
+        }
+        statistics.put("download.aborted.timeout", timeoutAbortCount.get());
+        statistics.put("download.aborted.size", sizeAbortCount.get());
+        statistics.put("download.aborted.slow", slowAbortCount.get());
+        statistics.put("download.aborted.cancelled", cancelAbortCount.get());
+        for (Map.Entry<String, LatencyHistogram> entry : hostLatencies.entrySet()) {
+            entry.getValue().collectStatistics("download.host." + entry.getKey() + ".latency", statistics);
+        }
+        if (fetchScheduler != null) {
+            fetchScheduler.collectStatistics(statistics);
+        }
+    }
 
-    public void shutdown() {
-        fetchExecutor.shutdownNow();
+    private static class RouteStatistics {
+        private final AtomicLong requestCount = new AtomicLong();
+        private final AtomicLong failureCount = new AtomicLong();
+        private final TimeStatistics responseTime = new TimeStatistics();
     }
 
     public void setFetchPoolSize(int fetchPoolSize) {
@@ -255,4 +433,59 @@ public class TimedDownloadService implements DownloadService {
     public void setFetchTimeoutSeconds(long fetchTimeoutSeconds) {
         this.fetchTimeoutSeconds = fetchTimeoutSeconds;
     }
+
+    public void setProxyFetchTimeoutSeconds(long proxyFetchTimeoutSeconds) {
+        this.proxyFetchTimeoutSeconds = proxyFetchTimeoutSeconds;
+    }
+
+    public void setMaxFetchesPerHost(int maxFetchesPerHost) {
+        this.maxFetchesPerHost = maxFetchesPerHost;
+    }
+
+    public void setMaxProxyFetches(int maxProxyFetches) {
+        this.maxProxyFetches = maxProxyFetches;
+    }
+
+    public void setMaxQueuedFetches(int maxQueuedFetches) {
+        this.maxQueuedFetches = maxQueuedFetches;
+    }
+
+    public void setMaxTrackedHosts(int maxTrackedHosts) {
+        this.maxTrackedHosts = maxTrackedHosts;
+    }
+
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public void setMaxTotalConnections(int maxTotalConnections) {
+        this.maxTotalConnections = maxTotalConnections;
+    }
+
+    public void setMaxProxyConnections(int maxProxyConnections) {
+        this.maxProxyConnections = maxProxyConnections;
+    }
+
+    public void setIdleConnectionTimeoutSeconds(long idleConnectionTimeoutSeconds) {
+        this.idleConnectionTimeoutSeconds = idleConnectionTimeoutSeconds;
+    }
+
+    public void setMaxDownloadSizeMb(long maxDownloadSizeMb) {
+        this.maxDownloadSizeMb = maxDownloadSizeMb;
+    }
+
+    public void setMinThroughputBytesPerSecond(long minThroughputBytesPerSecond) {
+        this.minThroughputBytesPerSecond = minThroughputBytesPerSecond;
+    }
+
+    public void setThroughputWindowSeconds(long throughputWindowSeconds) {
+        this.throughputWindowSeconds = throughputWindowSeconds;
+    }
+
+    /**
+     * Optional. When set, downloads of already stored books are stopped after the first bytes.
+     */
+    public void setDeduplicator(DownloadDeduplicator deduplicator) {
+        this.deduplicator = deduplicator;
+    }
 }
@@ -0,0 +1,102 @@
+package net.flibusta.download.impl;
+
+import net.flibusta.download.DownloadException;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fails download which exceeds size limit or which is slower than minimal throughput. Throughput is checked
+ * once per window, so short stalls are tolerated. Download is also stopped if reading thread is interrupted.
+ */
+public class WatchdogInputStream extends FilterInputStream {
+
+    /**
+     * Reason of failed download
+     */
+    public static class LimitExceededException extends DownloadException {
+        private final boolean sizeExceeded;
+
+        public LimitExceededException(String message, boolean sizeExceeded) {
+            super(message);
+            this.sizeExceeded = sizeExceeded;
+        }
+
+        /**
+         * @return true if size limit exceeded, false if download is too slow
+         */
+        public boolean isSizeExceeded() {
+            return sizeExceeded;
+        }
+    }
+
+    private final long maxSize;
+    private final long minBytesPerWindow;
+    private final long windowNanos;
+
+    private long size = 0;
+    private long windowStart = System.nanoTime();
+    private long windowSize = 0;
+
+    /**
+     * @param maxSize            max bytes to read, 0 - unlimited
+     * @param minBytesPerSecond  min average throughput during window, 0 - unlimited
+     * @param windowSeconds      throughput check window
+     */
+    public WatchdogInputStream(InputStream in, long maxSize, long minBytesPerSecond, long windowSeconds) {
+        super(in);
+        this.maxSize = maxSize;
+        this.minBytesPerWindow = minBytesPerSecond * windowSeconds;
+        this.windowNanos = TimeUnit.SECONDS.toNanos(windowSeconds);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        count(b < 0 ? -1 : 1);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int count = super.read(b, off, len);
+        count(count);
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long count = super.skip(n);
+        count(count);
+        return count;
+    }
+
+    private void count(long count) throws IOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Download interrupted after " + size + " bytes");
+        }
+        if (count > 0) {
+            size += count;
+            windowSize += count;
+        }
+        if (maxSize > 0 && size > maxSize) {
+            throw new LimitExceededException("Download size exceeds limit of " + maxSize + " bytes", true);
+        }
+        long now = System.nanoTime();
+        if (now - windowStart >= windowNanos) {
+            if (count >= 0 && minBytesPerWindow > 0 && windowSize < minBytesPerWindow) {
+                throw new LimitExceededException("Download is too slow: " + windowSize + " bytes in "
+                        + TimeUnit.NANOSECONDS.toSeconds(now - windowStart) + " seconds", false);
+            }
+            windowStart = now;
+            windowSize = 0;
+        }
+    }
+
+    public long getSize() {
+        return size;
+    }
+}
@@ -8,6 +8,7 @@ import javax.activation.FileDataSource;
 import javax.mail.*;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 import java.io.File;
 import java.io.UnsupportedEncodingException;
@@ -53,48 +54,53 @@ public class BookSender implements Runnable {
     }
 
     public void run() {
-        File fileAttachment = book;
         try {
 //                Authenticator auth = new SMTPAuthenticator(fromAddress, fromPassword);
 //                Session session = Session.getInstance(properties, auth);
             Session session = Session.getInstance(mailSessionProperties);
+            Transport.send(createMessage(session));
+        } catch (MessagingException e) {
+            logger.error("Can't send mail to user for document " + bookId, e);
+            throw new RuntimeException(e.getMessage(), e);
+        } catch (UnsupportedEncodingException e) {
+            logger.error("Can't send mail to user for document " + bookId, e);
+            throw new RuntimeException(e.getMessage(), e);
+        }
 
-            NoIdMimeMessage message = new NoIdMimeMessage(session);
-            message.setMessageId("book." + bookId);
-            message.addFrom(new Address[]{new InternetAddress(fromAddress, fromName)});
-            message.addRecipients(Message.RecipientType.TO, new Address[]{new InternetAddress(targetAddress)});
-
+    }
 
-            message.setSubject("Requested book" + fileAttachment.getName());
+    /**
+     * @return message with the book attached, to be sent by transport connected to the session relay
+     */
+    public MimeMessage createMessage(Session session) throws MessagingException, UnsupportedEncodingException {
+        File fileAttachment = book;
+        NoIdMimeMessage message = new NoIdMimeMessage(session);
+        message.setMessageId("book." + bookId);
+        message.addFrom(new Address[]{new InternetAddress(fromAddress, fromName)});
+        message.addRecipients(Message.RecipientType.TO, new Address[]{new InternetAddress(targetAddress)});
 
-            Multipart multipart = new MimeMultipart();
 
-            // create the message part
-            MimeBodyPart messageBodyPart = new MimeBodyPart();
+        message.setSubject("Requested book" + fileAttachment.getName());
 
-            //fill message
-            messageBodyPart.setText("book " + fileAttachment.getName());
+        Multipart multipart = new MimeMultipart();
 
-            multipart.addBodyPart(messageBodyPart);
+        // create the message part
+        MimeBodyPart messageBodyPart = new MimeBodyPart();
 
-            // Part two is attachment
-            messageBodyPart = new MimeBodyPart();
-            DataSource source = new FileDataSource(fileAttachment); // @todo content type
-            messageBodyPart.setDataHandler(new DataHandler(source));
-            messageBodyPart.setFileName(fileAttachment.getName());
-            multipart.addBodyPart(messageBodyPart);
+        //fill message
+        messageBodyPart.setText("book " + fileAttachment.getName());
 
-            // Put parts in message
-            message.setContent(multipart);
+        multipart.addBodyPart(messageBodyPart);
 
-            Transport.send(message);
-        } catch (MessagingException e) {
-            logger.error("Can't send mail to user for document " + bookId, e);
-            throw new RuntimeException(e.getMessage(), e);
-        } catch (UnsupportedEncodingException e) {
-            logger.error("Can't send mail to user for document " + bookId, e);
-            throw new RuntimeException(e.getMessage(), e);
-        }
+        // Part two is attachment
+        messageBodyPart = new MimeBodyPart();
+        DataSource source = new FileDataSource(fileAttachment); // @todo content type
+        messageBodyPart.setDataHandler(new DataHandler(source));
+        messageBodyPart.setFileName(fileAttachment.getName());
+        multipart.addBodyPart(messageBodyPart);
 
+        // Put parts in message
+        message.setContent(multipart);
+        return message;
     }
 }
@@ -0,0 +1,143 @@
+package net.flibusta.mailer;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Book requested by mail, persisted in {@link MailSpool} until it is delivered.
+ */
+public class MailJob {
+    private final String id;
+    private final String sourceUrl;
+    private final String sourceMd5;
+    private final String format;
+    private final String targetAddress;
+    private final long createdTime;
+    private int attempts = 0;
+    private long nextAttemptTime;
+    private String lastError;
+    private String bookId;
+
+    public MailJob(String id, String sourceUrl, String sourceMd5, String format, String targetAddress, long createdTime) {
+        this.id = id;
+        this.sourceUrl = sourceUrl;
+        this.sourceMd5 = sourceMd5;
+        this.format = format;
+        this.targetAddress = targetAddress;
+        this.createdTime = createdTime;
+        this.nextAttemptTime = createdTime;
+    }
+
+    static MailJob load(File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            properties.load(inputStream);
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+        String id = properties.getProperty("id");
+        String sourceUrl = properties.getProperty("url");
+        String format = properties.getProperty("format");
+        String targetAddress = properties.getProperty("to");
+        if (id == null || sourceUrl == null || format == null || targetAddress == null) {
+            throw new IOException("Incomplete mail job " + file);
+        }
+        try {
+            MailJob job = new MailJob(id, sourceUrl, properties.getProperty("md5"), format, targetAddress,
+                    Long.parseLong(properties.getProperty("created", "0")));
+            job.attempts = Integer.parseInt(properties.getProperty("attempts", "0"));
+            job.nextAttemptTime = Long.parseLong(properties.getProperty("nextAttempt", "0"));
+            job.lastError = properties.getProperty("lastError");
+            job.bookId = properties.getProperty("bookId");
+            return job;
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupted mail job " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the job and forces it to disk
+     */
+    void store(File file) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("id", id);
+        properties.setProperty("url", sourceUrl);
+        if (sourceMd5 != null) {
+            properties.setProperty("md5", sourceMd5);
+        }
+        properties.setProperty("format", format);
+        properties.setProperty("to", targetAddress);
+        properties.setProperty("created", Long.toString(createdTime));
+        properties.setProperty("attempts", Integer.toString(attempts));
+        properties.setProperty("nextAttempt", Long.toString(nextAttemptTime));
+        if (lastError != null) {
+            properties.setProperty("lastError", lastError);
+        }
+        if (bookId != null) {
+            properties.setProperty("bookId", bookId);
+        }
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            properties.store(outputStream, null);
+            outputStream.getFD().sync();
+        } finally {
+            IOUtils.closeQuietly(outputStream);
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getSourceUrl() {
+        return sourceUrl;
+    }
+
+    public String getSourceMd5() {
+        return sourceMd5;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public String getTargetAddress() {
+        return targetAddress;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public long getNextAttemptTime() {
+        return nextAttemptTime;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public String getBookId() {
+        return bookId;
+    }
+
+    /**
+     * @param bookId id of the converted book, used as message id
+     */
+    public void setBookId(String bookId) {
+        this.bookId = bookId;
+    }
+
+    void failed(String error, long nextAttemptTime) {
+        this.attempts++;
+        this.lastError = error;
+        this.nextAttemptTime = nextAttemptTime;
+    }
+}
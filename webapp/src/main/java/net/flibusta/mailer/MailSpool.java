@@ -0,0 +1,411 @@
+package net.flibusta.mailer;
+
+import net.flibusta.concurrent.OverloadException;
+import net.flibusta.concurrent.Priority;
+import net.flibusta.concurrent.PriorityScheduler;
+import net.flibusta.monitor.StatisticsSource;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.MimeMessage;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent queue of books requested by mail. Every job is a file of the spool directory, written and forced to
+ * disk before it is accepted and deleted after the message is sent, so accepted jobs survive restart.
+ * <p/>
+ * Book of due job is converted with mail priority of {@link PriorityScheduler}, then the message is passed to sender
+ * threads. Each sender keeps its SMTP connection to the relay open across messages and closes it after
+ * <code>idleConnectionSeconds</code> without messages. Failed job is retried after delay doubled by every attempt,
+ * job failed <code>maxAttempts</code> times or rejected by the relay for invalid address is moved to
+ * <code>failed</code> subdirectory.
+ */
+public class MailSpool implements StatisticsSource {
+    Logger logger = Logger.getLogger(MailSpool.class);
+
+    /**
+     * Finds or converts the book of the job
+     */
+    public interface BookResolver {
+        /**
+         * @return stored file of the book in the job format
+         * @throws Exception if the book can't be downloaded or converted, the job is retried
+         */
+        File resolveBook(MailJob job) throws Exception;
+    }
+
+    private static final String JOB_SUFFIX = ".job";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String FAILED_DIR = "failed";
+    private static final long OVERLOAD_DELAY_MILLIS = 5000;
+
+    private PriorityScheduler priorityScheduler;
+    private BookResolver bookResolver;
+    private Properties mailSessionProperties;
+    private String fromAddress;
+    private String spoolPath;
+    private int senders = 1;
+    private int maxQueued = 1000;
+    private int maxAttempts = 5;
+    private long retryDelaySeconds = 60;
+    private long maxRetryDelaySeconds = 3600;
+    private long idleConnectionSeconds = 30;
+
+    private File spoolDir;
+    private File failedDir;
+    private Session session;
+    private ScheduledExecutorService dispatcher;
+    private final BlockingQueue<Delivery> deliveries = new LinkedBlockingQueue<Delivery>();
+    private final List<Thread> senderThreads = new ArrayList<Thread>();
+    private volatile boolean shutdown = false;
+
+    private final AtomicInteger queuedCount = new AtomicInteger();
+    private final AtomicLong deliveredCount = new AtomicLong();
+    private final AtomicLong retriedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong connectionCount = new AtomicLong();
+
+    public void init() throws IOException {
+        spoolDir = new File(spoolPath);
+        failedDir = new File(spoolDir, FAILED_DIR);
+        FileUtils.forceMkdir(failedDir);
+        session = Session.getInstance(mailSessionProperties);
+        dispatcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "mail-spool");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (int i = 0; i < senders; i++) {
+            Thread sender = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    send();
+                }
+            }, "mail-sender-" + i);
+            sender.setDaemon(true);
+            sender.start();
+            senderThreads.add(sender);
+        }
+        recover();
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        if (dispatcher != null) {
+            dispatcher.shutdownNow();
+        }
+        for (Thread sender : senderThreads) {
+            sender.interrupt();
+        }
+    }
+
+    /**
+     * Schedules jobs left in spool by previous run
+     */
+    private void recover() {
+        File[] files = spoolDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile();
+            }
+        });
+        int recovered = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                file.delete(); // job was not accepted
+            } else if (file.getName().endsWith(JOB_SUFFIX)) {
+                try {
+                    MailJob job = MailJob.load(file);
+                    queuedCount.incrementAndGet();
+                    schedule(job, job.getNextAttemptTime() - System.currentTimeMillis());
+                    recovered++;
+                } catch (IOException e) {
+                    logger.error("Can't load mail job: " + e.getMessage());
+                    file.renameTo(new File(failedDir, file.getName()));
+                }
+            }
+        }
+        logger.info("Mail spool started, " + recovered + " jobs recovered");
+    }
+
+    /**
+     * Accepts mail job, the job is on disk when the method returns
+     *
+     * @throws OverloadException if spool is full
+     */
+    public MailJob submit(String sourceUrl, String sourceMd5, String format, String targetAddress) throws IOException {
+        if (queuedCount.incrementAndGet() > maxQueued) {
+            queuedCount.decrementAndGet();
+            throw new OverloadException("Mail queue is full", OverloadException.DEFAULT_RETRY_AFTER_SECONDS);
+        }
+        MailJob job = new MailJob(UUID.randomUUID().toString().replace("-", ""), sourceUrl, sourceMd5, format,
+                targetAddress, System.currentTimeMillis());
+        try {
+            store(job);
+        } catch (IOException e) {
+            queuedCount.decrementAndGet();
+            throw e;
+        }
+        schedule(job, 0);
+        logger.debug("Mail job " + job.getId() + " queued: url=" + sourceUrl + " to=" + targetAddress);
+        return job;
+    }
+
+    private void schedule(final MailJob job, long delayMillis) {
+        try {
+            dispatcher.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch(job);
+                }
+            }, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shut down, job stays in spool
+        }
+    }
+
+    private void dispatch(final MailJob job) {
+        try {
+            priorityScheduler.execute(Priority.MAIL, new Runnable() {
+                @Override
+                public void run() {
+                    resolve(job);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            schedule(job, OVERLOAD_DELAY_MILLIS); // not an attempt
+        }
+    }
+
+    private void resolve(MailJob job) {
+        File book;
+        try {
+            book = bookResolver.resolveBook(job);
+        } catch (Exception e) {
+            failed(job, e.getMessage(), false);
+            return;
+        }
+        if (book == null) {
+            failed(job, "Book is not found", false);
+            return;
+        }
+        deliveries.add(new Delivery(job, book));
+    }
+
+    /**
+     * Sends messages by one connection while they come, reconnects after idle timeout or failure
+     */
+    private void send() {
+        Transport transport = null;
+        while (!shutdown) {
+            Delivery delivery;
+            try {
+                delivery = deliveries.poll(idleConnectionSeconds, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (delivery == null) {
+                transport = close(transport);
+                continue;
+            }
+            MailJob job = delivery.job;
+            if (!delivery.book.exists()) { // deleted by storage quota while queued
+                failed(job, "Book file " + delivery.book.getName() + " was deleted before sending", false);
+                continue;
+            }
+            try {
+                MimeMessage message = new BookSender(delivery.book, job.getBookId(), job.getFormat(),
+                        job.getTargetAddress(), mailSessionProperties, fromAddress, fromAddress).createMessage(session);
+                if (transport == null || !transport.isConnected()) {
+                    close(transport);
+                    transport = session.getTransport("smtp");
+                    transport.connect();
+                    connectionCount.incrementAndGet();
+                }
+                transport.sendMessage(message, message.getAllRecipients());
+                delivered(job);
+            } catch (AddressException e) {
+                failed(job, e.getMessage(), true);
+            } catch (SendFailedException e) {
+                Address[] invalidAddresses = e.getInvalidAddresses();
+                failed(job, e.getMessage(), invalidAddresses != null && invalidAddresses.length > 0);
+            } catch (MessagingException e) {
+                transport = close(transport); // connection state is unknown
+                failed(job, e.getMessage(), false);
+            } catch (UnsupportedEncodingException e) {
+                failed(job, e.getMessage(), true);
+            } catch (RuntimeException e) {
+                logger.error("Mail job " + job.getId() + " failed", e);
+                transport = close(transport);
+                failed(job, e.toString(), false);
+            }
+        }
+        close(transport);
+    }
+
+    private Transport close(Transport transport) {
+        if (transport != null) {
+            try {
+                transport.close();
+            } catch (MessagingException e) {
+                logger.debug("Can't close SMTP connection: " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    private void delivered(MailJob job) {
+        getJobFile(job).delete();
+        queuedCount.decrementAndGet();
+        deliveredCount.incrementAndGet();
+        logger.debug("Mail job " + job.getId() + " delivered to " + job.getTargetAddress());
+    }
+
+    /**
+     * @param permanent true if retry can't succeed
+     */
+    void failed(MailJob job, String error, boolean permanent) {
+        long delay = Math.min(TimeUnit.SECONDS.toMillis(maxRetryDelaySeconds),
+                TimeUnit.SECONDS.toMillis(retryDelaySeconds) << Math.min(job.getAttempts(), 20));
+        job.failed(error, System.currentTimeMillis() + delay);
+        if (permanent || job.getAttempts() >= maxAttempts) {
+            logger.warn("Mail job " + job.getId() + " failed after " + job.getAttempts() + " attempts: " + error);
+            File jobFile = getJobFile(job);
+            try {
+                store(job);
+            } catch (IOException e) {
+                logger.error("Can't update mail job " + job.getId() + ": " + e.getMessage());
+            }
+            jobFile.renameTo(new File(failedDir, jobFile.getName()));
+            queuedCount.decrementAndGet();
+            failedCount.incrementAndGet();
+            return;
+        }
+        logger.info("Mail job " + job.getId() + " attempt " + job.getAttempts() + " failed, retry in " + delay / 1000 + " s: " + error);
+        try {
+            store(job);
+        } catch (IOException e) {
+            logger.error("Can't update mail job " + job.getId() + ": " + e.getMessage()); // previous state is retried
+        }
+        retriedCount.incrementAndGet();
+        schedule(job, delay);
+    }
+
+    /**
+     * Job file is replaced by rename, so it is never seen partially written
+     */
+    private void store(MailJob job) throws IOException {
+        File tempFile = new File(spoolDir, job.getId() + TEMP_SUFFIX);
+        try {
+            job.store(tempFile);
+            File jobFile = getJobFile(job);
+            if (!tempFile.renameTo(jobFile) && !(jobFile.delete() && tempFile.renameTo(jobFile))) {
+                throw new IOException("Can't rename " + tempFile + " to " + jobFile);
+            }
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    private File getJobFile(MailJob job) {
+        return new File(spoolDir, job.getId() + JOB_SUFFIX);
+    }
+
+    @Override
+    public void collectStatistics(Map<String, Object> statistics) {
+        statistics.put("mailSpool.queued", queuedCount.get());
+        statistics.put("mailSpool.delivered", deliveredCount.get());
+        statistics.put("mailSpool.retried", retriedCount.get());
+        statistics.put("mailSpool.failed", failedCount.get());
+        statistics.put("mailSpool.connections", connectionCount.get());
+    }
+
+    private static class Delivery {
+        private final MailJob job;
+        private final File book;
+
+        private Delivery(MailJob job, File book) {
+            this.job = job;
+            this.book = book;
+        }
+    }
+
+    public void setPriorityScheduler(PriorityScheduler priorityScheduler) {
+        this.priorityScheduler = priorityScheduler;
+    }
+
+    public void setBookResolver(BookResolver bookResolver) {
+        this.bookResolver = bookResolver;
+    }
+
+    public void setMailSessionProperties(Properties mailSessionProperties) {
+        this.mailSessionProperties = mailSessionProperties;
+    }
+
+    public void setFromAddress(String fromAddress) {
+        this.fromAddress = fromAddress;
+    }
+
+    public void setSpoolPath(String spoolPath) {
+        this.spoolPath = spoolPath;
+    }
+
+    /**
+     * @param senders threads sending messages, each keeps its own SMTP connection
+     */
+    public void setSenders(int senders) {
+        this.senders = senders;
+    }
+
+    /**
+     * @param maxQueued jobs in spool over which new jobs are rejected
+     */
+    public void setMaxQueued(int maxQueued) {
+        this.maxQueued = maxQueued;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @param retryDelaySeconds delay after the first failed attempt, doubled by every next one
+     */
+    public void setRetryDelaySeconds(long retryDelaySeconds) {
+        this.retryDelaySeconds = retryDelaySeconds;
+    }
+
+    public void setMaxRetryDelaySeconds(long maxRetryDelaySeconds) {
+        this.maxRetryDelaySeconds = maxRetryDelaySeconds;
+    }
+
+    public void setIdleConnectionSeconds(long idleConnectionSeconds) {
+        this.idleConnectionSeconds = idleConnectionSeconds;
+    }
+}
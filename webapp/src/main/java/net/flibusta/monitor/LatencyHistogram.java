@@ -0,0 +1,38 @@
+package net.flibusta.monitor;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts measured durations in fixed buckets. Bucket "le&lt;N&gt;ms" counts durations not longer than N ms and
+ * longer than upper bound of previous bucket.
+ */
+public class LatencyHistogram {
+    private static final long[] BOUNDS_MS = {100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS_MS.length + 1);
+    private final TimeStatistics timeStatistics = new TimeStatistics();
+
+    public void record(long nanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = 0;
+        while (bucket < BOUNDS_MS.length && millis > BOUNDS_MS[bucket]) {
+            bucket++;
+        }
+        buckets.incrementAndGet(bucket);
+        timeStatistics.record(nanos);
+    }
+
+    public long getCount(int bucket) {
+        return buckets.get(bucket);
+    }
+
+    public void collectStatistics(String prefix, Map<String, Object> statistics) {
+        timeStatistics.collectStatistics(prefix, statistics);
+        for (int i = 0; i < BOUNDS_MS.length; i++) {
+            statistics.put(prefix + ".le" + BOUNDS_MS[i] + "ms", buckets.get(i));
+        }
+        statistics.put(prefix + ".gt" + BOUNDS_MS[BOUNDS_MS.length - 1] + "ms", buckets.get(BOUNDS_MS.length));
+    }
+}
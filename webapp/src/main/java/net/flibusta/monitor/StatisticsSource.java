@@ -0,0 +1,11 @@
+package net.flibusta.monitor;
+
+import java.util.Map;
+
+/**
+ * Service which exposes its runtime counters on statistics page.
+ */
+public interface StatisticsSource {
+
+    void collectStatistics(Map<String, Object> statistics);
+}
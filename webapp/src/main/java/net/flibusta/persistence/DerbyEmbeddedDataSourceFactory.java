@@ -1,11 +1,25 @@
 package net.flibusta.persistence;
 
+import net.flibusta.monitor.StatisticsSource;
+import net.flibusta.monitor.TimeStatistics;
+import org.apache.commons.dbcp.DataSourceConnectionFactory;
+import org.apache.commons.dbcp.PoolableConnectionFactory;
+import org.apache.commons.dbcp.PoolingDataSource;
+import org.apache.commons.pool.KeyedObjectPoolFactory;
+import org.apache.commons.pool.impl.GenericKeyedObjectPool;
+import org.apache.commons.pool.impl.GenericKeyedObjectPoolFactory;
+import org.apache.commons.pool.impl.GenericObjectPool;
 import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.apache.log4j.Logger;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
 
 import javax.sql.DataSource;
+import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Map;
 
-public class DerbyEmbeddedDataSourceFactory  {
+public class DerbyEmbeddedDataSourceFactory implements StatisticsSource {
+    Logger logger = Logger.getLogger(DerbyEmbeddedDataSourceFactory.class);
 
     private  EmbeddedDataSource dataSource = new EmbeddedDataSource();
 
@@ -13,19 +27,71 @@ public class DerbyEmbeddedDataSourceFactory  {
     private String password;
     private String databaseName;
 
+    private boolean pooled = true;
+    private int maxActive = 20;
+    private int maxIdle = 10;
+    private long maxWaitMillis = 10000;
+    private boolean poolPreparedStatements = true;
+    private int maxOpenPreparedStatements = 50;
+
+    private GenericObjectPool connectionPool;
+    private final TimeStatistics connectionWaitTime = new TimeStatistics();
+
     public DataSource createDataSource() {
         dataSource.setCreateDatabase("create");
         dataSource.setUser(user);
         dataSource.setPassword(password);
         dataSource.setDatabaseName(databaseName);
-        return dataSource;
+        if (!pooled) {
+            return dataSource;
+        }
+
+        connectionPool = new GenericObjectPool(null, maxActive, GenericObjectPool.WHEN_EXHAUSTED_BLOCK, maxWaitMillis, maxIdle);
+        KeyedObjectPoolFactory statementPoolFactory = null;
+        if (poolPreparedStatements) {
+            // statements are cached per connection
+            statementPoolFactory = new GenericKeyedObjectPoolFactory(null, -1, GenericKeyedObjectPool.WHEN_EXHAUSTED_FAIL,
+                    0, 1, maxOpenPreparedStatements);
+        }
+        // registers itself as factory of the pool
+        new PoolableConnectionFactory(new DataSourceConnectionFactory(dataSource), connectionPool, statementPoolFactory,
+                null, false, true);
+        logger.info("Database connection pool: maxActive=" + maxActive + " maxIdle=" + maxIdle
+                + " poolPreparedStatements=" + poolPreparedStatements);
+        return new DelegatingDataSource(new PoolingDataSource(connectionPool)) {
+            @Override
+            public Connection getConnection() throws SQLException {
+                long start = System.nanoTime();
+                try {
+                    return super.getConnection();
+                } finally {
+                    connectionWaitTime.record(System.nanoTime() - start);
+                }
+            }
+        };
     }
 
     public void shutdown() throws SQLException {
+        if (connectionPool != null) {
+            try {
+                connectionPool.close();
+            } catch (Exception e) {
+                logger.error("Can't close database connection pool", e);
+            }
+        }
         dataSource.setShutdownDatabase("shutdown");
         dataSource.getConnection();
     }
 
+    @Override
+    public void collectStatistics(Map<String, Object> statistics) {
+        if (connectionPool == null) {
+            return;
+        }
+        statistics.put("database.pool.active", connectionPool.getNumActive());
+        statistics.put("database.pool.idle", connectionPool.getNumIdle());
+        connectionWaitTime.collectStatistics("database.pool.wait", statistics);
+    }
 
     public void setUser(String user) {
         this.user = user;
@@ -38,4 +104,28 @@ public class DerbyEmbeddedDataSourceFactory  {
     public void setDatabaseName(String databaseName) {
         this.databaseName = databaseName;
     }
+
+    public void setPooled(boolean pooled) {
+        this.pooled = pooled;
+    }
+
+    public void setMaxActive(int maxActive) {
+        this.maxActive = maxActive;
+    }
+
+    public void setMaxIdle(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    public void setMaxWaitMillis(long maxWaitMillis) {
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    public void setPoolPreparedStatements(boolean poolPreparedStatements) {
+        this.poolPreparedStatements = poolPreparedStatements;
+    }
+
+    public void setMaxOpenPreparedStatements(int maxOpenPreparedStatements) {
+        this.maxOpenPreparedStatements = maxOpenPreparedStatements;
+    }
 }
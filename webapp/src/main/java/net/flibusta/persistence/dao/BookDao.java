@@ -1,13 +1,36 @@
 package net.flibusta.persistence.dao;
 
 import java.io.File;
+import java.util.Collection;
+import java.util.Map;
 
 public interface BookDao {
     File findBook(String bookId, String type);
 
+    /**
+     * @return stored file with size and CRC32 recorded when the book was added, or null
+     */
+    BookFile findBookFile(String bookId, String type);
+
+    /**
+     * @return stored files of the books keyed by book id, books not stored in the format are missing
+     */
+    Map<String, BookFile> findBooks(Collection<String> bookIds, String type);
+
     String findBookPath(String bookId, String type);
 
+    /**
+     * Reports stored file of the book sent to a user. Lookups are not counted as access, most of them are
+     * existence checks of conversions.
+     */
+    void markAccessed(String bookId, String type, File file);
+
     File addBook(String bookId, String sourceFormat, File sourceFile);
 
     void deleteBook(String bookId);
+
+    /**
+     * Deletes stored file of the book in the format, other formats are kept
+     */
+    void deleteBook(String bookId, String format);
 }
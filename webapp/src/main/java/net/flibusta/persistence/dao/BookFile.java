@@ -0,0 +1,43 @@
+package net.flibusta.persistence.dao;
+
+import java.io.File;
+
+/**
+ * Stored book file with its size and CRC32 recorded when the book was added
+ */
+public class BookFile {
+    public static final long UNKNOWN = -1;
+
+    private final File file;
+    private final long size;
+    private final long crc32;
+
+    /**
+     * @param size  {@link #UNKNOWN} for books stored before metadata was recorded
+     * @param crc32 {@link #UNKNOWN} for books stored before metadata was recorded
+     */
+    public BookFile(File file, long size, long crc32) {
+        this.file = file;
+        this.size = size;
+        this.crc32 = crc32;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getCrc32() {
+        return crc32;
+    }
+
+    /**
+     * @return true if recorded size and CRC32 are known and the file was not changed since
+     */
+    public boolean isMetadataValid() {
+        return size != UNKNOWN && crc32 != UNKNOWN && file.length() == size;
+    }
+}
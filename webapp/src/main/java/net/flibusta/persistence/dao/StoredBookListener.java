@@ -0,0 +1,17 @@
+package net.flibusta.persistence.dao;
+
+import java.io.File;
+
+/**
+ * Notified of stored book files accessed, stored and deleted through {@link BookDao}.
+ */
+public interface StoredBookListener {
+    void bookAccessed(String bookId, String format, File file);
+
+    void bookStored(String bookId, String format, File file);
+
+    /**
+     * @param format deleted format or null if all formats of the book are deleted
+     */
+    void bookDeleted(String bookId, String format);
+}
@@ -0,0 +1,22 @@
+package net.flibusta.persistence.dao;
+
+import java.io.File;
+
+/**
+ * Dao which can list every stored file it keeps, e.g. to keep stored files under quota. Metadata index keeps
+ * hashes of ids only, so index daos are not inventories.
+ */
+public interface StoredFileInventory {
+
+    interface Handler {
+        /**
+         * @param size recorded size or {@link BookFile#UNKNOWN}
+         */
+        void stored(String id, String format, File file, long size);
+    }
+
+    /**
+     * Reports existing stored files one by one
+     */
+    void findStoredFiles(Handler handler);
+}
@@ -1,9 +1,17 @@
 package net.flibusta.persistence.dao;
 
+import java.util.Collection;
+import java.util.Map;
+
 public interface UrlDao {
 
     UrlInfo findUrlInfo(String url);
 
+    /**
+     * @return references of known urls keyed by url as given, unknown urls are missing
+     */
+    Map<String, UrlInfo> findUrlInfos(Collection<String> urls);
+
     void addUrlReference(String url, String referencedBookId, String referencedBookFormat);
 
     void removeUrlReference(String url);
@@ -1,20 +1,21 @@
 package net.flibusta.persistence.dao.impl;
 
 import net.flibusta.persistence.dao.BatchDao;
-import org.apache.commons.io.FileUtils;
+import net.flibusta.persistence.dao.BookFile;
+import net.flibusta.persistence.dao.StoredFileInventory;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.support.JdbcDaoSupport;
 
 import java.io.File;
-import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.*;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
 
-public class BatchDaoSql extends JdbcDaoSupport implements BatchDao {
+public class BatchDaoSql extends JdbcDaoSupport implements BatchDao, StoredFileInventory {
 
 
-    private File fileStoragePath;
-
-    private Set<String> createdDirs = Collections.synchronizedSet(new HashSet<String>(512));
+    private FileStorage fileStorage;
 
 
     @Override
@@ -29,7 +30,7 @@ public class BatchDaoSql extends JdbcDaoSupport implements BatchDao {
         }
 
         String file_name = (String) rows.get(0).get("file_name");
-        if (new File(fileStoragePath, file_name).exists()) {
+        if (fileStorage.getFile(file_name).exists()) {
             return file_name;
         } else {
             // file missing
@@ -40,59 +41,43 @@ public class BatchDaoSql extends JdbcDaoSupport implements BatchDao {
 
     @Override
     public File addBatch(String batchId, String batchFormat, File batchFile) {
-
-//        String storageFileName = batchId + ".zip";
-        String storageFileName = makeStorageFileName(batchId, batchFormat, batchFile);
-        File storageFile = new File(fileStoragePath, storageFileName);
-
-        makeDirs(storageFile);
-
-        if (!storageFile.equals(batchFile)) {
-            if (!storageFile.exists()) {
-                try {
-                    FileUtils.moveFile(batchFile, storageFile);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            } else {
-                logger.warn("addBook: file already exists: bookId=" + batchId + " file=" + storageFileName);
-                batchFile.delete();
-            }
-        }
-
+        String storageFileName = fileStorage.storeBatch(batchId, batchFormat, batchFile);
         getJdbcTemplate().update("insert into batch (batchid, format, file_name) values (?, ?, ?)", batchId, batchFormat, storageFileName);
-        return storageFile;
+        return fileStorage.getFile(storageFileName);
     }
 
     @Override
     public void delete(String batchId, String batchFormat) {
         String batchPath = findBatchPath(batchId, batchFormat);
         if (batchPath != null) {
-            new File(fileStoragePath, batchPath).delete();
+            fileStorage.getFile(batchPath).delete();
         }
         getJdbcTemplate().update("delete from batch where batchid = ? and format = ?", batchId, batchFormat);
     }
 
 
-    private void makeDirs(File storageFile) {
-        File parentFile = storageFile.getParentFile();
-        if (createdDirs.contains(parentFile.getPath())) {
-            return;
-        }
-        if (!parentFile.exists()) {
-            parentFile.mkdirs();
-        }
-        createdDirs.add(parentFile.getPath());
+    /**
+     * Batch size is not recorded
+     */
+    @Override
+    public void findStoredFiles(final Handler handler) {
+        getJdbcTemplate().query("select batchid, format, file_name from batch", new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+                File file = fileStorage.getFile(rs.getString("file_name"));
+                if (file.exists()) {
+                    handler.stored(rs.getString("batchid").trim(), rs.getString("format"), file, BookFile.UNKNOWN);
+                }
+            }
+        });
     }
 
-    private String makeStorageFileName(String bookId, String format, File sourceFile) {
-        String dirPrefix = new SimpleDateFormat("'batch/'yyyy/MM/dd/").format(new Date());
-        return dirPrefix + bookId + ".zip";
+    public void setFileStoragePath(String fileStoragePath) {
+        this.fileStorage = new FileStorage(new File(fileStoragePath));
     }
 
-
-    public void setFileStoragePath(String fileStoragePath) {
-        this.fileStoragePath = new File(fileStoragePath);
+    public void setFileStorage(FileStorage fileStorage) {
+        this.fileStorage = fileStorage;
     }
 
 }
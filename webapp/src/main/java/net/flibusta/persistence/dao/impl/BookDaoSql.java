@@ -1,32 +1,63 @@
 package net.flibusta.persistence.dao.impl;
 
 import net.flibusta.persistence.dao.BookDao;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.io.IOUtils;
+import net.flibusta.persistence.dao.BookFile;
+import net.flibusta.persistence.dao.StoredFileInventory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.support.JdbcDaoSupport;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.text.SimpleDateFormat;
-import java.util.*;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 
-public class BookDaoSql extends JdbcDaoSupport implements BookDao {
+public class BookDaoSql extends JdbcDaoSupport implements BookDao, StoredFileInventory {
 
 
-    private File fileStoragePath;
+    private FileStorage fileStorage;
 
-    private Set<String> createdDirs = Collections.synchronizedSet(new HashSet<String>(512));
 
+    /**
+     * Adds size and CRC32 columns to book table created before they were introduced
+     */
+    @Override
+    protected void initDao() throws Exception {
+        getJdbcTemplate().execute(new ConnectionCallback<Object>() {
+            @Override
+            public Object doInConnection(Connection connection) throws SQLException, DataAccessException {
+                addColumnIfMissing(connection, "file_size", "bigint");
+                addColumnIfMissing(connection, "crc32", "bigint");
+                return null;
+            }
+        });
+    }
+
+    private void addColumnIfMissing(Connection connection, String column, String type) throws SQLException {
+        ResultSet columns = connection.getMetaData().getColumns(null, null, "BOOK", column.toUpperCase());
+        try {
+            if (columns.next()) {
+                return;
+            }
+        } finally {
+            columns.close();
+        }
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute("alter table book add column " + column + " " + type);
+        } finally {
+            statement.close();
+        }
+    }
 
     @Override
     public File findBook(String bookId, String type) {
@@ -35,8 +66,8 @@ public class BookDaoSql extends JdbcDaoSupport implements BookDao {
         if (fileName == null) {
             return null;
         }
-        File file = new File(fileStoragePath, fileName);
-        if (!file.exists()) {
+        File file = fileStorage.locateBook(bookId, type, fileName);
+        if (file == null) {
             getJdbcTemplate().update("delete from book where bookid = ? and format = ?", bookId, type);
             return null;
         }
@@ -44,8 +75,8 @@ public class BookDaoSql extends JdbcDaoSupport implements BookDao {
     }
 
     @Override
-    public String findBookPath(String bookId, String type) {
-        List<Map<String, Object>> rows = getJdbcTemplate().queryForList("select file_name from book where bookid = ? and format = ?", bookId, type);
+    public BookFile findBookFile(String bookId, String type) {
+        List<Map<String, Object>> rows = getJdbcTemplate().queryForList("select file_name, file_size, crc32 from book where bookid = ? and format = ?", bookId, type);
         if (rows.size() == 0) {
             return null;
         }
@@ -53,52 +84,87 @@ public class BookDaoSql extends JdbcDaoSupport implements BookDao {
             getJdbcTemplate().update("delete from book where bookid = ? and format = ?", bookId, type);
             throw new RuntimeException("Too many files for " + bookId + " in format " + type);
         }
-
-        return (String) rows.get(0).get("file_name");
+        Map<String, Object> row = rows.get(0);
+        File file = fileStorage.locateBook(bookId, type, (String) row.get("file_name"));
+        if (file == null) {
+            getJdbcTemplate().update("delete from book where bookid = ? and format = ?", bookId, type);
+            return null;
+        }
+        return new BookFile(file, toLong(row.get("file_size")), toLong(row.get("crc32")));
     }
 
     @Override
-    public File addBook(String bookId, String sourceFormat, File sourceFile) {
-        String storageFileName = makeStorageFileName(bookId, sourceFormat, sourceFile);
-        boolean hasToCompress = sourceFormat.equals("fb2");
-        if (hasToCompress) {
-            storageFileName = storageFileName + ".zip";
+    public Map<String, BookFile> findBooks(Collection<String> bookIds, String type) {
+        Map<String, BookFile> books = new HashMap<String, BookFile>(bookIds.size() * 2);
+        for (List<String> chunk : InList.chunks(new HashSet<String>(bookIds))) {
+            Object[] args = new Object[chunk.size() + 1];
+            args[0] = type;
+            for (int i = 0; i < chunk.size(); i++) {
+                args[i + 1] = chunk.get(i);
+            }
+            List<Map<String, Object>> rows = getJdbcTemplate().queryForList(
+                    "select bookid, file_name, file_size, crc32 from book where format = ? and bookid in (" + InList.placeholders(chunk.size()) + ")", args);
+            for (Map<String, Object> row : rows) {
+                String bookId = ((String) row.get("bookid")).trim();
+                File file = fileStorage.locateBook(bookId, type, (String) row.get("file_name"));
+                if (file == null) {
+                    getJdbcTemplate().update("delete from book where bookid = ? and format = ?", bookId, type);
+                    continue;
+                }
+                books.put(bookId, new BookFile(file, toLong(row.get("file_size")), toLong(row.get("crc32"))));
+            }
         }
+        return books;
+    }
 
+    private long toLong(Object value) {
+        return value != null ? ((Number) value).longValue() : BookFile.UNKNOWN;
+    }
 
-        File storageFile = new File(fileStoragePath, storageFileName);
-/*
-        while (storageFile.exists()) { // avoid name collision
-            storageFileName = storageFile.getName().substring(0, 1) + storageFile.getName();
-            storageFile = new File(storageFile.getParentFile(), storageFileName);
+    @Override
+    public String findBookPath(String bookId, String type) {
+        List<Map<String, Object>> rows = getJdbcTemplate().queryForList("select file_name from book where bookid = ? and format = ?", bookId, type);
+        if (rows.size() == 0) {
+            return null;
         }
-*/
-        makeDirs(storageFile);
-
-        if (!storageFile.equals(sourceFile)) {
-            if (!storageFile.exists()) {
-                if (!hasToCompress) {
-                    try {
-                        FileUtils.moveFile(sourceFile, storageFile);
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                } else {
-                    try {
-                        zipFile(sourceFile, storageFile);
-                        sourceFile.delete();
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
+        if (rows.size() > 1) {
+            getJdbcTemplate().update("delete from book where bookid = ? and format = ?", bookId, type);
+            throw new RuntimeException("Too many files for " + bookId + " in format " + type);
+        }
+
+        return (String) rows.get(0).get("file_name");
+    }
+
+    @Override
+    public void findStoredFiles(final Handler handler) {
+        getJdbcTemplate().query("select bookid, format, file_name, file_size from book", new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+                String bookId = rs.getString("bookid").trim();
+                String format = rs.getString("format");
+                File file = fileStorage.locateBook(bookId, format, rs.getString("file_name"));
+                if (file != null) {
+                    long size = rs.getLong("file_size");
+                    handler.stored(bookId, format, file, rs.wasNull() ? BookFile.UNKNOWN : size);
                 }
-            } else {
-                logger.warn("addBook: file already exists: bookId=" + bookId + " file=" + storageFileName);
-                sourceFile.delete();
             }
-        }
+        });
+    }
 
-        getJdbcTemplate().update("insert into book (bookid, format, file_name) values (?, ?, ?)", bookId, sourceFormat, storageFileName);
-        return storageFile;
+    /**
+     * Access is not tracked
+     */
+    @Override
+    public void markAccessed(String bookId, String type, File file) {
+    }
+
+    @Override
+    public File addBook(String bookId, String sourceFormat, File sourceFile) {
+        // batch ZIP entries are made of recorded size and CRC
+        StoredFile storedFile = fileStorage.storeBook(bookId, sourceFormat, sourceFile);
+        getJdbcTemplate().update("insert into book (bookid, format, file_name, file_size, crc32) values (?, ?, ?, ?, ?)",
+                bookId, sourceFormat, storedFile.getFileName(), storedFile.getSize(), storedFile.getCrc32());
+        return storedFile.getFile();
     }
 
     @Override
@@ -113,59 +179,33 @@ public class BookDaoSql extends JdbcDaoSupport implements BookDao {
                     @Override
                     public void processRow(ResultSet rs) throws SQLException {
                         String file_name = rs.getString("file_name");
-                        FileUtils.deleteQuietly(new File(fileStoragePath, file_name));
+                        fileStorage.delete(file_name);
                     }
                 }
         );
         getJdbcTemplate().update("delete from book where bookid = ?", bookId);
     }
 
-
-    private void makeDirs(File storageFile) {
-        File parentFile = storageFile.getParentFile();
-        if (createdDirs.contains(parentFile.getPath())) {
+    @Override
+    public void deleteBook(String bookId, String format) {
+        String fileName = findBookPath(bookId, format);
+        if (fileName == null) {
             return;
         }
-        if (!parentFile.exists()) {
-            parentFile.mkdirs();
+        File file = fileStorage.locateBook(bookId, format, fileName);
+        if (file != null) {
+            file.delete();
         }
-        createdDirs.add(parentFile.getPath());
-    }
-
-    private String makeStorageFileName(String bookId, String format, File sourceFile) {
-        String dirPrefix = new SimpleDateFormat("yyyy/MM/dd/").format(new Date());
-        String sourceFileName = sourceFile.getName();
-        String baseName = FilenameUtils.getBaseName(sourceFileName).replaceAll("[^\\p{Alnum}\\.\\_\\-]", "");
-        return dirPrefix + baseName + "." + format;
-//        return bookId.substring(0, 2) + "/" + baseName + "." + format;
+        getJdbcTemplate().update("delete from book where bookid = ? and format = ?", bookId, format);
     }
 
 
     public void setFileStoragePath(String fileStoragePath) {
-        this.fileStoragePath = new File(fileStoragePath);
+        this.fileStorage = new FileStorage(new File(fileStoragePath));
     }
 
-
-    private File zipFile(File source, File target) throws IOException {
-        ZipOutputStream zipOutputStream = new ZipOutputStream(new FileOutputStream(target));
-        zipOutputStream.setLevel(ZipOutputStream.DEFLATED);
-
-        FileInputStream fileInputStream = new FileInputStream(source);
-        try {
-            byte[] buffer = new byte[8 * 1024];
-            ZipEntry entry = new ZipEntry(source.getName());
-            zipOutputStream.putNextEntry(entry);
-            int read;
-            while ((read = fileInputStream.read(buffer)) > 0) {
-                zipOutputStream.write(buffer, 0, read);
-            }
-        } catch (Exception e) {
-            throw new IOException(e);
-        } finally {
-            IOUtils.closeQuietly(fileInputStream);
-            IOUtils.closeQuietly(zipOutputStream);
-        }
-        return target;
+    public void setFileStorage(FileStorage fileStorage) {
+        this.fileStorage = fileStorage;
     }
 
 }
@@ -0,0 +1,257 @@
+package net.flibusta.persistence.dao.impl;
+
+import net.flibusta.monitor.StatisticsSource;
+import net.flibusta.persistence.dao.BookDao;
+import net.flibusta.persistence.dao.BookFile;
+import net.flibusta.persistence.dao.StoredBookListener;
+import net.flibusta.util.LruCache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps recently requested stored files in memory, so lookup of already converted book touches neither database
+ * nor file system. Missing formats are cached too. All cached formats of the book are invalidated when the book
+ * is changed through this dao, every cached lookup is reloaded after revalidation timeout. Books marked accessed,
+ * stored and deleted are reported to {@link StoredBookListener} if it is set, lookups are not.
+ */
+public class CachingBookDao implements BookDao, StatisticsSource {
+
+    private BookDao bookDao;
+    private int maxSize = 10000;
+    private long revalidateSeconds = 600;
+    private StoredBookListener storedBookListener;
+
+    private LruCache<String, CachedBook> cache;
+
+    public void init() {
+        cache = new LruCache<String, CachedBook>(maxSize, 16);
+    }
+
+    @Override
+    public File findBook(String bookId, String type) {
+        CachedBook book = cache.get(bookId);
+        if (book != null) {
+            Lookup lookup = book.getFile(type);
+            if (isValid(lookup)) {
+                return (File) lookup.value;
+            }
+        }
+        long invalidationCount = cache.getInvalidationCount();
+        File file = bookDao.findBook(bookId, type);
+        book = getOrCreate(bookId, book, invalidationCount);
+        if (book != null) {
+            book.putFile(type, new Lookup(file));
+        }
+        return file;
+    }
+
+    @Override
+    public BookFile findBookFile(String bookId, String type) {
+        CachedBook book = cache.get(bookId);
+        if (book != null) {
+            Lookup lookup = book.getBookFile(type);
+            if (isValid(lookup)) {
+                return (BookFile) lookup.value;
+            }
+        }
+        long invalidationCount = cache.getInvalidationCount();
+        BookFile bookFile = bookDao.findBookFile(bookId, type);
+        book = getOrCreate(bookId, book, invalidationCount);
+        if (book != null) {
+            book.putBookFile(type, new Lookup(bookFile));
+        }
+        return bookFile;
+    }
+
+    /**
+     * Cached books are taken from cache, the rest is loaded by one bulk lookup
+     */
+    @Override
+    public Map<String, BookFile> findBooks(Collection<String> bookIds, String type) {
+        Map<String, BookFile> books = new HashMap<String, BookFile>(bookIds.size() * 2);
+        List<String> missed = new ArrayList<String>();
+        for (String bookId : bookIds) {
+            CachedBook book = cache.get(bookId);
+            Lookup lookup = book != null ? book.getBookFile(type) : null;
+            if (isValid(lookup)) {
+                if (lookup.value != null) {
+                    books.put(bookId, (BookFile) lookup.value);
+                }
+            } else {
+                missed.add(bookId);
+            }
+        }
+        if (missed.isEmpty()) {
+            return books;
+        }
+        long invalidationCount = cache.getInvalidationCount();
+        Map<String, BookFile> loaded = bookDao.findBooks(missed, type);
+        for (String bookId : missed) {
+            BookFile bookFile = loaded.get(bookId);
+            CachedBook book = getOrCreate(bookId, cache.get(bookId), invalidationCount);
+            if (book != null) {
+                book.putBookFile(type, new Lookup(bookFile));
+            }
+            if (bookFile != null) {
+                books.put(bookId, bookFile);
+            }
+        }
+        return books;
+    }
+
+    @Override
+    public String findBookPath(String bookId, String type) {
+        CachedBook book = cache.get(bookId);
+        if (book != null) {
+            Lookup lookup = book.getPath(type);
+            if (isValid(lookup)) {
+                return (String) lookup.value;
+            }
+        }
+        long invalidationCount = cache.getInvalidationCount();
+        String path = bookDao.findBookPath(bookId, type);
+        book = getOrCreate(bookId, book, invalidationCount);
+        if (book != null) {
+            book.putPath(type, new Lookup(path));
+        }
+        return path;
+    }
+
+    @Override
+    public void markAccessed(String bookId, String type, File file) {
+        if (storedBookListener != null && file != null) {
+            storedBookListener.bookAccessed(bookId, type, file);
+        }
+    }
+
+    @Override
+    public File addBook(String bookId, String sourceFormat, File sourceFile) {
+        File file;
+        try {
+            file = bookDao.addBook(bookId, sourceFormat, sourceFile);
+        } finally {
+            cache.remove(bookId);
+        }
+        if (storedBookListener != null && file != null) {
+            storedBookListener.bookStored(bookId, sourceFormat, file);
+        }
+        return file;
+    }
+
+    @Override
+    public void deleteBook(String bookId) {
+        try {
+            bookDao.deleteBook(bookId);
+        } finally {
+            cache.remove(bookId);
+            if (storedBookListener != null) {
+                storedBookListener.bookDeleted(bookId, null);
+            }
+        }
+    }
+
+    @Override
+    public void deleteBook(String bookId, String format) {
+        try {
+            bookDao.deleteBook(bookId, format);
+        } finally {
+            cache.remove(bookId);
+            if (storedBookListener != null) {
+                storedBookListener.bookDeleted(bookId, format);
+            }
+        }
+    }
+
+    /**
+     * Drops cached lookups of the book changed bypassing this dao
+     */
+    public void invalidate(String bookId) {
+        cache.remove(bookId);
+    }
+
+    private boolean isValid(Lookup lookup) {
+        return lookup != null && System.nanoTime() - lookup.loadedTime < TimeUnit.SECONDS.toNanos(revalidateSeconds);
+    }
+
+    /**
+     * @return cached book or null if the book was invalidated while loading
+     */
+    private CachedBook getOrCreate(String bookId, CachedBook book, long invalidationCount) {
+        if (book != null) {
+            return book;
+        }
+        book = new CachedBook();
+        return cache.putIfNotInvalidated(bookId, book, invalidationCount) ? book : null;
+    }
+
+    @Override
+    public void collectStatistics(Map<String, Object> statistics) {
+        statistics.put("cache.book.size", cache.size());
+        statistics.put("cache.book.hits", cache.getHitCount());
+        statistics.put("cache.book.misses", cache.getMissCount());
+    }
+
+    /**
+     * Lookups of all formats of the book
+     */
+    private static class CachedBook {
+        private final Map<String, Lookup> files = new HashMap<String, Lookup>(4);
+        private final Map<String, Lookup> paths = new HashMap<String, Lookup>(4);
+        private final Map<String, Lookup> bookFiles = new HashMap<String, Lookup>(4);
+
+        private synchronized Lookup getFile(String format) {
+            return files.get(format);
+        }
+
+        private synchronized void putFile(String format, Lookup lookup) {
+            files.put(format, lookup);
+        }
+
+        private synchronized Lookup getBookFile(String format) {
+            return bookFiles.get(format);
+        }
+
+        private synchronized void putBookFile(String format, Lookup lookup) {
+            bookFiles.put(format, lookup);
+        }
+
+        private synchronized Lookup getPath(String format) {
+            return paths.get(format);
+        }
+
+        private synchronized void putPath(String format, Lookup lookup) {
+            paths.put(format, lookup);
+        }
+    }
+
+    private static class Lookup {
+        private final Object value;
+        private final long loadedTime = System.nanoTime();
+
+        private Lookup(Object value) {
+            this.value = value;
+        }
+    }
+
+    public void setBookDao(BookDao bookDao) {
+        this.bookDao = bookDao;
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public void setRevalidateSeconds(long revalidateSeconds) {
+        this.revalidateSeconds = revalidateSeconds;
+    }
+
+    public void setStoredBookListener(StoredBookListener storedBookListener) {
+        this.storedBookListener = storedBookListener;
+    }
+}
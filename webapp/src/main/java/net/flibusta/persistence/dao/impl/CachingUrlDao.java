@@ -0,0 +1,122 @@
+package net.flibusta.persistence.dao.impl;
+
+import net.flibusta.monitor.StatisticsSource;
+import net.flibusta.persistence.dao.UrlDao;
+import net.flibusta.persistence.dao.UrlInfo;
+import net.flibusta.util.LruCache;
+import net.flibusta.util.UrlUtil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps recently requested url references in memory. Unknown urls are cached too. Cached reference is invalidated
+ * when it is changed through this dao and reloaded after revalidation timeout.
+ */
+public class CachingUrlDao implements UrlDao, StatisticsSource {
+
+    private UrlDao urlDao;
+    private int maxSize = 10000;
+    private long revalidateSeconds = 600;
+
+    private LruCache<String, CachedUrlInfo> cache;
+
+    public void init() {
+        cache = new LruCache<String, CachedUrlInfo>(maxSize, 16);
+    }
+
+    @Override
+    public UrlInfo findUrlInfo(String url) {
+        String key = UrlUtil.clearFlibustaUrl(url);
+        CachedUrlInfo cached = cache.get(key);
+        if (cached != null && System.nanoTime() - cached.loadedTime < TimeUnit.SECONDS.toNanos(revalidateSeconds)) {
+            return cached.urlInfo;
+        }
+        long invalidationCount = cache.getInvalidationCount();
+        UrlInfo urlInfo = urlDao.findUrlInfo(url);
+        cache.putIfNotInvalidated(key, new CachedUrlInfo(urlInfo), invalidationCount);
+        return urlInfo;
+    }
+
+    /**
+     * Cached references are taken from cache, the rest is loaded by one bulk lookup
+     */
+    @Override
+    public Map<String, UrlInfo> findUrlInfos(Collection<String> urls) {
+        Map<String, UrlInfo> urlInfos = new HashMap<String, UrlInfo>(urls.size() * 2);
+        List<String> missed = new ArrayList<String>();
+        for (String url : urls) {
+            CachedUrlInfo cached = cache.get(UrlUtil.clearFlibustaUrl(url));
+            if (cached != null && System.nanoTime() - cached.loadedTime < TimeUnit.SECONDS.toNanos(revalidateSeconds)) {
+                if (cached.urlInfo != null) {
+                    urlInfos.put(url, cached.urlInfo);
+                }
+            } else {
+                missed.add(url);
+            }
+        }
+        if (missed.isEmpty()) {
+            return urlInfos;
+        }
+        long invalidationCount = cache.getInvalidationCount();
+        Map<String, UrlInfo> loaded = urlDao.findUrlInfos(missed);
+        for (String url : missed) {
+            UrlInfo urlInfo = loaded.get(url);
+            cache.putIfNotInvalidated(UrlUtil.clearFlibustaUrl(url), new CachedUrlInfo(urlInfo), invalidationCount);
+            if (urlInfo != null) {
+                urlInfos.put(url, urlInfo);
+            }
+        }
+        return urlInfos;
+    }
+
+    @Override
+    public void addUrlReference(String url, String referencedBookId, String referencedBookFormat) {
+        try {
+            urlDao.addUrlReference(url, referencedBookId, referencedBookFormat);
+        } finally {
+            cache.remove(UrlUtil.clearFlibustaUrl(url));
+        }
+    }
+
+    @Override
+    public void removeUrlReference(String url) {
+        try {
+            urlDao.removeUrlReference(url);
+        } finally {
+            cache.remove(UrlUtil.clearFlibustaUrl(url));
+        }
+    }
+
+    @Override
+    public void collectStatistics(Map<String, Object> statistics) {
+        statistics.put("cache.url.size", cache.size());
+        statistics.put("cache.url.hits", cache.getHitCount());
+        statistics.put("cache.url.misses", cache.getMissCount());
+    }
+
+    private static class CachedUrlInfo {
+        private final UrlInfo urlInfo;
+        private final long loadedTime = System.nanoTime();
+
+        private CachedUrlInfo(UrlInfo urlInfo) {
+            this.urlInfo = urlInfo;
+        }
+    }
+
+    public void setUrlDao(UrlDao urlDao) {
+        this.urlDao = urlDao;
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public void setRevalidateSeconds(long revalidateSeconds) {
+        this.revalidateSeconds = revalidateSeconds;
+    }
+}
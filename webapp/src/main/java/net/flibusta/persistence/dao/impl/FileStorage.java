@@ -0,0 +1,308 @@
+package net.flibusta.persistence.dao.impl;
+
+import net.flibusta.persistence.index.Md5Key;
+import net.flibusta.util.FileChecksum;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Files of stored books and batches. Stored files are referenced by file name relative to storage root, so
+ * the same storage is used by every dao implementation.
+ * <p/>
+ * New files are placed by layout:
+ * <ul>
+ * <li>DATE - <code>yyyy/MM/dd/&lt;source name&gt;.&lt;format&gt;</code>, name taken by another book gets numeric
+ * suffix</li>
+ * <li>SHARDED - <code>ab/cd/&lt;md5 of book id&gt;/&lt;source name&gt;.&lt;format&gt;</code>, directory is derived
+ * from book id alone, every directory holds a bounded share of books and formats of a book share directory. File
+ * name is kept readable, it is the name of downloaded file and of batch ZIP entry</li>
+ * </ul>
+ * Files are written under temporary name in the target directory and renamed into place, so a stored name never
+ * refers to a partially written file. Files stored by any layout stay readable by their recorded names.
+ */
+public class FileStorage {
+    Logger logger = Logger.getLogger(FileStorage.class);
+
+    public enum Layout {
+        DATE, SHARDED
+    }
+
+    private static final String BATCH_DIR = "batch/";
+
+    private final File root;
+    private Layout layout = Layout.DATE;
+
+    public FileStorage(File root) {
+        this.root = root;
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    public File getFile(String fileName) {
+        return new File(root, fileName);
+    }
+
+    /**
+     * @param fileName recorded file name of the book
+     * @return recorded file, or sharded file of the book if it was moved by {@link ShardedStorageMigrator}, or null
+     */
+    public File locateBook(String bookId, String format, String fileName) {
+        File file = getFile(fileName);
+        if (file.exists()) {
+            return file;
+        }
+        File shardedFile = getFile(makeShardedBookFileName(bookId, format, FilenameUtils.getName(fileName)));
+        if (shardedFile.exists()) {
+            return shardedFile;
+        }
+        File[] bookFiles = getFile(makeShardedDir(bookId)).listFiles();
+        if (bookFiles != null) {
+            String suffix = "." + getBookExtension(format);
+            for (File bookFile : bookFiles) {
+                if (bookFile.getName().endsWith(suffix) && !bookFile.getName().startsWith(".")) {
+                    return bookFile;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves book file into storage, fb2 files are compressed. CRC32 of compressed file is taken while it is written,
+     * moved file is read once for it.
+     *
+     * @return stored file with size and CRC32
+     */
+    public StoredFile storeBook(String bookId, String sourceFormat, File sourceFile) {
+        String storageFileName = layout == Layout.SHARDED
+                ? makeShardedDir(bookId) + makeBookFileName(bookId, sourceFormat, sourceFile, 1)
+                : makeDatedBookFileName(bookId, sourceFormat, sourceFile);
+        boolean hasToCompress = sourceFormat.equals("fb2");
+        long crc32 = store(bookId, sourceFile, storageFileName, hasToCompress, true);
+        if (layout == Layout.SHARDED) {
+            deleteOtherBookFiles(storageFileName, sourceFormat);
+        }
+        File storageFile = getFile(storageFileName);
+        return new StoredFile(storageFileName, storageFile, storageFile.length(), crc32);
+    }
+
+    /**
+     * Moves batch file into storage
+     *
+     * @return stored file name
+     */
+    public String storeBatch(String batchId, String batchFormat, File batchFile) {
+        String storageFileName = layout == Layout.SHARDED
+                ? BATCH_DIR + makeShardedDir(batchId) + batchId + ".zip"
+                : makeBatchFileName(batchId);
+        store(batchId, batchFile, storageFileName, false, false);
+        return storageFileName;
+    }
+
+    /**
+     * Existing file of sharded layout belongs to the same id and is replaced. Book names of date layout are made
+     * unique, so existing file of date layout is a batch of the same id, it is kept and the source is dropped.
+     *
+     * @param hasToChecksum true if CRC32 of the stored file is needed
+     * @return CRC32 of the stored file or {@link StoredFile#UNKNOWN}
+     */
+    private long store(String id, File sourceFile, String storageFileName, boolean hasToCompress, boolean hasToChecksum) {
+        File storageFile = getFile(storageFileName);
+        try {
+            if (storageFile.equals(sourceFile)) {
+                return hasToChecksum ? FileChecksum.crc32(storageFile) : StoredFile.UNKNOWN;
+            }
+            if (layout != Layout.SHARDED && storageFile.exists()) {
+                logger.warn("File already exists: id=" + id + " file=" + storageFileName);
+                sourceFile.delete();
+                return hasToChecksum ? FileChecksum.crc32(storageFile) : StoredFile.UNKNOWN;
+            }
+            makeDirs(storageFile);
+            File tempFile = getTempFile(storageFile);
+            try {
+                long crc32 = StoredFile.UNKNOWN;
+                if (hasToCompress) {
+                    crc32 = zipFile(sourceFile, tempFile);
+                    sourceFile.delete();
+                } else {
+                    if (hasToChecksum) {
+                        crc32 = FileChecksum.crc32(sourceFile);
+                    }
+                    FileUtils.moveFile(sourceFile, tempFile);
+                }
+                rename(tempFile, storageFile);
+                return crc32;
+            } finally {
+                FileUtils.deleteQuietly(tempFile);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Moves stored file to another stored name by atomic rename, existing target is replaced
+     */
+    public void move(String fileName, String targetFileName) throws IOException {
+        File target = getFile(targetFileName);
+        makeDirs(target);
+        rename(getFile(fileName), target);
+    }
+
+    public void delete(String fileName) {
+        FileUtils.deleteQuietly(getFile(fileName));
+    }
+
+    /**
+     * @param name file name of the book, without directory
+     * @return file name of the book in sharded layout
+     */
+    public String makeShardedBookFileName(String bookId, String format, String name) {
+        String suffix = "." + getBookExtension(format);
+        String baseName = name.endsWith(suffix) ? name.substring(0, name.length() - suffix.length()) : FilenameUtils.getBaseName(name);
+        if (baseName.length() == 0) {
+            baseName = bookId.trim();
+        }
+        return makeShardedDir(bookId) + baseName + suffix;
+    }
+
+    /**
+     * @return true if the file name belongs to sharded directory of the book
+     */
+    public boolean isShardedBookFileName(String bookId, String fileName) {
+        String dir = makeShardedDir(bookId);
+        return fileName.startsWith(dir) && fileName.indexOf('/', dir.length()) < 0;
+    }
+
+    private String makeShardedDir(String id) {
+        String key = Md5Key.fromId(id.trim()).toString();
+        return key.substring(0, 2) + "/" + key.substring(2, 4) + "/" + key + "/";
+    }
+
+    private static String getBookExtension(String format) {
+        return format.equals("fb2") ? "fb2.zip" : format;
+    }
+
+    /**
+     * Removes files of the same format stored for the book by other names
+     */
+    private void deleteOtherBookFiles(String storageFileName, String format) {
+        File storageFile = getFile(storageFileName);
+        File[] bookFiles = storageFile.getParentFile().listFiles();
+        if (bookFiles == null) {
+            return;
+        }
+        String suffix = "." + getBookExtension(format);
+        for (File bookFile : bookFiles) {
+            if (!bookFile.equals(storageFile) && bookFile.getName().endsWith(suffix) && !bookFile.getName().startsWith(".")) {
+                FileUtils.deleteQuietly(bookFile);
+            }
+        }
+    }
+
+    private void rename(File source, File target) throws IOException {
+        if (source.renameTo(target)) {
+            return;
+        }
+        // platforms which don't rename over existing file
+        if (target.exists() && target.delete() && source.renameTo(target)) {
+            return;
+        }
+        throw new IOException("Can't rename " + source + " to " + target);
+    }
+
+    private File getTempFile(File storageFile) {
+        return new File(storageFile.getParentFile(), "." + storageFile.getName() + "." + UUID.randomUUID() + ".tmp");
+    }
+
+    private void makeDirs(File storageFile) throws IOException {
+        File parentFile = storageFile.getParentFile();
+        if (!parentFile.isDirectory() && !parentFile.mkdirs() && !parentFile.isDirectory()) {
+            throw new IOException("Can't create directory " + parentFile);
+        }
+    }
+
+    /**
+     * @param number 1 for plain name, greater number is appended to the name
+     * @return readable file name of the book, without directory, book id if source name has no usable characters
+     */
+    private String makeBookFileName(String bookId, String format, File sourceFile, int number) {
+        String sourceFileName = sourceFile.getName();
+        String baseName = FilenameUtils.getBaseName(sourceFileName).replaceAll("[^\\p{Alnum}\\.\\_\\-]", "");
+        if (baseName.length() == 0 || baseName.startsWith(".")) {
+            baseName = bookId.trim();
+        }
+        if (number > 1) {
+            baseName += "_" + number;
+        }
+        return baseName + "." + getBookExtension(format);
+    }
+
+    /**
+     * @return file name of date layout which is not taken by another file
+     */
+    private String makeDatedBookFileName(String bookId, String format, File sourceFile) {
+        String dir = new SimpleDateFormat("yyyy/MM/dd/").format(new Date());
+        for (int i = 1; ; i++) {
+            String storageFileName = dir + makeBookFileName(bookId, format, sourceFile, i);
+            File storageFile = getFile(storageFileName);
+            if (!storageFile.exists() || storageFile.equals(sourceFile)) {
+                return storageFileName;
+            }
+        }
+    }
+
+    private String makeBatchFileName(String batchId) {
+        String dirPrefix = new SimpleDateFormat("'batch/'yyyy/MM/dd/").format(new Date());
+        return dirPrefix + batchId + ".zip";
+    }
+
+    /**
+     * @return CRC32 of the written ZIP file
+     */
+    private long zipFile(File source, File target) throws IOException {
+        CheckedOutputStream checkedStream = new CheckedOutputStream(new FileOutputStream(target), new CRC32());
+        ZipOutputStream zipOutputStream = new ZipOutputStream(checkedStream);
+        zipOutputStream.setLevel(ZipOutputStream.DEFLATED);
+
+        FileInputStream fileInputStream = new FileInputStream(source);
+        try {
+            byte[] buffer = new byte[8 * 1024];
+            ZipEntry entry = new ZipEntry(source.getName());
+            zipOutputStream.putNextEntry(entry);
+            int read;
+            while ((read = fileInputStream.read(buffer)) > 0) {
+                zipOutputStream.write(buffer, 0, read);
+            }
+        } catch (Exception e) {
+            throw new IOException(e);
+        } finally {
+            IOUtils.closeQuietly(fileInputStream);
+            IOUtils.closeQuietly(zipOutputStream);
+        }
+        return checkedStream.getChecksum().getValue();
+    }
+
+    /**
+     * @param layout DATE or SHARDED, layout of newly stored files
+     */
+    public void setLayout(String layout) {
+        this.layout = Layout.valueOf(layout.trim().toUpperCase());
+    }
+}
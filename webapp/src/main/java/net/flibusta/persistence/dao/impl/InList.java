@@ -0,0 +1,56 @@
+package net.flibusta.persistence.dao.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Splits bulk lookups into <code>in (?, ?, ...)</code> queries of limited size. Chunks are padded to one of
+ * {@link #SIZES} by repeating the last value, which doesn't change the result of <code>in</code>, so the statement
+ * cache keeps four shapes of the query only.
+ */
+class InList {
+    static final int[] SIZES = {1, 8, 32, 256};
+    static final int MAX_SIZE = SIZES[SIZES.length - 1];
+
+    static <T> List<List<T>> chunks(Collection<T> values) {
+        List<List<T>> chunks = new ArrayList<List<T>>();
+        List<T> chunk = null;
+        for (T value : values) {
+            if (chunk == null || chunk.size() == MAX_SIZE) {
+                chunk = new ArrayList<T>(Math.min(MAX_SIZE, values.size()));
+                chunks.add(chunk);
+            }
+            chunk.add(value);
+        }
+        if (chunk != null) {
+            pad(chunk);
+        }
+        return chunks;
+    }
+
+    private static <T> void pad(List<T> chunk) {
+        int size = MAX_SIZE;
+        for (int bucket : SIZES) {
+            if (bucket >= chunk.size()) {
+                size = bucket;
+                break;
+            }
+        }
+        T last = chunk.get(chunk.size() - 1);
+        while (chunk.size() < size) {
+            chunk.add(last);
+        }
+    }
+
+    /**
+     * @return "?, ?, ?" of given length
+     */
+    static String placeholders(int count) {
+        StringBuilder builder = new StringBuilder(count * 3);
+        for (int i = 0; i < count; i++) {
+            builder.append(i == 0 ? "?" : ", ?");
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,72 @@
+package net.flibusta.persistence.dao.impl;
+
+import net.flibusta.persistence.dao.BatchDao;
+import net.flibusta.persistence.index.Md5Key;
+import net.flibusta.persistence.index.MetadataIndex;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Stored batches registered in {@link MetadataIndex}: batch id is mapped to stored file names by format.
+ */
+public class IndexBatchDao implements BatchDao {
+
+    private MetadataIndex index;
+    private FileStorage fileStorage;
+
+    @Override
+    public String findBatchPath(String batchId, String batchFormat) {
+        String fileName = index.get(MetadataIndex.Table.BATCH, Md5Key.fromId(batchId), batchFormat);
+        if (fileName == null) {
+            return null;
+        }
+        if (fileStorage.getFile(fileName).exists()) {
+            return fileName;
+        } else {
+            // file missing
+            remove(batchId, batchFormat);
+            return null;
+        }
+    }
+
+    @Override
+    public File addBatch(String batchId, String batchFormat, File batchFile) {
+        String storageFileName = fileStorage.storeBatch(batchId, batchFormat, batchFile);
+        try {
+            index.put(MetadataIndex.Table.BATCH, Md5Key.fromId(batchId), batchFormat, storageFileName);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return fileStorage.getFile(storageFileName);
+    }
+
+    @Override
+    public void delete(String batchId, String batchFormat) {
+        String batchPath = findBatchPath(batchId, batchFormat);
+        if (batchPath != null) {
+            fileStorage.getFile(batchPath).delete();
+        }
+        remove(batchId, batchFormat);
+    }
+
+    private void remove(String batchId, String batchFormat) {
+        try {
+            index.remove(MetadataIndex.Table.BATCH, Md5Key.fromId(batchId), batchFormat);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void setIndex(MetadataIndex index) {
+        this.index = index;
+    }
+
+    public void setFileStoragePath(String fileStoragePath) {
+        this.fileStorage = new FileStorage(new File(fileStoragePath));
+    }
+
+    public void setFileStorage(FileStorage fileStorage) {
+        this.fileStorage = fileStorage;
+    }
+}
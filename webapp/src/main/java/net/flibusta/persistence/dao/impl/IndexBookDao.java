@@ -0,0 +1,124 @@
+package net.flibusta.persistence.dao.impl;
+
+import net.flibusta.persistence.dao.BookDao;
+import net.flibusta.persistence.dao.BookFile;
+import net.flibusta.persistence.index.Md5Key;
+import net.flibusta.persistence.index.MetadataIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stored books registered in {@link MetadataIndex}: book id is mapped to stored file names by format.
+ */
+public class IndexBookDao implements BookDao {
+
+    private MetadataIndex index;
+    private FileStorage fileStorage;
+
+    @Override
+    public File findBook(String bookId, String type) {
+        String fileName = findBookPath(bookId, type);
+        if (fileName == null) {
+            return null;
+        }
+        File file = fileStorage.locateBook(bookId, type, fileName);
+        if (file == null) {
+            remove(bookId, type);
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * Index keeps file names only, so size and CRC32 are unknown
+     */
+    @Override
+    public BookFile findBookFile(String bookId, String type) {
+        File file = findBook(bookId, type);
+        return file != null ? new BookFile(file, BookFile.UNKNOWN, BookFile.UNKNOWN) : null;
+    }
+
+    /**
+     * Index is in memory, so books are looked up one by one
+     */
+    @Override
+    public Map<String, BookFile> findBooks(Collection<String> bookIds, String type) {
+        Map<String, BookFile> books = new HashMap<String, BookFile>(bookIds.size() * 2);
+        for (String bookId : bookIds) {
+            BookFile book = findBookFile(bookId, type);
+            if (book != null) {
+                books.put(bookId, book);
+            }
+        }
+        return books;
+    }
+
+    @Override
+    public String findBookPath(String bookId, String type) {
+        return index.get(MetadataIndex.Table.BOOK, Md5Key.fromId(bookId), type);
+    }
+
+    /**
+     * Access is not tracked
+     */
+    @Override
+    public void markAccessed(String bookId, String type, File file) {
+    }
+
+    @Override
+    public File addBook(String bookId, String sourceFormat, File sourceFile) {
+        StoredFile storedFile = fileStorage.storeBook(bookId, sourceFormat, sourceFile);
+        try {
+            index.put(MetadataIndex.Table.BOOK, Md5Key.fromId(bookId), sourceFormat, storedFile.getFileName());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return storedFile.getFile();
+    }
+
+    @Override
+    public void deleteBook(String bookId) {
+        Map<String, String> files = index.get(MetadataIndex.Table.BOOK, Md5Key.fromId(bookId));
+        if (files == null) {
+            return;
+        }
+        for (String fileName : files.values()) {
+            fileStorage.delete(fileName);
+        }
+        remove(bookId, null);
+    }
+
+    @Override
+    public void deleteBook(String bookId, String format) {
+        File file = findBook(bookId, format);
+        if (file == null) {
+            return;
+        }
+        file.delete();
+        remove(bookId, format);
+    }
+
+    private void remove(String bookId, String format) {
+        try {
+            index.remove(MetadataIndex.Table.BOOK, Md5Key.fromId(bookId), format);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void setIndex(MetadataIndex index) {
+        this.index = index;
+    }
+
+    public void setFileStoragePath(String fileStoragePath) {
+        this.fileStorage = new FileStorage(new File(fileStoragePath));
+    }
+
+    public void setFileStorage(FileStorage fileStorage) {
+        this.fileStorage = fileStorage;
+    }
+}
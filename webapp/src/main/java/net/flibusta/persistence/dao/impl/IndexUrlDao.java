@@ -0,0 +1,74 @@
+package net.flibusta.persistence.dao.impl;
+
+import net.flibusta.persistence.dao.UrlDao;
+import net.flibusta.persistence.dao.UrlInfo;
+import net.flibusta.persistence.index.Md5Key;
+import net.flibusta.persistence.index.MetadataIndex;
+import net.flibusta.util.UrlUtil;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Url references stored in {@link MetadataIndex}: md5 of url is mapped to source format and book id.
+ */
+public class IndexUrlDao implements UrlDao {
+
+    private MetadataIndex index;
+
+    @Override
+    public UrlInfo findUrlInfo(String url) {
+        Map<String, String> values = index.get(MetadataIndex.Table.URL, getKey(url));
+        if (values == null) {
+            return null;
+        }
+        Map.Entry<String, String> value = values.entrySet().iterator().next();
+        UrlInfo urlInfo = new UrlInfo();
+        urlInfo.setBookId(value.getValue());
+        urlInfo.setSourceFormat(value.getKey());
+        return urlInfo;
+    }
+
+    /**
+     * Index is in memory, so urls are looked up one by one
+     */
+    @Override
+    public Map<String, UrlInfo> findUrlInfos(Collection<String> urls) {
+        Map<String, UrlInfo> urlInfos = new HashMap<String, UrlInfo>(urls.size() * 2);
+        for (String url : urls) {
+            UrlInfo urlInfo = findUrlInfo(url);
+            if (urlInfo != null) {
+                urlInfos.put(url, urlInfo);
+            }
+        }
+        return urlInfos;
+    }
+
+    @Override
+    public void addUrlReference(String url, String referencedBookId, String referencedBookFormat) {
+        try {
+            index.set(MetadataIndex.Table.URL, getKey(url), referencedBookFormat, referencedBookId);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void removeUrlReference(String url) {
+        try {
+            index.remove(MetadataIndex.Table.URL, getKey(url), null);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Md5Key getKey(String url) {
+        return Md5Key.digest(UrlUtil.clearFlibustaUrl(url));
+    }
+
+    public void setIndex(MetadataIndex index) {
+        this.index = index;
+    }
+}
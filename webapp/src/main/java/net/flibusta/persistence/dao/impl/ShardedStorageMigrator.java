@@ -0,0 +1,171 @@
+package net.flibusta.persistence.dao.impl;
+
+import net.flibusta.concurrent.LockManager;
+import net.flibusta.converter.impl.SingleFlightConversionService;
+import net.flibusta.monitor.StatisticsSource;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.log4j.Logger;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.support.JdbcDaoSupport;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves books stored by date layout into sharded layout of {@link FileStorage} in background. Books are taken by
+ * pages in key order; each file is renamed into place first and its row is updated after, lookups between the two
+ * steps find the file by its sharded name. Cached lookups of the moved book are invalidated. Book is moved under
+ * the lock of its conversions, the same one /clean holds while it deletes the book.
+ */
+public class ShardedStorageMigrator extends JdbcDaoSupport implements StatisticsSource {
+    Logger logger = Logger.getLogger(ShardedStorageMigrator.class);
+
+    private FileStorage fileStorage;
+    private CachingBookDao bookCache;
+    private LockManager lockManager;
+    private boolean enabled = false;
+    private int pageSize = 100;
+    private long pauseMillis = 100;
+
+    private Thread worker;
+    private volatile boolean shutdown = false;
+    private volatile boolean completed = false;
+
+    private final AtomicLong movedCount = new AtomicLong();
+    private final AtomicLong missingCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    migrate();
+                } catch (InterruptedException e) {
+                    // shut down
+                } catch (Throwable e) {
+                    logger.error("Storage migration failed", e);
+                }
+            }
+        }, "storage-migrator");
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.start();
+        logger.info("Storage migration to sharded layout started");
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Moves all books not stored by sharded names
+     */
+    void migrate() throws InterruptedException {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(getDataSource());
+        jdbcTemplate.setMaxRows(pageSize);
+        String lastBookId = "";
+        String lastFormat = "";
+        while (!shutdown) {
+            List<Map<String, Object>> rows = jdbcTemplate.queryForList(
+                    "select bookid, format, file_name from book where bookid > ? or (bookid = ? and format > ?) order by bookid, format",
+                    lastBookId, lastBookId, lastFormat);
+            if (rows.isEmpty()) {
+                completed = true;
+                logger.info("Storage migration completed: moved=" + movedCount + " missing=" + missingCount + " failed=" + failedCount);
+                return;
+            }
+            for (Map<String, Object> row : rows) {
+                lastBookId = (String) row.get("bookid");
+                lastFormat = (String) row.get("format");
+                migrate(lastBookId.trim(), lastFormat, (String) row.get("file_name"));
+            }
+            Thread.sleep(pauseMillis);
+        }
+    }
+
+    private void migrate(String bookId, String format, String fileName) throws InterruptedException {
+        if (fileStorage.isShardedBookFileName(bookId, fileName)) {
+            return;
+        }
+        SingleFlightConversionService.lockBook(lockManager, bookId);
+        try {
+            migrate(bookId, format, fileName, fileStorage.makeShardedBookFileName(bookId, format, FilenameUtils.getName(fileName)));
+        } finally {
+            SingleFlightConversionService.unlockBook(lockManager, bookId);
+        }
+    }
+
+    private void migrate(String bookId, String format, String fileName, String shardedFileName) {
+        File file = fileStorage.getFile(fileName);
+        if (!file.exists() && !fileStorage.getFile(shardedFileName).exists()) {
+            missingCount.incrementAndGet(); // row is removed by the next lookup
+            return;
+        }
+        try {
+            if (file.exists()) {
+                fileStorage.move(fileName, shardedFileName);
+            }
+            getJdbcTemplate().update("update book set file_name = ? where bookid = ? and format = ? and file_name = ?",
+                    shardedFileName, bookId, format, fileName);
+            movedCount.incrementAndGet();
+        } catch (IOException e) {
+            failedCount.incrementAndGet();
+            logger.warn("Can't move " + fileName + " to " + shardedFileName + ": " + e.getMessage());
+        } finally {
+            if (bookCache != null) {
+                bookCache.invalidate(bookId);
+            }
+        }
+    }
+
+    @Override
+    public void collectStatistics(Map<String, Object> statistics) {
+        if (!enabled) {
+            return;
+        }
+        statistics.put("storageMigration.moved", movedCount.get());
+        statistics.put("storageMigration.missing", missingCount.get());
+        statistics.put("storageMigration.failed", failedCount.get());
+        statistics.put("storageMigration.completed", completed);
+    }
+
+    public void setFileStorage(FileStorage fileStorage) {
+        this.fileStorage = fileStorage;
+    }
+
+    public void setLockManager(LockManager lockManager) {
+        this.lockManager = lockManager;
+    }
+
+    /**
+     * @param bookCache cache of book lookups to invalidate for moved books
+     */
+    public void setBookCache(CachingBookDao bookCache) {
+        this.bookCache = bookCache;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param pageSize books moved between pauses
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public void setPauseMillis(long pauseMillis) {
+        this.pauseMillis = pauseMillis;
+    }
+}
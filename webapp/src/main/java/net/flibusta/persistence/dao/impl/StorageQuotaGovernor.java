@@ -0,0 +1,490 @@
+package net.flibusta.persistence.dao.impl;
+
+import net.flibusta.concurrent.LockManager;
+import net.flibusta.converter.impl.SingleFlightConversionService;
+import net.flibusta.monitor.StatisticsSource;
+import net.flibusta.persistence.dao.BatchDao;
+import net.flibusta.persistence.dao.BookDao;
+import net.flibusta.persistence.dao.BookFile;
+import net.flibusta.persistence.dao.StoredBookListener;
+import net.flibusta.persistence.dao.StoredFileInventory;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps stored files under byte quota. Size, last access and access count of every stored book format and batch
+ * are tracked in memory: the inventory is loaded from book and batch daos at start and reloaded every
+ * <code>rescanSeconds</code>, books accessed, stored and deleted in between are reported by {@link CachingBookDao}.
+ * Only daos which are {@link StoredFileInventory} can be governed, so metadata index daos are not.
+ * <p/>
+ * When stored files exceed the quota, background worker deletes files until they fit into 90% of it, at most
+ * <code>maxEvictionsPerPass</code> files per check. Batch ZIPs go first, then derived formats of books which still
+ * have a source format stored, and sources only if <code>evictSources</code> is set. Within a class files are
+ * ordered by last access (lru) or by access count (lfu). Only files sent to users count as accessed, lookups of
+ * conversions don't. Files accessed within <code>minIdleSeconds</code> are never deleted, so a file the user was
+ * just redirected to is not deleted before it is downloaded. Book file is deleted under the lock of all
+ * conversions of the book, held by /clean as well, so it is skipped while any format of the book is converted.
+ */
+public class StorageQuotaGovernor implements StoredBookListener, StatisticsSource {
+    Logger logger = Logger.getLogger(StorageQuotaGovernor.class);
+
+    private static final double TARGET_RATIO = 0.9;
+    private static final int MAX_EVICTED_KEYS = 100000;
+
+    private static final int BATCH = 0;
+    private static final int DERIVED = 1;
+    private static final int SOURCE = 2;
+
+    private BookDao bookDao;
+    private BookDao bookDaoTarget;
+    private BatchDao batchDao;
+    private LockManager lockManager;
+
+    private long maxBytes = 0;
+    private boolean lfu = false;
+    private long minIdleSeconds = 24 * 60 * 60;
+    private Set<String> derivedFormats = new HashSet<String>(Arrays.asList("epub", "mobi"));
+    private boolean evictSources = false;
+    private long checkSeconds = 60;
+    private int maxEvictionsPerPass = 100;
+    private long rescanSeconds = 24 * 60 * 60;
+
+    private final ConcurrentHashMap<String, Map<String, TrackedFile>> books = new ConcurrentHashMap<String, Map<String, TrackedFile>>();
+    private final ConcurrentHashMap<String, TrackedFile> batches = new ConcurrentHashMap<String, TrackedFile>();
+    private final AtomicLong usedBytes = new AtomicLong();
+    /**
+     * Evicted book formats, stored again means a conversion caused by eviction
+     */
+    private final Map<String, Boolean> evictedKeys = new LinkedHashMap<String, Boolean>(1024, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_EVICTED_KEYS;
+        }
+    };
+
+    private Thread worker;
+    private volatile boolean shutdown = false;
+    private volatile boolean scanned = false;
+
+    private final AtomicLong evictedCount = new AtomicLong();
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+    private final AtomicLong rebuildCount = new AtomicLong();
+    private final AtomicLong lockedCount = new AtomicLong();
+
+    public void init() {
+        if (!isEnabled()) {
+            return;
+        }
+        if (!(bookDaoTarget instanceof StoredFileInventory) || !(batchDao instanceof StoredFileInventory)) {
+            throw new IllegalStateException("Storage quota needs book and batch daos listing stored files, "
+                    + "metadata index daos don't list them");
+        }
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "storage-quota");
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.start();
+        logger.info("Storage quota of " + maxBytes / (1024 * 1024) + " Mb started");
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    private void work() {
+        long lastScanTime = 0;
+        while (!shutdown) {
+            try {
+                if (System.currentTimeMillis() - lastScanTime >= TimeUnit.SECONDS.toMillis(rescanSeconds)) {
+                    lastScanTime = System.currentTimeMillis();
+                    scan();
+                }
+                evict();
+                Thread.sleep(TimeUnit.SECONDS.toMillis(checkSeconds));
+            } catch (InterruptedException e) {
+                return;
+            } catch (Throwable e) {
+                logger.error("Storage quota check failed", e);
+            }
+        }
+    }
+
+    /**
+     * Reloads inventory of stored files. Tracked access of known files is kept, access of new files is their
+     * modification time, access counts are halved so popularity ages.
+     */
+    void scan() {
+        final long scanStart = System.currentTimeMillis();
+        ((StoredFileInventory) bookDaoTarget).findStoredFiles(new StoredFileInventory.Handler() {
+            @Override
+            public void stored(String bookId, String format, File file, long size) {
+                register(bookId, format, size != BookFile.UNKNOWN ? size : file.length(), file.lastModified(), scanStart);
+            }
+        });
+        ((StoredFileInventory) batchDao).findStoredFiles(new StoredFileInventory.Handler() {
+            @Override
+            public void stored(String batchId, String format, File file, long size) {
+                String key = batchId + "." + format;
+                TrackedFile stored = batches.get(key);
+                if (stored == null) {
+                    stored = new TrackedFile(batchId, format, file.length(), file.lastModified(), true);
+                    batches.put(key, stored);
+                }
+                stored.seenTime = scanStart;
+            }
+        });
+
+        long total = 0;
+        for (Map<String, TrackedFile> formats : books.values()) {
+            synchronized (formats) {
+                total += removeUnseen(formats.values(), scanStart);
+            }
+        }
+        total += removeUnseen(batches.values(), scanStart);
+        usedBytes.set(total);
+        scanned = true;
+        logger.info("Stored files scanned: " + total / (1024 * 1024) + " Mb of " + maxBytes / (1024 * 1024) + " Mb quota");
+    }
+
+    /**
+     * @return size of remaining files
+     */
+    private long removeUnseen(Collection<TrackedFile> files, long scanStart) {
+        long total = 0;
+        for (Iterator<TrackedFile> iterator = files.iterator(); iterator.hasNext(); ) {
+            TrackedFile stored = iterator.next();
+            if (stored.seenTime < scanStart) {
+                iterator.remove(); // deleted bypassing daos
+            } else {
+                stored.accessCount /= 2;
+                total += stored.size;
+            }
+        }
+        return total;
+    }
+
+    private void register(String bookId, String format, long size, long accessTime, long seenTime) {
+        Map<String, TrackedFile> formats = getFormats(bookId);
+        synchronized (formats) {
+            TrackedFile stored = formats.get(format);
+            if (stored == null || stored.size != size) {
+                if (stored != null) {
+                    usedBytes.addAndGet(-stored.size);
+                }
+                stored = new TrackedFile(bookId, format, size, accessTime);
+                formats.put(format, stored);
+                usedBytes.addAndGet(size);
+            }
+            stored.seenTime = seenTime;
+        }
+    }
+
+    private Map<String, TrackedFile> getFormats(String bookId) {
+        Map<String, TrackedFile> formats = books.get(bookId);
+        if (formats == null) {
+            Map<String, TrackedFile> created = new HashMap<String, TrackedFile>(4);
+            formats = books.putIfAbsent(bookId, created);
+            if (formats == null) {
+                formats = created;
+            }
+        }
+        return formats;
+    }
+
+    /**
+     * Deletes files over quota
+     */
+    void evict() {
+        long targetBytes = (long) (maxBytes * TARGET_RATIO);
+        if (!scanned || usedBytes.get() <= maxBytes) {
+            return;
+        }
+        List<TrackedFile> candidates = getCandidates();
+        int evicted = 0;
+        for (TrackedFile candidate : candidates) {
+            if (usedBytes.get() <= targetBytes || evicted >= maxEvictionsPerPass || shutdown) {
+                break;
+            }
+            if (candidate.batch ? evictBatch(candidate) : evictBook(candidate)) {
+                evicted++;
+            }
+        }
+        logger.info("Storage quota: " + evicted + " files deleted, " + usedBytes.get() / (1024 * 1024) + " Mb stored");
+    }
+
+    /**
+     * @return idle files ordered for eviction
+     */
+    private List<TrackedFile> getCandidates() {
+        long idleTime = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(minIdleSeconds);
+        List<TrackedFile> candidates = new ArrayList<TrackedFile>();
+        for (TrackedFile stored : batches.values()) {
+            if (stored.accessTime < idleTime) {
+                stored.evictionClass = BATCH;
+                candidates.add(stored);
+            }
+        }
+        for (Map<String, TrackedFile> formats : books.values()) {
+            synchronized (formats) {
+                boolean hasSource = false;
+                for (String format : formats.keySet()) {
+                    hasSource |= !derivedFormats.contains(format);
+                }
+                for (TrackedFile stored : formats.values()) {
+                    stored.evictionClass = hasSource && derivedFormats.contains(stored.format) ? DERIVED : SOURCE;
+                    if (stored.accessTime < idleTime && (stored.evictionClass == DERIVED || evictSources)) {
+                        candidates.add(stored);
+                    }
+                }
+            }
+        }
+        Collections.sort(candidates, new Comparator<TrackedFile>() {
+            @Override
+            public int compare(TrackedFile a, TrackedFile b) {
+                if (a.evictionClass != b.evictionClass) {
+                    return a.evictionClass - b.evictionClass;
+                }
+                if (lfu && a.accessCount != b.accessCount) {
+                    return a.accessCount < b.accessCount ? -1 : 1;
+                }
+                return a.accessTime < b.accessTime ? -1 : (a.accessTime == b.accessTime ? 0 : 1);
+            }
+        });
+        return candidates;
+    }
+
+    private boolean evictBook(TrackedFile stored) {
+        try {
+            if (!SingleFlightConversionService.tryLockBook(lockManager, stored.id)) {
+                lockedCount.incrementAndGet(); // converted right now
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        try {
+            if (stored.accessTime >= System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(minIdleSeconds)) {
+                return false; // accessed since candidates were chosen
+            }
+            bookDao.deleteBook(stored.id, stored.format); // reported back by bookDeleted
+            synchronized (evictedKeys) {
+                evictedKeys.put(SingleFlightConversionService.getFlightKey(stored.id, stored.format), Boolean.TRUE);
+            }
+        } finally {
+            SingleFlightConversionService.unlockBook(lockManager, stored.id);
+        }
+        evicted(stored);
+        return true;
+    }
+
+    /**
+     * Batch is not locked, it is packed once and deleted only after it is idle
+     */
+    private boolean evictBatch(TrackedFile stored) {
+        batchDao.delete(stored.id, stored.format);
+        if (batches.remove(stored.id + "." + stored.format) != null) {
+            usedBytes.addAndGet(-stored.size);
+        }
+        evicted(stored);
+        return true;
+    }
+
+    private void evicted(TrackedFile stored) {
+        evictedCount.incrementAndGet();
+        reclaimedBytes.addAndGet(stored.size);
+        logger.debug("Evicted " + (stored.batch ? "batch " : "book ") + stored.id + " format=" + stored.format);
+    }
+
+    @Override
+    public void bookAccessed(String bookId, String format, File file) {
+        if (!isEnabled()) {
+            return;
+        }
+        Map<String, TrackedFile> formats = getFormats(bookId);
+        synchronized (formats) {
+            TrackedFile stored = formats.get(format);
+            if (stored == null) { // not scanned yet
+                if (!file.exists()) {
+                    return;
+                }
+                stored = new TrackedFile(bookId, format, file.length(), System.currentTimeMillis());
+                stored.seenTime = System.currentTimeMillis();
+                formats.put(format, stored);
+                usedBytes.addAndGet(stored.size);
+            }
+            stored.accessTime = System.currentTimeMillis();
+            stored.accessCount++;
+        }
+    }
+
+    @Override
+    public void bookStored(String bookId, String format, File file) {
+        if (!isEnabled()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        register(bookId, format, file.length(), now, now);
+        synchronized (evictedKeys) {
+            if (evictedKeys.remove(SingleFlightConversionService.getFlightKey(bookId, format)) != null) {
+                rebuildCount.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public void bookDeleted(String bookId, String format) {
+        if (!isEnabled()) {
+            return;
+        }
+        Map<String, TrackedFile> formats = books.get(bookId);
+        if (formats == null) {
+            return;
+        }
+        synchronized (formats) {
+            for (Iterator<TrackedFile> iterator = formats.values().iterator(); iterator.hasNext(); ) {
+                TrackedFile stored = iterator.next();
+                if (format == null || format.equals(stored.format)) {
+                    iterator.remove();
+                    usedBytes.addAndGet(-stored.size);
+                }
+            }
+            if (formats.isEmpty()) {
+                books.remove(bookId, formats);
+            }
+        }
+    }
+
+    @Override
+    public void collectStatistics(Map<String, Object> statistics) {
+        if (!isEnabled()) {
+            return;
+        }
+        statistics.put("storageQuota.maxBytes", maxBytes);
+        statistics.put("storageQuota.usedBytes", usedBytes.get());
+        statistics.put("storageQuota.evicted", evictedCount.get());
+        statistics.put("storageQuota.reclaimedBytes", reclaimedBytes.get());
+        statistics.put("storageQuota.rebuildMisses", rebuildCount.get());
+        statistics.put("storageQuota.skippedLocked", lockedCount.get());
+    }
+
+    long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    private static class TrackedFile {
+        private final String id;
+        private final String format;
+        private final boolean batch;
+        private final long size;
+        private volatile long accessTime;
+        private volatile int accessCount;
+        private volatile long seenTime;
+        private int evictionClass;
+
+        private TrackedFile(String id, String format, long size, long accessTime) {
+            this(id, format, size, accessTime, false);
+        }
+
+        private TrackedFile(String id, String format, long size, long accessTime, boolean batch) {
+            this.id = id;
+            this.format = format;
+            this.size = size;
+            this.accessTime = accessTime;
+            this.batch = batch;
+        }
+    }
+
+    /**
+     * @param bookDao caching dao, deleted books are reported back by it
+     */
+    public void setBookDao(BookDao bookDao) {
+        this.bookDao = bookDao;
+    }
+
+    /**
+     * @param bookDaoTarget dao behind the caching one, stored books are listed by it
+     */
+    public void setBookDaoTarget(BookDao bookDaoTarget) {
+        this.bookDaoTarget = bookDaoTarget;
+    }
+
+    public void setBatchDao(BatchDao batchDao) {
+        this.batchDao = batchDao;
+    }
+
+    public void setLockManager(LockManager lockManager) {
+        this.lockManager = lockManager;
+    }
+
+    /**
+     * @param maxBytes quota of stored files, 0 - files are never deleted
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param policy lru - least recently accessed files are deleted first, lfu - least often accessed
+     */
+    public void setPolicy(String policy) {
+        this.lfu = "lfu".equalsIgnoreCase(policy.trim());
+    }
+
+    /**
+     * @param minIdleSeconds files accessed more recently are never deleted
+     */
+    public void setMinIdleSeconds(long minIdleSeconds) {
+        this.minIdleSeconds = minIdleSeconds;
+    }
+
+    /**
+     * @param derivedFormats comma separated formats made by conversion
+     */
+    public void setDerivedFormats(String derivedFormats) {
+        this.derivedFormats = new HashSet<String>(Arrays.asList(derivedFormats.trim().split("\\s*,\\s*")));
+    }
+
+    public void setEvictSources(boolean evictSources) {
+        this.evictSources = evictSources;
+    }
+
+    public void setCheckSeconds(long checkSeconds) {
+        this.checkSeconds = checkSeconds;
+    }
+
+    public void setMaxEvictionsPerPass(int maxEvictionsPerPass) {
+        this.maxEvictionsPerPass = maxEvictionsPerPass;
+    }
+
+    public void setRescanSeconds(long rescanSeconds) {
+        this.rescanSeconds = rescanSeconds;
+    }
+}
@@ -0,0 +1,25 @@
+package net.flibusta.persistence.dao.impl;
+
+import net.flibusta.persistence.dao.BookFile;
+
+import java.io.File;
+
+/**
+ * File placed into {@link FileStorage} with its size and CRC32 taken when it was written
+ */
+public class StoredFile extends BookFile {
+    private final String fileName;
+
+    /**
+     * @param fileName file name relative to storage root
+     * @param crc32    {@link #UNKNOWN} if checksum was not requested
+     */
+    public StoredFile(String fileName, File file, long size, long crc32) {
+        super(file, size, crc32);
+        this.fileName = fileName;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+}
@@ -2,11 +2,13 @@ package net.flibusta.persistence.dao.impl;
 
 import net.flibusta.persistence.dao.UrlDao;
 import net.flibusta.persistence.dao.UrlInfo;
+import net.flibusta.util.UrlUtil;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.springframework.jdbc.core.simple.SimpleJdbcDaoSupport;
 
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -14,7 +16,7 @@ public class UrlDaoSql extends SimpleJdbcDaoSupport implements UrlDao {
 
     @Override
     public UrlInfo findUrlInfo(String url) {
-        url = clearFlibustaUrl(url);
+        url = UrlUtil.clearFlibustaUrl(url);
         String md5 = DigestUtils.md5Hex(url);
         List<Map<String, Object>> rows = getJdbcTemplate().queryForList("select bookId, format from book_source where url = ? and url_hash = ?", url, md5);
         if (rows.size() > 1) {
@@ -30,31 +32,54 @@ public class UrlDaoSql extends SimpleJdbcDaoSupport implements UrlDao {
         return urlInfo;
     }
 
+    @Override
+    public Map<String, UrlInfo> findUrlInfos(Collection<String> urls) {
+        Map<String, List<String>> requestedUrls = new HashMap<String, List<String>>(); // cleared url -> urls
+        for (String url : urls) {
+            String clearedUrl = UrlUtil.clearFlibustaUrl(url);
+            List<String> sameUrls = requestedUrls.get(clearedUrl);
+            if (sameUrls == null) {
+                sameUrls = new ArrayList<String>(1);
+                requestedUrls.put(clearedUrl, sameUrls);
+            }
+            sameUrls.add(url);
+        }
+
+        Map<String, UrlInfo> urlInfos = new HashMap<String, UrlInfo>(urls.size() * 2);
+        for (List<String> chunk : InList.chunks(requestedUrls.keySet())) {
+            Object[] hashes = new Object[chunk.size()];
+            for (int i = 0; i < hashes.length; i++) {
+                hashes[i] = DigestUtils.md5Hex(chunk.get(i));
+            }
+            List<Map<String, Object>> rows = getJdbcTemplate().queryForList(
+                    "select url, bookId, format from book_source where url_hash in (" + InList.placeholders(hashes.length) + ")", hashes);
+            for (Map<String, Object> row : rows) {
+                List<String> sameUrls = requestedUrls.get((String) row.get("url"));
+                if (sameUrls == null) { // hash collision
+                    continue;
+                }
+                UrlInfo urlInfo = new UrlInfo();
+                urlInfo.setBookId((String) row.get("bookId"));
+                urlInfo.setSourceFormat((String) row.get("format"));
+                for (String url : sameUrls) {
+                    urlInfos.put(url, urlInfo);
+                }
+            }
+        }
+        return urlInfos;
+    }
+
     @Override
     public void addUrlReference(String url, String referencedBookId, String referencedBookFormat) {
-        url = clearFlibustaUrl(url);
+        url = UrlUtil.clearFlibustaUrl(url);
         String md5 = DigestUtils.md5Hex(url);
         getJdbcTemplate().update("insert into book_source (url, url_hash, bookId, format) values (?, ?, ?, ?)", url, md5, referencedBookId, referencedBookFormat);
     }
 
     @Override
     public void removeUrlReference(String url) {
-        url = clearFlibustaUrl(url);
+        url = UrlUtil.clearFlibustaUrl(url);
         String md5 = DigestUtils.md5Hex(url);
         getJdbcTemplate().update("delete from book_source where url = ? and url_hash = ?", url, md5);
     }
-
-    private String clearFlibustaUrl(String url) {
-        if (url.toLowerCase().contains("flibusta.net")) {
-            try {
-                URI uri = new URI(url);
-                if (uri.getQuery() != null) {
-                    return new URI(uri.getScheme(), uri.getHost(), uri.getPath(), null).toString();
-                }
-            } catch (URISyntaxException e) {
-                logger.error("invalid url=" + url, e);
-            }
-        }
-        return url;
-    }
 }
@@ -0,0 +1,86 @@
+package net.flibusta.persistence.index;
+
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.apache.log4j.Logger;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Copies url references, books and batches from Derby database into {@link MetadataIndex}. Stored files are not
+ * touched, both storages refer to the same file names.
+ * <p/>
+ * Usage: DerbyIndexMigration &lt;database path&gt; &lt;index path&gt; [user [password]]
+ */
+public class DerbyIndexMigration {
+    private static final Logger logger = Logger.getLogger(DerbyIndexMigration.class);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: DerbyIndexMigration <database path> <index path> [user [password]]");
+            System.exit(1);
+        }
+        EmbeddedDataSource dataSource = new EmbeddedDataSource();
+        dataSource.setDatabaseName(args[0]);
+        dataSource.setUser(args.length > 2 ? args[2] : "sa");
+        dataSource.setPassword(args.length > 3 ? args[3] : "");
+
+        MetadataIndex index = new MetadataIndex();
+        index.setPath(args[1]);
+        index.setSyncWrites(false);
+        index.open();
+        try {
+            migrate(new JdbcTemplate(dataSource), index);
+        } finally {
+            index.close();
+            dataSource.setShutdownDatabase("shutdown");
+            try {
+                dataSource.getConnection();
+            } catch (SQLException e) {
+                // database shut down
+            }
+        }
+    }
+
+    public static void migrate(JdbcTemplate jdbcTemplate, final MetadataIndex index) {
+        final int[] counts = new int[3];
+        jdbcTemplate.query("select url, bookid, format from book_source", new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+                // stored urls are already cleared
+                write(index, MetadataIndex.Table.URL, Md5Key.digest(rs.getString("url")), rs.getString("format"), rs.getString("bookid"));
+                counts[0]++;
+            }
+        });
+        jdbcTemplate.query("select bookid, format, file_name from book", new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+                write(index, MetadataIndex.Table.BOOK, Md5Key.fromId(rs.getString("bookid").trim()), rs.getString("format"), rs.getString("file_name"));
+                counts[1]++;
+            }
+        });
+        jdbcTemplate.query("select batchid, format, file_name from batch", new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+                write(index, MetadataIndex.Table.BATCH, Md5Key.fromId(rs.getString("batchid").trim()), rs.getString("format"), rs.getString("file_name"));
+                counts[2]++;
+            }
+        });
+        logger.info("Migrated urls=" + counts[0] + " books=" + counts[1] + " batches=" + counts[2]);
+    }
+
+    private static void write(MetadataIndex index, MetadataIndex.Table table, Md5Key key, String name, String value) throws SQLException {
+        try {
+            if (table == MetadataIndex.Table.URL) {
+                index.set(table, key, name, value);
+            } else {
+                index.put(table, key, name, value);
+            }
+        } catch (IOException e) {
+            throw new SQLException(e);
+        }
+    }
+}
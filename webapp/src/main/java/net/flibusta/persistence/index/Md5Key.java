@@ -0,0 +1,73 @@
+package net.flibusta.persistence.index;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+/**
+ * Fixed width (16 bytes) binary key of index.
+ */
+public final class Md5Key {
+    public static final int SIZE = 16;
+
+    private final byte[] bytes;
+    private final int hashCode;
+
+    private Md5Key(byte[] bytes) {
+        this.bytes = bytes;
+        this.hashCode = Arrays.hashCode(bytes);
+    }
+
+    /**
+     * @param id md5 hex (i.e. book id), any other string is hashed
+     */
+    public static Md5Key fromId(String id) {
+        if (id.length() == SIZE * 2) {
+            try {
+                return new Md5Key(Hex.decodeHex(id.toCharArray()));
+            } catch (DecoderException e) {
+                // not a hex, hash it
+            }
+        }
+        return digest(id);
+    }
+
+    public static Md5Key digest(String value) {
+        try {
+            return new Md5Key(DigestUtils.md5(value.getBytes("UTF-8")));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static Md5Key read(DataInput input) throws IOException {
+        byte[] bytes = new byte[SIZE];
+        input.readFully(bytes);
+        return new Md5Key(bytes);
+    }
+
+    void write(DataOutput output) throws IOException {
+        output.write(bytes);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof Md5Key && Arrays.equals(bytes, ((Md5Key) o).bytes));
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return new String(Hex.encodeHex(bytes));
+    }
+}
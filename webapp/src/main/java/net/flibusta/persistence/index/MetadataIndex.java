@@ -0,0 +1,348 @@
+package net.flibusta.persistence.index;
+
+import net.flibusta.monitor.StatisticsSource;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Metadata storage which keeps every table in memory and persists changes into append-only log.
+ * <p/>
+ * Every table maps {@link Md5Key} to small map of named values, i.e. book id to file names by format. Lookups
+ * don't lock, changes are serialized. Every change is appended to the log as a record protected by CRC, so
+ * table state is restored by replay of the log on open; incomplete record at the end of the log (crash while
+ * writing) is dropped. When the log contains more overwritten records than live ones, it is compacted: live
+ * values are written to new log which atomically replaces the old one.
+ */
+public class MetadataIndex implements StatisticsSource {
+    Logger logger = Logger.getLogger(MetadataIndex.class);
+
+    public enum Table {
+        URL, BOOK, BATCH
+    }
+
+    private static final byte OP_PUT = 1; // add or replace named value
+    private static final byte OP_SET = 2; // replace all values of the key
+    private static final byte OP_REMOVE = 3; // remove named value, or all values of the key if name is empty
+
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+
+    private File path;
+    private boolean syncWrites = true;
+    private long minCompactionRecords = 10000;
+
+    private final Map<Table, ConcurrentMap<Md5Key, Map<String, String>>> tables =
+            new EnumMap<Table, ConcurrentMap<Md5Key, Map<String, String>>>(Table.class);
+
+    private RandomAccessFile logFile;
+    private FileChannel logChannel;
+    private long logRecords = 0;
+    private long nextCompactionRecords = 0;
+    private long liveRecords = 0;
+    private final AtomicLong compactionCount = new AtomicLong();
+
+    public MetadataIndex() {
+        for (Table table : Table.values()) {
+            tables.put(table, new ConcurrentHashMap<Md5Key, Map<String, String>>(1024));
+        }
+    }
+
+    public synchronized void open() throws IOException {
+        File parent = path.getAbsoluteFile().getParentFile();
+        if (!parent.exists()) {
+            parent.mkdirs();
+        }
+        long validLength = replay();
+        logFile = new RandomAccessFile(path, "rw");
+        logChannel = logFile.getChannel();
+        if (logChannel.size() > validLength) {
+            logger.warn("Incomplete record at the end of index log " + path + ". Truncated to " + validLength + " bytes");
+            logChannel.truncate(validLength);
+        }
+        logChannel.position(validLength);
+        logger.info("Index " + path + " opened: records=" + logRecords + " live=" + liveRecords);
+        compactIfNeeded();
+    }
+
+    public synchronized void close() throws IOException {
+        if (logFile != null) {
+            logChannel.force(true);
+            logFile.close();
+            logFile = null;
+            logChannel = null;
+        }
+    }
+
+    /**
+     * @return all values of the key or null
+     */
+    public Map<String, String> get(Table table, Md5Key key) {
+        return tables.get(table).get(key);
+    }
+
+    public String get(Table table, Md5Key key, String name) {
+        Map<String, String> values = get(table, key);
+        return values == null ? null : values.get(name);
+    }
+
+    public synchronized void put(Table table, Md5Key key, String name, String value) throws IOException {
+        write(OP_PUT, table, key, name, value);
+    }
+
+    /**
+     * Replaces all values of the key with the single one
+     */
+    public synchronized void set(Table table, Md5Key key, String name, String value) throws IOException {
+        write(OP_SET, table, key, name, value);
+    }
+
+    /**
+     * @param name value name or null to remove all values of the key
+     */
+    public synchronized void remove(Table table, Md5Key key, String name) throws IOException {
+        if (get(table, key) == null) {
+            return;
+        }
+        write(OP_REMOVE, table, key, name == null ? "" : name, "");
+    }
+
+    public int size(Table table) {
+        return tables.get(table).size();
+    }
+
+    private void write(byte op, Table table, Md5Key key, String name, String value) throws IOException {
+        if (logChannel == null) {
+            throw new IOException("Index " + path + " is not open");
+        }
+        ByteBuffer record = encode(op, table, key, name, value);
+        long position = logChannel.position();
+        try {
+            writeRecord(record);
+            if (syncWrites) {
+                logChannel.force(false);
+            }
+        } catch (IOException e) {
+            dropTornRecord(position);
+            throw e;
+        }
+        logRecords++;
+        apply(op, table, key, name, value);
+        compactIfNeeded();
+    }
+
+    void writeRecord(ByteBuffer record) throws IOException {
+        while (record.hasRemaining()) {
+            logChannel.write(record);
+        }
+    }
+
+    /**
+     * Cuts partially written record off the log, otherwise replay would stop at it and drop all records appended
+     * later. If the log can't be cut, it is closed and further writes fail.
+     */
+    private void dropTornRecord(long position) {
+        try {
+            logChannel.truncate(position);
+            logChannel.position(position);
+        } catch (IOException e) {
+            logger.error("Can't drop incomplete record of index log " + path + ", index is closed for writes", e);
+            try {
+                logFile.close();
+            } catch (IOException closeFailed) {
+                // closed anyway
+            }
+            logFile = null;
+            logChannel = null;
+        }
+    }
+
+    private ByteBuffer encode(byte op, Table table, Md5Key key, String name, String value) throws IOException {
+        ByteArrayOutputStream payloadStream = new ByteArrayOutputStream(64);
+        DataOutputStream payload = new DataOutputStream(payloadStream);
+        payload.writeByte(op);
+        payload.writeByte(table.ordinal());
+        key.write(payload);
+        payload.writeUTF(name);
+        payload.writeUTF(value);
+        payload.flush();
+        byte[] bytes = payloadStream.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteBuffer record = ByteBuffer.allocate(8 + bytes.length);
+        record.putInt(bytes.length);
+        record.putInt((int) crc.getValue());
+        record.put(bytes);
+        record.flip();
+        return record;
+    }
+
+    private void apply(byte op, Table table, Md5Key key, String name, String value) {
+        ConcurrentMap<Md5Key, Map<String, String>> map = tables.get(table);
+        Map<String, String> oldValues = map.get(key);
+        int oldSize = oldValues == null ? 0 : oldValues.size();
+        Map<String, String> newValues;
+        switch (op) {
+            case OP_PUT:
+                newValues = oldValues == null ? new HashMap<String, String>(2) : new HashMap<String, String>(oldValues);
+                newValues.put(name, value);
+                break;
+            case OP_SET:
+                newValues = new HashMap<String, String>(2);
+                newValues.put(name, value);
+                break;
+            case OP_REMOVE:
+                newValues = null;
+                if (name.length() > 0 && oldValues != null) {
+                    newValues = new HashMap<String, String>(oldValues);
+                    newValues.remove(name);
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown index operation " + op);
+        }
+        if (newValues == null || newValues.isEmpty()) {
+            map.remove(key);
+            liveRecords -= oldSize;
+        } else {
+            map.put(key, Collections.unmodifiableMap(newValues));
+            liveRecords += newValues.size() - oldSize;
+        }
+    }
+
+    /**
+     * Restores tables from the log
+     *
+     * @return length of the log up to the last valid record
+     */
+    private long replay() throws IOException {
+        if (!path.exists()) {
+            return 0;
+        }
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 64 * 1024));
+        long validLength = 0;
+        try {
+            while (true) {
+                int length;
+                try {
+                    length = input.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > MAX_RECORD_SIZE) {
+                    break;
+                }
+                int expectedCrc = input.readInt();
+                byte[] bytes = new byte[length];
+                input.readFully(bytes);
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                if ((int) crc.getValue() != expectedCrc) {
+                    break;
+                }
+                DataInputStream payload = new DataInputStream(new ByteArrayInputStream(bytes));
+                byte op = payload.readByte();
+                Table table = Table.values()[payload.readByte()];
+                Md5Key key = Md5Key.read(payload);
+                String name = payload.readUTF();
+                String value = payload.readUTF();
+                apply(op, table, key, name, value);
+                logRecords++;
+                validLength += 8 + length;
+            }
+        } catch (EOFException e) {
+            // incomplete record
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+        return validLength;
+    }
+
+    private void compactIfNeeded() {
+        if (logRecords > minCompactionRecords && logRecords - liveRecords > liveRecords && logRecords >= nextCompactionRecords) {
+            try {
+                compact();
+            } catch (IOException e) {
+                // record is written already, compaction is retried when the log grows
+                nextCompactionRecords = logRecords + minCompactionRecords;
+                logger.error("Compaction of index " + path + " failed", e);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the log with live values only
+     */
+    public synchronized void compact() throws IOException {
+        long start = System.currentTimeMillis();
+        File compactedPath = new File(path.getPath() + ".compact");
+        RandomAccessFile compactedFile = new RandomAccessFile(compactedPath, "rw");
+        long records = 0;
+        try {
+            FileChannel compactedChannel = compactedFile.getChannel();
+            compactedChannel.truncate(0);
+            for (Table table : Table.values()) {
+                for (Map.Entry<Md5Key, Map<String, String>> entry : tables.get(table).entrySet()) {
+                    for (Map.Entry<String, String> value : entry.getValue().entrySet()) {
+                        ByteBuffer record = encode(OP_PUT, table, entry.getKey(), value.getKey(), value.getValue());
+                        while (record.hasRemaining()) {
+                            compactedChannel.write(record);
+                        }
+                        records++;
+                    }
+                }
+            }
+            compactedChannel.force(true);
+        } finally {
+            compactedFile.close();
+        }
+
+        close();
+        boolean replaced = compactedPath.renameTo(path);
+        // appends go on to the original log if it is not replaced
+        logFile = new RandomAccessFile(path, "rw");
+        logChannel = logFile.getChannel();
+        logChannel.position(logChannel.size());
+        if (!replaced) {
+            compactedPath.delete();
+            logger.error("Can't replace index log " + path + " with " + compactedPath);
+            throw new IOException("Can't replace index log " + path + " with " + compactedPath);
+        }
+        logger.info("Index " + path + " compacted from " + logRecords + " to " + records + " records in "
+                + (System.currentTimeMillis() - start) + " ms");
+        logRecords = records;
+        compactionCount.incrementAndGet();
+    }
+
+    @Override
+    public void collectStatistics(Map<String, Object> statistics) {
+        for (Table table : Table.values()) {
+            statistics.put("index." + table.name().toLowerCase() + ".size", size(table));
+        }
+        synchronized (this) {
+            statistics.put("index.log.records", logRecords);
+            statistics.put("index.log.live", liveRecords);
+        }
+        statistics.put("index.compactions", compactionCount.get());
+    }
+
+    public void setPath(String path) {
+        this.path = new File(path);
+    }
+
+    public void setSyncWrites(boolean syncWrites) {
+        this.syncWrites = syncWrites;
+    }
+
+    public void setMinCompactionRecords(long minCompactionRecords) {
+        this.minCompactionRecords = minCompactionRecords;
+    }
+}
@@ -0,0 +1,120 @@
+package net.flibusta.servlet;
+
+import org.apache.log4j.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Async request which is responded later by other thread, so container thread is released while the request
+ * is processed. Response is written only once: either by {@link #complete} or by timeout task.
+ * <p/>
+ * Servlet API doesn't report disconnect of idle client, so the request is considered abandoned when container
+ * fails or completes it before the response is written, or when the written response can't be flushed.
+ */
+public class AsyncResponder {
+    Logger logger = Logger.getLogger(AsyncResponder.class);
+
+    public interface ResponseTask {
+        void execute(HttpServletResponse response) throws Exception;
+    }
+
+    public interface ErrorHandler {
+        void handleError(Exception e, HttpServletResponse response);
+    }
+
+    private final AsyncContext asyncContext;
+    private final AtomicBoolean completed = new AtomicBoolean(false);
+    private volatile Runnable abandonListener;
+
+    /**
+     * Starts async processing of the request
+     *
+     * @param timeoutTask writes response if request is not completed in time
+     */
+    public AsyncResponder(HttpServletRequest request, long timeoutSeconds, final ResponseTask timeoutTask,
+                          final ErrorHandler errorHandler) {
+        asyncContext = request.startAsync();
+        asyncContext.setTimeout(TimeUnit.SECONDS.toMillis(timeoutSeconds));
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                complete(timeoutTask, errorHandler);
+            }
+
+            @Override
+            public void onError(AsyncEvent event) throws IOException {
+                logger.warn("Async request failed: " + event.getThrowable());
+                if (completed.compareAndSet(false, true)) {
+                    abandoned();
+                }
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) throws IOException {
+                // completed by container before response is written
+                if (completed.compareAndSet(false, true)) {
+                    abandoned();
+                }
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) throws IOException {
+            }
+        });
+    }
+
+    /**
+     * @param abandonListener called when client is found disconnected before it received the response
+     */
+    public void setAbandonListener(Runnable abandonListener) {
+        this.abandonListener = abandonListener;
+    }
+
+    /**
+     * @return true if request may be processed asynchronously
+     */
+    public static boolean isSupported(HttpServletRequest request) {
+        return request != null && request.isAsyncSupported();
+    }
+
+    /**
+     * Writes response and completes request unless it is already completed, i.e. timed out.
+     */
+    public void complete(ResponseTask task, ErrorHandler errorHandler) {
+        if (!completed.compareAndSet(false, true)) {
+            return;
+        }
+        HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+        boolean delivered = false;
+        try {
+            try {
+                task.execute(response);
+            } catch (Exception e) {
+                errorHandler.handleError(e, response);
+            }
+            response.flushBuffer(); // fails if client is gone
+            delivered = true;
+        } catch (IOException e) {
+            logger.debug("Response not delivered: " + e.getMessage());
+        } finally {
+            asyncContext.complete();
+        }
+        if (!delivered) {
+            abandoned();
+        }
+    }
+
+    private void abandoned() {
+        Runnable listener = abandonListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+}
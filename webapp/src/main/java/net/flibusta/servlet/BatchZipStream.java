@@ -0,0 +1,204 @@
+package net.flibusta.servlet;
+
+import net.flibusta.persistence.dao.BookFile;
+import net.flibusta.util.StoredZipWriter;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ZIP of a batch written entry by entry as books become ready. Entries are STORED (books are compressed
+ * already) by {@link StoredZipWriter} and sent to the client at once, the same bytes are written to the batch
+ * file, which is cached when all books are packed. Client disconnect does not stop the batch file.
+ */
+public class BatchZipStream {
+    Logger logger = Logger.getLogger(BatchZipStream.class);
+
+    private final File batchFile;
+    private final TeeChannel teeChannel;
+    private final StoredZipWriter zipWriter;
+    private final Set<String> entryNames = new HashSet<String>();
+    private final CountDownLatch remaining;
+    private int failedCount = 0;
+    private boolean finished = false;
+
+    /**
+     * @param books number of entries expected, see {@link #await}
+     */
+    public BatchZipStream(OutputStream clientStream, File batchFile, int books) throws IOException {
+        this.batchFile = batchFile;
+        this.teeChannel = new TeeChannel(clientStream, new FileOutputStream(batchFile).getChannel());
+        this.zipWriter = new StoredZipWriter(teeChannel);
+        this.remaining = new CountDownLatch(books);
+    }
+
+    /**
+     * Adds book entry and sends it to the client
+     */
+    public synchronized void addBook(BookFile book) throws IOException {
+        try {
+            String name = book.getFile().getName();
+            if (finished || !entryNames.add(name)) {
+                return;
+            }
+            zipWriter.addEntry(name, book.getFile(), book.getSize(), book.getCrc32());
+            teeChannel.flush();
+        } catch (IOException e) {
+            failedCount++; // batch file is broken
+            throw e;
+        } finally {
+            remaining.countDown();
+        }
+    }
+
+    /**
+     * Adds text entry <code>name.error.txt</code> which explains why the book is missing
+     */
+    public synchronized void addError(String name, String message) throws IOException {
+        try {
+            failedCount++;
+            if (finished) {
+                return;
+            }
+            String entryName = name + ".error.txt";
+            for (int i = 2; !entryNames.add(entryName); i++) {
+                entryName = name + "." + i + ".error.txt";
+            }
+            zipWriter.addEntry(entryName, (message + "\r\n").getBytes("UTF-8"));
+            teeChannel.flush();
+        } finally {
+            remaining.countDown();
+        }
+    }
+
+    /**
+     * Waits until all expected entries are added
+     *
+     * @return false if timed out
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return remaining.await(timeout, unit);
+    }
+
+    /**
+     * Writes ZIP directory. Entries added later are ignored. Batch file is deleted unless all books are packed.
+     *
+     * @return true if batch file contains all books and may be cached, false if it is deleted or the stream is
+     *         already finished
+     */
+    public synchronized boolean finish() throws IOException {
+        if (finished) {
+            return false;
+        }
+        finished = true;
+        boolean complete = remaining.getCount() == 0 && failedCount == 0;
+        try {
+            zipWriter.finish();
+            teeChannel.flush();
+        } finally {
+            teeChannel.closeFile();
+            if (!complete) {
+                batchFile.delete();
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * Stops writing to the client, e.g. when the request is ended by container. Batch file is written further.
+     * Not synchronized, so it doesn't wait for entry being written.
+     */
+    public void detachClient() {
+        teeChannel.clientFailed = true;
+    }
+
+    public File getBatchFile() {
+        return batchFile;
+    }
+
+    /**
+     * Writes to the batch file and the client. Client failure is logged once and the file is written further.
+     */
+    private class TeeChannel implements WritableByteChannel {
+        private final OutputStream clientStream;
+        private final FileChannel fileChannel;
+        private final byte[] buffer = new byte[8 * 1024];
+        private volatile boolean clientFailed = false;
+
+        private TeeChannel(OutputStream clientStream, FileChannel fileChannel) {
+            this.clientStream = clientStream;
+            this.fileChannel = fileChannel;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            int length = source.remaining();
+            if (!clientFailed) {
+                try {
+                    writeToClient(source.duplicate());
+                } catch (IOException e) {
+                    clientGone(e);
+                }
+            }
+            while (source.hasRemaining()) {
+                fileChannel.write(source);
+            }
+            return length;
+        }
+
+        private void writeToClient(ByteBuffer source) throws IOException {
+            if (source.hasArray()) {
+                clientStream.write(source.array(), source.arrayOffset() + source.position(), source.remaining());
+                return;
+            }
+            while (source.hasRemaining()) {
+                int length = Math.min(buffer.length, source.remaining());
+                source.get(buffer, 0, length);
+                clientStream.write(buffer, 0, length);
+            }
+        }
+
+        private void flush() {
+            if (!clientFailed) {
+                try {
+                    clientStream.flush();
+                } catch (IOException e) {
+                    clientGone(e);
+                }
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return fileChannel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeFile();
+        }
+
+        private void closeFile() {
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close batch file " + batchFile + ": " + e.getMessage());
+            }
+        }
+
+        private void clientGone(IOException e) {
+            clientFailed = true;
+            logger.info("Client of streamed batch " + batchFile.getName() + " disconnected: " + e.getMessage());
+        }
+    }
+}
@@ -1,28 +1,44 @@
 package net.flibusta.servlet;
 
+import net.flibusta.concurrent.Cancellation;
 import net.flibusta.concurrent.LockManager;
+import net.flibusta.concurrent.OverloadException;
+import net.flibusta.converter.ConversionJob;
+import net.flibusta.converter.ConversionResult;
+import net.flibusta.converter.ConversionScheduler;
 import net.flibusta.converter.ConversionService;
 import net.flibusta.converter.ConversionServiceFactory;
+import net.flibusta.converter.SpeculativeConverter;
+import net.flibusta.converter.impl.SingleFlightConversionService;
 import net.flibusta.download.DownloadService;
+import net.flibusta.download.DownloadedFile;
 import net.flibusta.persistence.dao.BookDao;
 import net.flibusta.persistence.dao.UrlDao;
 import net.flibusta.persistence.dao.UrlInfo;
-import org.apache.commons.codec.digest.DigestUtils;
-import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @Controller
 public class ConverterController implements SingleUrlConverter {
@@ -35,6 +51,8 @@ public class ConverterController implements SingleUrlConverter {
     public static final String PARAM_SOURCE_FORMAT = "src";
     public static final String DEFAULT_OUT_FORMAT = "mobi";
     public static final String DEFAULT_SRC_FORMAT = "fb2";
+    public static final String PARAM_ASYNC = "async";
+    public static final String PARAM_WAIT = "wait";
     @Autowired
     private UrlDao urlDao;
 
@@ -50,15 +68,44 @@ public class ConverterController implements SingleUrlConverter {
     @Autowired
     private LockManager lockManager;
 
+    @Autowired
+    private ConversionScheduler conversionScheduler;
+
+    @Autowired(required = false)
+    private SpeculativeConverter speculativeConverter;
+
     private String staticRedirectUrlPrefix = null;
     private Boolean useXAccelRerirect = false;
+    private int maxResultWaitSeconds = 30;
+    private int maxAsyncWaitSeconds = 300;
+    private int requestDeadlineSeconds = 300;
+
+    private final AsyncResponder.ErrorHandler asyncErrorHandler = new AsyncResponder.ErrorHandler() {
+        @Override
+        public void handleError(Exception e, HttpServletResponse response) {
+            if (e instanceof RejectedExecutionException) {
+                handleOverload((RejectedExecutionException) e, response);
+            } else if (e instanceof CancellationException) {
+                handleCancellation((CancellationException) e, response);
+            } else {
+                handleException(e, response);
+            }
+        }
+    };
 
     @Override
+    public void convert(String sourceUrl, String sourceMd5, String outputFormat, String sourceFormat,
+                        HttpServletResponse response) throws Exception {
+        convert(sourceUrl, sourceMd5, outputFormat, sourceFormat, false, null, response);
+    }
+
     @RequestMapping(value = "/convert", method = {RequestMethod.GET, RequestMethod.HEAD})
     public void convert(@RequestParam(PARAM_URL) String sourceUrl,
                         @RequestParam(value = PARAM_SOURCE_MD5, required = false) String sourceMd5,
                         @RequestParam(value = PARAM_OUT_FORMAT, required = false) String outputFormat,
                         @RequestParam(value = PARAM_SOURCE_FORMAT, required = false) String sourceFormat,
+                        @RequestParam(value = PARAM_ASYNC, required = false, defaultValue = "false") boolean async,
+                        HttpServletRequest request,
                         HttpServletResponse response) throws Exception {
 
         if (sourceUrl == null || sourceUrl.length() == 0) {
@@ -69,59 +116,75 @@ public class ConverterController implements SingleUrlConverter {
             outputFormat = DEFAULT_OUT_FORMAT;
         }
 
-        String bookId;
-        lockManager.lock(sourceUrl);
-        try {
-//            System.out.println("locked " + Thread.currentThread().getName() + " " + sourceUrl);
-            UrlInfo urlInfo = urlDao.findUrlInfo(sourceUrl);
-            if (urlInfo == null) {
-
-                if (sourceMd5 != null && sourceMd5.length() == 32) {
-                    urlInfo = new UrlInfo();
-                    urlInfo.setBookId(sourceMd5);
-                    urlInfo.setSourceFormat(sourceFormat);
-                } else if (sourceUrl.contains("flibusta.net/b/")) { // guess book id and source format from url
-                    URI uri = new URI(sourceUrl);
-                    String path = uri.getPath();
-                    String[] pathElements = path.split("/");
-                    if (pathElements.length == 4 && pathElements[2].length() == 32) {
-                        urlInfo = new UrlInfo();
-                        urlInfo.setBookId(pathElements[2]);
-                        String format = "download".equals(pathElements[3]) ? "fb2" : pathElements[3];
-                        urlInfo.setSourceFormat(format);
-                        urlDao.addUrlReference(sourceUrl, urlInfo.getBookId(), urlInfo.getSourceFormat());
-                        logger.debug("guessed bookId=" + urlInfo.getBookId() + " format=" + urlInfo.getSourceFormat() + " from url=" + sourceUrl);
-                    }
-                }
-            }
+        if (async) {
+            submitConversion(sourceUrl, sourceMd5, outputFormat, sourceFormat, response);
+            return;
+        }
 
-            if (urlInfo != null) {
-                // source book already downloaded
-                bookId = urlInfo.getBookId();
-                File book = bookDao.findBook(bookId, outputFormat);
-                if (book != null) {
-                    // book already converted
-                    redirectToFile(bookId, book, outputFormat, response);
-                    return;
-                }
+        if (AsyncResponder.isSupported(request)) {
+            convertAsync(sourceUrl, sourceMd5, outputFormat, sourceFormat, request, response);
+            return;
+        }
 
-                // book downloaded but not converted yet
-                if (bookDao.findBook(bookId, urlInfo.getSourceFormat()) == null) { // just safety check for lost files
-                    urlDao.removeUrlReference(sourceUrl);
-                    bookId = downloadBook(sourceUrl, sourceFormat);
-                }
-            } else {
-                // source book not downloaded yet
-                bookId = downloadBook(sourceUrl, sourceFormat);
-            }
+        ConversionResult result;
+        Cancellation previous = Cancellation.attach(new Cancellation(TimeUnit.SECONDS.toMillis(requestDeadlineSeconds)));
+        try {
+            result = convertUrl(sourceUrl, sourceMd5, outputFormat, sourceFormat);
         } finally {
-            lockManager.unlock(sourceUrl);
-//            System.out.println("unlocked " + Thread.currentThread().getName() + " " + sourceUrl);
+            Cancellation.restore(previous);
+        }
+        redirectToFile(result.getBookId(), result.getFile(), outputFormat, response);
+    }
+
+    @RequestMapping(value = "/status/{jobId}", method = RequestMethod.GET)
+    public void status(@PathVariable("jobId") String jobId, HttpServletResponse response) throws Exception {
+        ConversionJob job = conversionScheduler.findJob(jobId);
+        if (job == null) {
+            sendUnknownJob(jobId, response);
+            return;
+        }
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType("text/plain");
+        PrintWriter writer = response.getWriter();
+        writer.print(job.getStatus());
+        Throwable failure = job.getFailure();
+        if (failure != null) {
+            writer.print(" " + failure.getMessage());
+        }
+    }
 
+    /**
+     * Long-poll variant of job status: waits for job completion up to <code>wait</code> seconds and
+     * redirects to converted file when it is ready.
+     */
+    @RequestMapping(value = "/result/{jobId}", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public void result(@PathVariable("jobId") String jobId,
+                       @RequestParam(value = PARAM_WAIT, required = false, defaultValue = "0") int waitSeconds,
+                       HttpServletRequest request,
+                       HttpServletResponse response) throws Exception {
+        ConversionJob job = conversionScheduler.findJob(jobId);
+        if (job == null) {
+            sendUnknownJob(jobId, response);
+            return;
         }
 
-        logger.info("Start conversion url=" + sourceUrl + " bookId=" + bookId + " format=" + outputFormat);
-        makeConversion(bookId, outputFormat, response);
+        waitSeconds = Math.max(0, Math.min(waitSeconds, maxResultWaitSeconds));
+        if (!job.isDone() && waitSeconds > 0 && AsyncResponder.isSupported(request)) {
+            respondOnCompletion(job, request, waitSeconds);
+            return;
+        }
+
+        ConversionResult result;
+        try {
+            result = job.get(waitSeconds, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            sendJobAccepted(job, response);
+            return;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+        redirectToFile(result.getBookId(), result.getFile(), result.getFormat(), response);
     }
 
     @RequestMapping(value = "/clean", method = RequestMethod.GET)
@@ -136,11 +199,12 @@ public class ConverterController implements SingleUrlConverter {
             UrlInfo urlInfo = urlDao.findUrlInfo(sourceUrl);
             if (urlInfo != null) {
                 String bookId = urlInfo.getBookId();
-                lockManager.lock(bookId);
+                // waits for running conversions which read and write files of the book
+                SingleFlightConversionService.lockBook(lockManager, bookId);
                 try {
                     bookDao.deleteBook(bookId);
                 } finally {
-                    lockManager.unlock(bookId);
+                    SingleFlightConversionService.unlockBook(lockManager, bookId);
                 }
                 urlDao.removeUrlReference(sourceUrl);
             }
@@ -154,6 +218,35 @@ public class ConverterController implements SingleUrlConverter {
     }
 
 
+    @ExceptionHandler(RejectedExecutionException.class)
+    public void handleOverload(RejectedExecutionException e, HttpServletResponse response) {
+        logger.warn("Request rejected by ConverterController: " + e.getMessage());
+        response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+        int retryAfter = e instanceof OverloadException ? ((OverloadException) e).getRetryAfterSeconds() : OverloadException.DEFAULT_RETRY_AFTER_SECONDS;
+        response.setHeader("Retry-After", Integer.toString(retryAfter));
+        response.setContentType("text/plain");
+        try {
+            PrintWriter writer = response.getWriter();
+            writer.println(e.getMessage());
+        } catch (IOException e1) {
+            logger.error(e1);
+        }
+    }
+
+    @ExceptionHandler(CancellationException.class)
+    public void handleCancellation(CancellationException e, HttpServletResponse response) {
+        logger.info("Conversion cancelled: " + e.getMessage());
+        response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+        response.setHeader("Retry-After", Integer.toString(OverloadException.DEFAULT_RETRY_AFTER_SECONDS));
+        response.setContentType("text/plain");
+        try {
+            PrintWriter writer = response.getWriter();
+            writer.println(e.getMessage());
+        } catch (IOException e1) {
+            logger.error(e1);
+        }
+    }
+
     @ExceptionHandler(Exception.class)
     public void handleException(Exception e, HttpServletResponse response) {
         logger.error("Exception sent by ConverterController: " + e.getMessage(), e);
@@ -167,27 +260,224 @@ public class ConverterController implements SingleUrlConverter {
         }
     }
 
-    private String downloadBook(String sourceUrl, String sourceFormat) throws Exception {
+    private ConversionResult convertUrl(String sourceUrl, String sourceMd5, String outputFormat, String sourceFormat) throws Exception {
+        String bookId;
+        lockManager.lock(sourceUrl);
+        try {
+            UrlInfo urlInfo = urlDao.findUrlInfo(sourceUrl);
+            if (urlInfo == null) {
+                urlInfo = guessUrlInfo(sourceUrl, sourceMd5, sourceFormat);
+                if (urlInfo != null && !isBookId(sourceMd5)) { // guessed from url
+                    urlDao.addUrlReference(sourceUrl, urlInfo.getBookId(), urlInfo.getSourceFormat());
+                    logger.debug("guessed bookId=" + urlInfo.getBookId() + " format=" + urlInfo.getSourceFormat() + " from url=" + sourceUrl);
+                }
+            }
+
+            if (urlInfo != null) {
+                // source book already downloaded
+                bookId = urlInfo.getBookId();
+                File book = bookDao.findBook(bookId, outputFormat);
+                if (book != null) {
+                    // book already converted
+                    return new ConversionResult(bookId, outputFormat, book);
+                }
+
+                // book downloaded but not converted yet
+                if (bookDao.findBook(bookId, urlInfo.getSourceFormat()) == null) { // just safety check for lost files
+                    urlDao.removeUrlReference(sourceUrl);
+                    bookId = downloadBook(sourceUrl, sourceFormat, outputFormat);
+                }
+            } else {
+                // source book not downloaded yet
+                bookId = downloadBook(sourceUrl, sourceFormat, outputFormat);
+            }
+        } finally {
+            lockManager.unlock(sourceUrl);
+        }
+
+        logger.info("Start conversion url=" + sourceUrl + " bookId=" + bookId + " format=" + outputFormat);
+        return new ConversionResult(bookId, outputFormat, makeConversion(bookId, outputFormat));
+    }
+
+    /**
+     * Redirects to converted file at once if it is already known or submits conversion job and
+     * responds with job id.
+     */
+    private void submitConversion(String sourceUrl, String sourceMd5, String outputFormat,
+                                  String sourceFormat, HttpServletResponse response) throws Exception {
+        ConversionResult result = findConversionResult(sourceUrl, sourceMd5, outputFormat, sourceFormat);
+        if (result != null) {
+            redirectToFile(result.getBookId(), result.getFile(), outputFormat, response);
+            return;
+        }
+
+        ConversionJob job = submitJob(sourceUrl, sourceMd5, outputFormat, sourceFormat);
+        sendJobAccepted(job, response);
+    }
+
+    /**
+     * Redirects to converted file at once if it is already known or runs conversion job and redirects when the
+     * job is completed. Request thread is released while conversion runs.
+     */
+    private void convertAsync(String sourceUrl, String sourceMd5, String outputFormat, String sourceFormat,
+                              HttpServletRequest request, HttpServletResponse response) throws Exception {
+        ConversionResult result = findConversionResult(sourceUrl, sourceMd5, outputFormat, sourceFormat);
+        if (result != null) {
+            redirectToFile(result.getBookId(), result.getFile(), outputFormat, response);
+            return;
+        }
+
+        final ConversionJob job = submitJob(sourceUrl, sourceMd5, outputFormat, sourceFormat);
+        AsyncResponder responder = respondOnCompletion(job, request, maxAsyncWaitSeconds);
+        responder.setAbandonListener(new Runnable() {
+            @Override
+            public void run() {
+                // nobody else knows the job id yet
+                logger.debug("Client disconnected, cancel job=" + job.getId());
+                job.cancel(false);
+            }
+        });
+    }
+
+    /**
+     * Redirects to converted file when the job is completed. If the job is not completed in time, responds with
+     * job id, so client can poll the result.
+     */
+    private AsyncResponder respondOnCompletion(final ConversionJob job, HttpServletRequest request, long timeoutSeconds) {
+        final AsyncResponder responder = new AsyncResponder(request, timeoutSeconds, new AsyncResponder.ResponseTask() {
+            @Override
+            public void execute(HttpServletResponse response) throws Exception {
+                sendJobAccepted(job, response);
+            }
+        }, asyncErrorHandler);
+        job.addCompletionListener(new Runnable() {
+            @Override
+            public void run() {
+                responder.complete(new AsyncResponder.ResponseTask() {
+                    @Override
+                    public void execute(HttpServletResponse response) throws Exception {
+                        ConversionResult result;
+                        try {
+                            result = job.get();
+                        } catch (ExecutionException e) {
+                            Throwable cause = e.getCause();
+                            throw cause instanceof Exception ? (Exception) cause : e;
+                        }
+                        redirectToFile(result.getBookId(), result.getFile(), result.getFormat(), response);
+                    }
+                }, asyncErrorHandler);
+            }
+        });
+        return responder;
+    }
+
+    private ConversionJob submitJob(final String sourceUrl, final String sourceMd5, final String outputFormat,
+                                    final String sourceFormat) {
+        ConversionJob job = conversionScheduler.submit(new Callable<ConversionResult>() {
+            @Override
+            public ConversionResult call() throws Exception {
+                return convertUrl(sourceUrl, sourceMd5, outputFormat, sourceFormat);
+            }
+        });
+        logger.debug("Submitted conversion job=" + job.getId() + " url=" + sourceUrl + " format=" + outputFormat);
+        return job;
+    }
+
+    /**
+     * @return already converted book or null
+     */
+    private ConversionResult findConversionResult(String sourceUrl, String sourceMd5, String outputFormat,
+                                                  String sourceFormat) throws URISyntaxException {
+        UrlInfo urlInfo = urlDao.findUrlInfo(sourceUrl);
+        if (urlInfo == null) {
+            urlInfo = guessUrlInfo(sourceUrl, sourceMd5, sourceFormat);
+        }
+        if (urlInfo != null) {
+            File book = bookDao.findBook(urlInfo.getBookId(), outputFormat);
+            if (book != null) {
+                return new ConversionResult(urlInfo.getBookId(), outputFormat, book);
+            }
+        }
+        return null;
+    }
+
+    private boolean isBookId(String sourceMd5) {
+        return sourceMd5 != null && sourceMd5.length() == 32;
+    }
+
+    private void sendJobAccepted(ConversionJob job, HttpServletResponse response) throws IOException {
+        response.setStatus(HttpStatus.ACCEPTED.value());
+        response.setHeader("Location", response.encodeRedirectURL("/converter/get/result/" + job.getId()));
+        response.setContentType("text/plain");
+        PrintWriter writer = response.getWriter();
+        writer.print(job.getId());
+    }
+
+    private void sendUnknownJob(String jobId, HttpServletResponse response) throws IOException {
+        logger.debug("Unknown conversion job=" + jobId);
+        response.setStatus(HttpStatus.NOT_FOUND.value());
+        response.setContentType("text/plain");
+        PrintWriter writer = response.getWriter();
+        writer.print("Unknown job " + jobId);
+    }
+
+    /**
+     * Guess book id and source format by md5 parameter or from url
+     */
+    private UrlInfo guessUrlInfo(String sourceUrl, String sourceMd5, String sourceFormat) throws URISyntaxException {
+        UrlInfo urlInfo = null;
+        if (isBookId(sourceMd5)) {
+            urlInfo = new UrlInfo();
+            urlInfo.setBookId(sourceMd5);
+            urlInfo.setSourceFormat(sourceFormat);
+        } else if (sourceUrl.contains("flibusta.net/b/")) {
+            URI uri = new URI(sourceUrl);
+            String path = uri.getPath();
+            String[] pathElements = path.split("/");
+            if (pathElements.length == 4 && pathElements[2].length() == 32) {
+                urlInfo = new UrlInfo();
+                urlInfo.setBookId(pathElements[2]);
+                String format = "download".equals(pathElements[3]) ? "fb2" : pathElements[3];
+                urlInfo.setSourceFormat(format);
+            }
+        }
+        return urlInfo;
+    }
+
+    /**
+     * @param outputFormat format requested by the client, other formats of new book are converted speculatively
+     */
+    private String downloadBook(String sourceUrl, String sourceFormat, String outputFormat) throws Exception {
 
-        File sourceFile = downloadService.fetch(new URL(sourceUrl));
-        if (sourceFile == null) {
+        DownloadedFile downloadedFile = downloadService.fetch(new URL(sourceUrl));
+        if (downloadedFile == null) {
             throw new Exception("Can't download book from url " + sourceUrl);
         }
 
-        String bookId = calculateBookId(sourceFile);
+        File sourceFile = downloadedFile.getFile();
+        String bookId = downloadedFile.getMd5();
+
+        if (downloadedFile.isAlreadyStored()) {
+            // same content already downloaded from other source, transfer was skipped
+            urlDao.addUrlReference(sourceUrl, bookId, downloadedFile.getFormat());
+            return bookId;
+        }
 
         if (sourceFormat == null) {
-            try {
-                sourceFormat = resolveSourceFormat(sourceFile);
-            } catch (Exception e) {
-                logger.error("book " + bookId + " Error: " + e.getMessage());
-                throw e;
+            sourceFormat = downloadedFile.getFormat();
+            if (sourceFormat == null) {
+                logger.error("book " + bookId + " Error: can't determine source format");
+                sourceFile.delete();
+                throw new Exception("Can't determine source format. Please set url parameter '" + PARAM_SOURCE_FORMAT + "'");
             }
         }
 
         urlDao.addUrlReference(sourceUrl, bookId, sourceFormat);
         if (bookDao.findBook(bookId, sourceFormat) == null) {
             bookDao.addBook(bookId, sourceFormat, sourceFile);
+            if (speculativeConverter != null) {
+                speculativeConverter.submit(bookId, outputFormat);
+            }
         } else {
             // this book already downloaded from other source
             sourceFile.delete();
@@ -195,21 +485,16 @@ public class ConverterController implements SingleUrlConverter {
         return bookId;
     }
 
-    private void makeConversion(String bookId, String outputFormat, HttpServletResponse response) throws Exception {
-        File convertedFile;
-        lockManager.lock(bookId);
-        try {
-            convertedFile = bookDao.findBook(bookId, outputFormat);
-            if (convertedFile == null) {
-                ConversionService conversionService = conversionServiceFactory.getConversionService(outputFormat);
-                convertedFile = conversionService.convert(bookId);
-            }
-        } finally {
-            lockManager.unlock(bookId);
+    private File makeConversion(String bookId, String outputFormat) throws Exception {
+        File convertedFile = bookDao.findBook(bookId, outputFormat);
+        if (convertedFile == null) {
+            // concurrent conversions of the same book are coalesced by conversion service
+            ConversionService conversionService = conversionServiceFactory.getConversionService(outputFormat);
+            convertedFile = conversionService.convert(bookId);
         }
         if (convertedFile != null && convertedFile.exists()) {
             logger.debug("converted bookId=" + bookId + " to format=" + outputFormat);
-            redirectToFile(bookId, convertedFile, outputFormat, response);
+            return convertedFile;
         } else {
             throw new Exception("Conversion failed. bookId=" + bookId + " to format=" + outputFormat);
         }
@@ -225,6 +510,7 @@ public class ConverterController implements SingleUrlConverter {
         } else {
             redirectLocation = staticRedirectUrlPrefix + bookDao.findBookPath(bookId, outputFormat);
         }
+        bookDao.markAccessed(bookId, outputFormat, convertedFile); // kept by storage quota until it is downloaded
         if (!useXAccelRerirect) {
             response.sendRedirect(redirectLocation);
         } else {
@@ -235,51 +521,6 @@ public class ConverterController implements SingleUrlConverter {
     }
 
 
-    private String calculateBookId(File sourceFile) throws Exception {
-        FileInputStream source = new FileInputStream(sourceFile);
-        try {
-            return DigestUtils.md5Hex(source);
-        } finally {
-            IOUtils.closeQuietly(source);
-        }
-    }
-
-    private String resolveSourceFormat(File sourceFile) throws Exception {
-        String sourceFileName = sourceFile.getName();
-        String extension = FilenameUtils.getExtension(sourceFileName);
-        if (extension.length() > 1) {
-            return extension;
-        }
-
-        FileReader fileReader = new FileReader(sourceFile);
-        BufferedReader reader = new BufferedReader(fileReader, 1024);
-        String line;
-
-        line = getNextLine(reader);
-
-        if (line != null) {
-            if (line.startsWith("<?xml")) {
-                line = getNextLine(reader);
-                if (line != null && line.toLowerCase().contains("<fictionbook")) {
-                    return "fb2";
-                }
-            } else {
-                if (line.contains("mimetypeapplication/epub+zip")) {
-                    return "epub";
-                }
-            }
-        }
-        throw new Exception("Can't determine source format. Please set url parameter '" + PARAM_SOURCE_FORMAT + "'");
-    }
-
-    private String getNextLine(BufferedReader reader) throws IOException {
-        String line;
-        do {
-            line = reader.readLine();
-        } while (line != null && line.trim().length() == 0);
-        return line;
-    }
-
     public void setStaticRedirectUrlPrefix(String staticRedirectUrlPrefix) {
         if (!staticRedirectUrlPrefix.endsWith("/")) {
             staticRedirectUrlPrefix = staticRedirectUrlPrefix + "/";
@@ -290,4 +531,19 @@ public class ConverterController implements SingleUrlConverter {
     public void setUseXAccelRerirect(Boolean useXAccelRerirect) {
         this.useXAccelRerirect = useXAccelRerirect;
     }
+
+    public void setMaxResultWaitSeconds(int maxResultWaitSeconds) {
+        this.maxResultWaitSeconds = maxResultWaitSeconds;
+    }
+
+    public void setMaxAsyncWaitSeconds(int maxAsyncWaitSeconds) {
+        this.maxAsyncWaitSeconds = maxAsyncWaitSeconds;
+    }
+
+    /**
+     * @param requestDeadlineSeconds synchronous conversion is cancelled when not completed in time
+     */
+    public void setRequestDeadlineSeconds(int requestDeadlineSeconds) {
+        this.requestDeadlineSeconds = requestDeadlineSeconds;
+    }
 }
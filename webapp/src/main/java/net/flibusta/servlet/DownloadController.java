@@ -1,7 +1,8 @@
 package net.flibusta.servlet;
 
 import net.flibusta.persistence.dao.BookDao;
-import org.apache.commons.io.IOUtils;
+import net.flibusta.persistence.dao.BookFile;
+import net.flibusta.util.HotFileCache;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
@@ -11,45 +12,290 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 
 import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
 
+/**
+ * Sends stored books. Stored file of the book is never changed, so responses are cacheable for long, validated
+ * by ETag and Last-Modified and may be resumed by single or multiple byte ranges. File body is written by
+ * {@link FileChannel#transferTo} or by container sendfile when it is supported, hot books are written from
+ * {@link HotFileCache} if it is configured.
+ */
 @Controller
 public class DownloadController {
     Logger logger = Logger.getLogger(DownloadController.class);
 
+    static final String SENDFILE_SUPPORT_ATTRIBUTE = "org.apache.tomcat.sendfile.support";
+    static final String SENDFILE_FILENAME_ATTRIBUTE = "org.apache.tomcat.sendfile.filename";
+    static final String SENDFILE_START_ATTRIBUTE = "org.apache.tomcat.sendfile.start";
+    static final String SENDFILE_END_ATTRIBUTE = "org.apache.tomcat.sendfile.end";
+
+    private static final long CACHE_MAX_AGE_SECONDS = 365L * 24 * 60 * 60;
+    private static final int MAX_RANGES = 16;
+
     @Autowired
-    private BookDao bookDao;
+    BookDao bookDao;
+
+    @Autowired(required = false)
+    HotFileCache hotFileCache;
 
     @RequestMapping(value = "/download/{bookid}/{format}/{name}", method = RequestMethod.GET)
     public void download(@PathVariable("bookid") String bookId, @PathVariable("format") String format, @PathVariable("name") String fileName,
-                         HttpServletResponse response) throws IOException {
-        File file = bookDao.findBook(bookId, format);
-        if (file == null) {
+                         HttpServletRequest request, HttpServletResponse response) throws IOException {
+        BookFile book = bookDao.findBookFile(bookId, format);
+        if (book == null) {
             response.setStatus(HttpStatus.NOT_FOUND.value());
             logger.warn("File for download not found: bookId=" + bookId + " format=" + format + " name=" + fileName);
             return;
         }
+        bookDao.markAccessed(bookId, format, book.getFile());
 
         logger.debug("Send file:  bookId=" + bookId + " format=" + format + " name=" + fileName);
-        streamFile(file, format, response);
+        sendFile(book, getETag(bookId, book), getContentType(format), request, response);
+    }
+
+    private void sendFile(BookFile book, String eTag, String contentType, HttpServletRequest request,
+                          HttpServletResponse response) throws IOException {
+        File file = book.getFile();
+        long length = file.length();
+        long lastModified = file.lastModified();
+
+        response.setHeader("ETag", eTag);
+        response.setDateHeader("Last-Modified", lastModified);
+        response.setHeader("Cache-Control", "public, max-age=" + CACHE_MAX_AGE_SECONDS);
+        response.setHeader("Accept-Ranges", "bytes");
+
+        if (isNotModified(eTag, lastModified, request)) {
+            response.setStatus(HttpStatus.NOT_MODIFIED.value());
+            return;
+        }
+
+        response.setHeader("Content-Disposition", "attachment; filename=" + file.getName());
+        ByteBuffer content = hotFileCache != null ? hotFileCache.get(eTag, file) : null;
+        List<Range> ranges = isRangeApplicable(eTag, lastModified, request)
+                ? parseRanges(request.getHeader("Range"), length)
+                : null;
+
+        if (ranges == null) {
+            response.setContentType(contentType);
+            sendRange(file, content, new Range(0, length - 1), request, response);
+        } else if (ranges.isEmpty()) {
+            response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+            response.setHeader("Content-Range", "bytes */" + length);
+        } else if (ranges.size() == 1) {
+            Range range = ranges.get(0);
+            response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+            response.setContentType(contentType);
+            response.setHeader("Content-Range", range.toContentRange(length));
+            sendRange(file, content, range, request, response);
+        } else {
+            response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+            sendMultipartRanges(file, content, ranges, contentType, response);
+        }
+    }
+
+    /**
+     * If-None-Match is compared weakly and takes precedence over If-Modified-Since
+     */
+    private boolean isNotModified(String eTag, long lastModified, HttpServletRequest request) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.equals("*") || tag.equals(eTag) || tag.equals("W/" + eTag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long ifModifiedSince = getDateHeader(request, "If-Modified-Since");
+        return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    /**
+     * @return false if If-Range validator does not match, so the whole file is sent
+     */
+    private boolean isRangeApplicable(String eTag, long lastModified, HttpServletRequest request) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.trim().startsWith("\"")) {
+            return ifRange.trim().equals(eTag); // strong comparison
+        }
+        long ifRangeDate = getDateHeader(request, "If-Range");
+        return ifRangeDate >= 0 && lastModified / 1000 == ifRangeDate / 1000;
+    }
+
+    private long getDateHeader(HttpServletRequest request, String name) {
+        if (request.getHeader(name) == null) {
+            return -1;
+        }
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return null if there is no valid Range header and the whole file is sent, empty list if no range is
+     *         satisfiable
+     */
+    static List<Range> parseRanges(String header, long length) {
+        if (header == null || !header.startsWith("bytes=")) {
+            return null;
+        }
+        List<Range> ranges = new ArrayList<Range>();
+        for (String spec : header.substring("bytes=".length()).split(",")) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long start;
+            long end;
+            try {
+                if (dash == 0) { // suffix: last n bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    start = Math.max(0, length - suffix);
+                    end = suffix > 0 ? length - 1 : -1;
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    String last = spec.substring(dash + 1);
+                    if (last.length() == 0) {
+                        end = length - 1;
+                    } else {
+                        long lastPosition = Long.parseLong(last);
+                        if (lastPosition < start) {
+                            return null; // invalid range makes the header ignored
+                        }
+                        end = Math.min(length - 1, lastPosition);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (start < length && start <= end) {
+                ranges.add(new Range(start, end));
+            }
+        }
+        if (ranges.size() > MAX_RANGES) {
+            return null; // too fragmented, whole file is cheaper
+        }
+        return ranges;
+    }
+
+    /**
+     * @param content cached content of the file or null
+     */
+    private void sendRange(File file, ByteBuffer content, Range range, HttpServletRequest request,
+                           HttpServletResponse response) throws IOException {
+        response.setHeader("Content-Length", Long.toString(range.getLength()));
+        if (range.getLength() == 0) {
+            return;
+        }
+        if (content == null && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTRIBUTE))) {
+            request.setAttribute(SENDFILE_FILENAME_ATTRIBUTE, file.getAbsolutePath());
+            request.setAttribute(SENDFILE_START_ATTRIBUTE, range.start);
+            request.setAttribute(SENDFILE_END_ATTRIBUTE, range.end + 1);
+            return;
+        }
+        ServletOutputStream outputStream = response.getOutputStream();
+        if (content != null) {
+            write(content, range, Channels.newChannel(outputStream));
+        } else {
+            FileChannel fileChannel = new FileInputStream(file).getChannel();
+            try {
+                transfer(fileChannel, range, Channels.newChannel(outputStream));
+            } finally {
+                fileChannel.close();
+            }
+        }
+        outputStream.flush();
     }
 
-    private void streamFile(File book, String outputFormat, HttpServletResponse response) throws IOException {
-        response.setContentType(getContentType(outputFormat));
-        response.setHeader("Content-Length", Long.toString(book.length()));
-        response.setHeader("Content-Disposition", "attachment; filename=" + book.getName());
+    private void sendMultipartRanges(File file, ByteBuffer content, List<Range> ranges, String contentType,
+                                     HttpServletResponse response) throws IOException {
+        String boundary = UUID.randomUUID().toString().replace("-", "");
+        long length = file.length();
+        List<byte[]> partHeaders = new ArrayList<byte[]>(ranges.size());
+        long contentLength = 0;
+        for (Range range : ranges) {
+            String partHeader = "\r\n--" + boundary + "\r\n"
+                    + "Content-Type: " + contentType + "\r\n"
+                    + "Content-Range: " + range.toContentRange(length) + "\r\n\r\n";
+            byte[] bytes = partHeader.getBytes("US-ASCII");
+            partHeaders.add(bytes);
+            contentLength += bytes.length + range.getLength();
+        }
+        byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes("US-ASCII");
+        contentLength += end.length;
+
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setHeader("Content-Length", Long.toString(contentLength));
 
         ServletOutputStream outputStream = response.getOutputStream();
-        FileInputStream inputStream = new FileInputStream(book);
+        WritableByteChannel outputChannel = Channels.newChannel(outputStream);
+        FileChannel fileChannel = content == null ? new FileInputStream(file).getChannel() : null;
         try {
-            IOUtils.copy(inputStream, outputStream);
+            for (int i = 0; i < ranges.size(); i++) {
+                outputStream.write(partHeaders.get(i));
+                if (content != null) {
+                    write(content, ranges.get(i), outputChannel);
+                } else {
+                    transfer(fileChannel, ranges.get(i), outputChannel);
+                }
+            }
+            outputStream.write(end);
         } finally {
-            IOUtils.closeQuietly(inputStream);
-            IOUtils.closeQuietly(outputStream);
+            if (fileChannel != null) {
+                fileChannel.close();
+            }
+        }
+        outputStream.flush();
+    }
+
+    private void transfer(FileChannel fileChannel, Range range, WritableByteChannel target) throws IOException {
+        long position = range.start;
+        while (position <= range.end) {
+            long transferred = fileChannel.transferTo(position, range.end + 1 - position, target);
+            if (transferred <= 0) {
+                throw new IOException("File is truncated while sent");
+            }
+            position += transferred;
+        }
+    }
+
+    private void write(ByteBuffer content, Range range, WritableByteChannel target) throws IOException {
+        ByteBuffer slice = content.duplicate();
+        slice.limit((int) range.end + 1);
+        slice.position((int) range.start);
+        while (slice.hasRemaining()) {
+            target.write(slice);
+        }
+    }
+
+    /**
+     * Strong validator: stored file of the book id is not changed, recorded CRC32 (or size and time for books
+     * stored without it) tells apart a file stored again.
+     */
+    private String getETag(String bookId, BookFile book) {
+        if (book.isMetadataValid()) {
+            return "\"" + bookId + "-" + Long.toHexString(book.getCrc32()) + "\"";
         }
+        File file = book.getFile();
+        return "\"" + bookId + "-" + Long.toHexString(file.length()) + "-" + Long.toHexString(file.lastModified()) + "\"";
     }
 
     private String getContentType(String outputFormat) {
@@ -64,5 +310,24 @@ public class DownloadController {
         return mimeType;
     }
 
+    /**
+     * Inclusive byte range
+     */
+    static class Range {
+        final long start;
+        final long end;
+
+        Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
 
+        long getLength() {
+            return end - start + 1;
+        }
+
+        String toContentRange(long length) {
+            return "bytes " + start + "-" + end + "/" + length;
+        }
+    }
 }
@@ -1,6 +1,8 @@
 package net.flibusta.servlet;
 
-import net.flibusta.mailer.BookSender;
+import net.flibusta.concurrent.OverloadException;
+import net.flibusta.mailer.MailJob;
+import net.flibusta.mailer.MailSpool;
 import net.flibusta.persistence.dao.BookDao;
 import net.flibusta.persistence.dao.UrlDao;
 import net.flibusta.persistence.dao.UrlInfo;
@@ -13,15 +15,16 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 
-import javax.servlet.ServletOutputStream;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
 import javax.servlet.http.HttpServletResponse;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.Properties;
+import java.util.concurrent.RejectedExecutionException;
 
 @Controller
-public class MailController {
+public class MailController implements MailSpool.BookResolver {
     Logger logger = Logger.getLogger(MailController.class);
 
     public static final String PARAM_URL = "url";
@@ -38,9 +41,12 @@ public class MailController {
 
     @Autowired
     BookDao bookDao;
-    private Properties mailSessionProperties;
-    private String fromAddress;
 
+    private MailSpool mailSpool;
+
+    /**
+     * Queues the book to be converted and mailed, responds 202 with job id when the job is stored in spool
+     */
     @RequestMapping(value = "/mail", method = RequestMethod.GET)
     public void convert(
             @RequestParam(value = PARAM_MD5, required = false) String sourceMd5,
@@ -48,7 +54,6 @@ public class MailController {
                         @RequestParam(value = PARAM_URL, required = false) String sourceUrl,
                         @RequestParam(PARAM_TARGET_ADDRESS) String targetAddress,
                         HttpServletResponse response) throws Exception {
-
         if (sourceMd5 == null && sourceUrl == null) {
             throw new Exception("One of parameters " + PARAM_URL + " or " + PARAM_MD5 + " required");
         }
@@ -57,25 +62,53 @@ public class MailController {
             throw new Exception("Parameter " + PARAM_URL + " required");
         }
 
-        singleConverterController.convert(sourceUrl, sourceMd5, outputFormat, null, null);
-
-        UrlInfo urlInfo = urlDao.findUrlInfo(sourceUrl);
-        if (urlInfo != null) {
-            File book = bookDao.findBook(urlInfo.getBookId(), outputFormat);
-            if (book != null) {
-                BookSender bookSender = new BookSender(book, urlInfo.getBookId(), outputFormat, targetAddress, mailSessionProperties, fromAddress, fromAddress);
-                bookSender.run();
-            } else {
-                response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-                ServletOutputStream out = response.getOutputStream();
-                out.print("Book conversion failed");
-                out.close();
-            }
-        } else {
-            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
-            ServletOutputStream out = response.getOutputStream();
-            out.print("Book download failed");
-            out.close();
+        try {
+            new InternetAddress(targetAddress, true);
+        } catch (AddressException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.setContentType("text/plain");
+            response.getWriter().println("Invalid address: " + e.getMessage());
+            return;
+        }
+
+        MailJob job = mailSpool.submit(sourceUrl, sourceMd5, outputFormat, targetAddress);
+        response.setStatus(HttpStatus.ACCEPTED.value());
+        response.setContentType("text/plain");
+        response.getWriter().println(job.getId());
+    }
+
+    /**
+     * Converts the book of queued job, called by mail spool with mail priority
+     */
+    @Override
+    public File resolveBook(MailJob job) throws Exception {
+        singleConverterController.convert(job.getSourceUrl(), job.getSourceMd5(), job.getFormat(), null, null);
+
+        UrlInfo urlInfo = urlDao.findUrlInfo(job.getSourceUrl());
+        if (urlInfo == null) {
+            throw new Exception("Book download failed: " + job.getSourceUrl());
+        }
+        File book = bookDao.findBook(urlInfo.getBookId(), job.getFormat());
+        if (book == null) {
+            throw new Exception("Book conversion failed: bookId=" + urlInfo.getBookId() + " format=" + job.getFormat());
+        }
+        job.setBookId(urlInfo.getBookId());
+        bookDao.markAccessed(urlInfo.getBookId(), job.getFormat(), book);
+        return book;
+    }
+
+    @ExceptionHandler(RejectedExecutionException.class)
+    public void handleOverload(RejectedExecutionException e, HttpServletResponse response) {
+        logger.warn("Request rejected by MailController: " + e.getMessage());
+        response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+        int retryAfter = e instanceof OverloadException ? ((OverloadException) e).getRetryAfterSeconds() : OverloadException.DEFAULT_RETRY_AFTER_SECONDS;
+        response.setHeader("Retry-After", Integer.toString(retryAfter));
+        response.setContentType("text/plain");
+        try {
+            PrintWriter writer = response.getWriter();
+            writer.println(e.getMessage());
+        } catch (IOException e1) {
+            logger.error(e1);
         }
     }
 
@@ -93,11 +126,7 @@ public class MailController {
     }
 
 
-    public void setMailSessionProperties(Properties mailSessionProperties) {
-        this.mailSessionProperties = mailSessionProperties;
-    }
-
-    public void setFromAddress(String fromAddress) {
-        this.fromAddress = fromAddress;
+    public void setMailSpool(MailSpool mailSpool) {
+        this.mailSpool = mailSpool;
     }
 }
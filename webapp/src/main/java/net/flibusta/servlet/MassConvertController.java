@@ -1,50 +1,71 @@
 package net.flibusta.servlet;
 
+import net.flibusta.concurrent.OverloadException;
+import net.flibusta.concurrent.Priority;
+import net.flibusta.concurrent.PriorityScheduler;
 import net.flibusta.persistence.dao.BatchDao;
 import net.flibusta.persistence.dao.BookDao;
+import net.flibusta.persistence.dao.BookFile;
 import net.flibusta.persistence.dao.UrlDao;
 import net.flibusta.persistence.dao.UrlInfo;
+import net.flibusta.util.StoredZipWriter;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Controller
 public class MassConvertController {
+    Logger logger = Logger.getLogger(MassConvertController.class);
 
     public static final String PARAM_URL = "url";
     public static final String PARAM_URL_TEMPLATE = "urltemplate";
     public static final String PARAM_OUT_FORMAT = "out";
     public static final String PARAM_SOURCE_FORMAT = "src";
+    public static final String PARAM_STREAM = "stream";
     public static final String DEFAULT_OUT_FORMAT = "mobi";
     public static final String DEFAULT_URL_TEMPLATE = "http://flibusta.net/b/{0}/download";
 
     private String staticRedirectUrlPrefix = null;
     private Boolean useXAccelRerirect = false;
-    private int convertersPoolSize = 10;
+    private int maxAsyncWaitSeconds = 600;
+    private boolean streamBatches = false;
 
-
-    ExecutorService converterExecutor = Executors.newFixedThreadPool(convertersPoolSize);
+    @Autowired
+    PriorityScheduler priorityScheduler;
 
     @Autowired
     SingleUrlConverter  singleConverterController;
@@ -58,10 +79,28 @@ public class MassConvertController {
     @Autowired
     BookDao bookDao;
 
+    public void convert(@RequestParam(PARAM_URL) String sourceUrlParams,
+                        @RequestParam(value = PARAM_URL_TEMPLATE, required = false, defaultValue = DEFAULT_URL_TEMPLATE) String sourceUrlTemplate,
+                        @RequestParam(value = PARAM_OUT_FORMAT, required = false, defaultValue = DEFAULT_OUT_FORMAT) String outputFormat,
+                        HttpServletResponse response) throws Exception {
+        convert(sourceUrlParams, sourceUrlTemplate, outputFormat, null, response);
+    }
+
+    public void convert(String sourceUrlParams, String sourceUrlTemplate, String outputFormat,
+                        HttpServletRequest request, HttpServletResponse response) throws Exception {
+        convert(sourceUrlParams, sourceUrlTemplate, outputFormat, null, request, response);
+    }
+
+    /**
+     * @param stream true - ZIP is streamed to the client while books are converted, false - client is redirected
+     *               to packed batch, null - configured default
+     */
     @RequestMapping(value = "/batch", method = RequestMethod.GET)
     public void convert(@RequestParam(PARAM_URL) String sourceUrlParams,
                         @RequestParam(value = PARAM_URL_TEMPLATE, required = false, defaultValue = DEFAULT_URL_TEMPLATE) String sourceUrlTemplate,
                         @RequestParam(value = PARAM_OUT_FORMAT, required = false, defaultValue = DEFAULT_OUT_FORMAT) String outputFormat,
+                        @RequestParam(value = PARAM_STREAM, required = false) Boolean stream,
+                        HttpServletRequest request,
                         HttpServletResponse response) throws Exception {
 
         if (sourceUrlParams == null || sourceUrlParams.length() == 0) {
@@ -69,10 +108,10 @@ public class MassConvertController {
         }
 
 
-        String[] sourceUrls = getSourceUrls(sourceUrlTemplate, sourceUrlParams);
+        final String[] sourceUrls = getSourceUrls(sourceUrlTemplate, sourceUrlParams);
         Arrays.sort(sourceUrls);
 
-        String batchSignature = calculateBatchSignature(sourceUrls);
+        final String batchSignature = calculateBatchSignature(sourceUrls);
 
         String batchFilePath = batchDao.findBatchPath(batchSignature, outputFormat);
 
@@ -81,23 +120,254 @@ public class MassConvertController {
             return;
         }
 
+        boolean streamed = stream != null ? stream : streamBatches;
+        // already converted books are resolved at once and not passed to conversion
+        Map<String, BookFile> convertedBooks = findConvertedBooks(Arrays.asList(sourceUrls), outputFormat, streamed);
+        List<String> pendingUrls = new ArrayList<String>(sourceUrls.length);
+        for (String sourceUrl : sourceUrls) {
+            if (!convertedBooks.containsKey(sourceUrl)) {
+                pendingUrls.add(sourceUrl);
+            }
+        }
+
+        if (streamed) {
+            streamBatch(sourceUrls, convertedBooks, pendingUrls, outputFormat, batchSignature, request, response);
+            return;
+        }
 
-        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(sourceUrls.length);
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(pendingUrls.size());
 
-        for (final String sourceUrl : sourceUrls) {
+        for (final String sourceUrl : pendingUrls) {
             tasks.add(createSingleConversionTask(sourceUrl, outputFormat));
         }
 
-        converterExecutor.invokeAll(tasks); // make sure all files are converted
+        if (!tasks.isEmpty() && AsyncResponder.isSupported(request)) {
+            convertAsync(tasks, sourceUrls, outputFormat, batchSignature, request);
+            return;
+        }
+
+        List<Future<Object>> conversions = new ArrayList<Future<Object>>(tasks.size());
+        for (Callable<Object> task : tasks) {
+            conversions.add(priorityScheduler.submit(Priority.BATCH, task));
+        }
+        for (Future<Object> conversion : conversions) {
+            conversion.get(); // make sure all files are converted
+        }
+
+        packBatch(sourceUrls, outputFormat, batchSignature, response);
+    }
+
+    /**
+     * Runs conversions of the batch and packs the batch when the last conversion is completed. Request thread is
+     * released while conversions run.
+     */
+    private void convertAsync(List<Callable<Object>> tasks, final String[] sourceUrls, final String outputFormat,
+                              final String batchSignature, HttpServletRequest request) {
+        final AsyncResponder.ErrorHandler errorHandler = new AsyncResponder.ErrorHandler() {
+            @Override
+            public void handleError(Exception e, HttpServletResponse response) {
+                if (e instanceof RejectedExecutionException) {
+                    handleOverload((RejectedExecutionException) e, response);
+                } else {
+                    handleException(e, response);
+                }
+            }
+        };
+        final AsyncResponder responder = new AsyncResponder(request, maxAsyncWaitSeconds, new AsyncResponder.ResponseTask() {
+            @Override
+            public void execute(HttpServletResponse response) throws Exception {
+                // conversions go on, packed batch is found by the next request
+                response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+                response.setHeader("Retry-After", Integer.toString(maxAsyncWaitSeconds / 10));
+                response.setContentType("text/plain");
+                response.getWriter().println("Batch conversion is in progress. Please try later.");
+            }
+        }, errorHandler);
+
+        final AtomicInteger remaining = new AtomicInteger(tasks.size());
+        for (Callable<Object> task : tasks) {
+            FutureTask<Object> conversion = new FutureTask<Object>(task) {
+                @Override
+                protected void done() {
+                    if (remaining.decrementAndGet() > 0) {
+                        return;
+                    }
+                    // the last conversion of the batch packs it
+                    responder.complete(new AsyncResponder.ResponseTask() {
+                        @Override
+                        public void execute(HttpServletResponse response) throws Exception {
+                            packBatch(sourceUrls, outputFormat, batchSignature, response);
+                        }
+                    }, errorHandler);
+                }
+            };
+            try {
+                priorityScheduler.execute(Priority.BATCH, conversion);
+            } catch (final RejectedExecutionException e) {
+                // already queued conversions go on, the batch is packed by next request
+                responder.complete(new AsyncResponder.ResponseTask() {
+                    @Override
+                    public void execute(HttpServletResponse response) throws Exception {
+                        throw e;
+                    }
+                }, errorHandler);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends STORED ZIP entries in order of conversion completion, so the client gets the first book as soon as it
+     * is ready. Failed book is sent as error entry. Batch file is written along and cached if all books are packed.
+     */
+    private void streamBatch(String[] sourceUrls, Map<String, BookFile> convertedBooks, List<String> pendingUrls,
+                             final String outputFormat, final String batchSignature,
+                             HttpServletRequest request, HttpServletResponse response) throws Exception {
+        response.setContentType("application/zip");
+        response.setHeader("Content-Disposition", "attachment; filename=" + batchSignature + ".zip");
+        File batchFile = File.createTempFile("b_" + batchSignature, ".zip");
+        final BatchZipStream zipStream = new BatchZipStream(response.getOutputStream(), batchFile, sourceUrls.length);
+
+        final AsyncResponder.ResponseTask finishTask = new AsyncResponder.ResponseTask() {
+            @Override
+            public void execute(HttpServletResponse response) throws Exception {
+                finishStream(zipStream, batchSignature, outputFormat);
+            }
+        };
+        final AsyncResponder.ErrorHandler errorHandler = new AsyncResponder.ErrorHandler() {
+            @Override
+            public void handleError(Exception e, HttpServletResponse response) {
+                logger.error("Streamed batch " + batchSignature + " failed: " + e.getMessage(), e);
+            }
+        };
+        // timed out stream gets ZIP directory with books added so far
+        final AsyncResponder responder = !pendingUrls.isEmpty() && AsyncResponder.isSupported(request)
+                ? new AsyncResponder(request, maxAsyncWaitSeconds, finishTask, errorHandler)
+                : null;
+        if (responder != null) {
+            // response stream must not be written after container ended the request
+            responder.setAbandonListener(new Runnable() {
+                @Override
+                public void run() {
+                    logger.info("Client of streamed batch " + batchSignature + " is gone, batch file is written further");
+                    zipStream.detachClient();
+                }
+            });
+        }
+
+        for (String sourceUrl : sourceUrls) {
+            BookFile book = convertedBooks.get(sourceUrl);
+            if (book != null) {
+                zipStream.addBook(book);
+            }
+        }
+
+        final AtomicInteger remaining = new AtomicInteger(pendingUrls.size());
+        for (final String sourceUrl : pendingUrls) {
+            FutureTask<Object> conversion = new FutureTask<Object>(createStreamedConversionTask(sourceUrl, outputFormat)) {
+                @Override
+                protected void done() {
+                    addToStream(zipStream, sourceUrl, outputFormat, this);
+                    if (remaining.decrementAndGet() == 0 && responder != null) {
+                        responder.complete(finishTask, errorHandler);
+                        try {
+                            // request may be completed already by client disconnect, the batch is cached anyway
+                            finishStream(zipStream, batchSignature, outputFormat);
+                        } catch (IOException e) {
+                            logger.error("Streamed batch " + batchSignature + " failed: " + e.getMessage());
+                        }
+                    }
+                }
+            };
+            try {
+                priorityScheduler.execute(Priority.BATCH, conversion);
+            } catch (RejectedExecutionException e) {
+                conversion.cancel(false); // error entry is added
+            }
+        }
+
+        if (responder == null) {
+            zipStream.await(maxAsyncWaitSeconds, TimeUnit.SECONDS);
+            finishStream(zipStream, batchSignature, outputFormat);
+        }
+    }
+
+    private void addToStream(BatchZipStream zipStream, String sourceUrl, String outputFormat, Future<Object> conversion) {
+        BookFile book = null;
+        String error;
+        try {
+            conversion.get();
+            UrlInfo urlInfo = urlDao.findUrlInfo(sourceUrl);
+            if (urlInfo != null) {
+                book = bookDao.findBookFile(urlInfo.getBookId(), outputFormat);
+                if (book != null) {
+                    bookDao.markAccessed(urlInfo.getBookId(), outputFormat, book.getFile());
+                }
+            }
+            error = "Book is not converted to " + outputFormat;
+        } catch (ExecutionException e) {
+            error = "Conversion failed: " + e.getCause().getMessage();
+        } catch (CancellationException e) {
+            error = "Conversion is cancelled, server may be overloaded. Please try later.";
+        } catch (Exception e) {
+            error = "Conversion failed: " + e.getMessage();
+        }
+        try {
+            if (book != null) {
+                zipStream.addBook(book);
+            } else {
+                zipStream.addError(getErrorEntryName(sourceUrl), sourceUrl + "\r\n" + error);
+            }
+        } catch (IOException e) {
+            logger.error("Failed to add " + sourceUrl + " to batch stream: " + e.getMessage());
+        }
+    }
+
+    private void finishStream(BatchZipStream zipStream, String batchSignature, String outputFormat) throws IOException {
+        if (zipStream.finish()) {
+            batchDao.addBatch(batchSignature, outputFormat, zipStream.getBatchFile());
+        }
+    }
 
+    private String getErrorEntryName(String sourceUrl) {
+        return sourceUrl.replaceFirst("^\\w+://", "").replaceAll("[^\\w.-]+", "_");
+    }
 
+    private void packBatch(String[] sourceUrls, String outputFormat, String batchSignature, HttpServletResponse response) throws Exception {
         File batchFile = zipFiles(sourceUrls, outputFormat, batchSignature);
 
         batchDao.addBatch(batchSignature, outputFormat, batchFile);
-        batchFilePath = batchDao.findBatchPath(batchSignature, outputFormat);
+        String batchFilePath = batchDao.findBatchPath(batchSignature, outputFormat);
         sendRedirect(response, batchFilePath);
     }
 
+    @ExceptionHandler(RejectedExecutionException.class)
+    public void handleOverload(RejectedExecutionException e, HttpServletResponse response) {
+        logger.warn("Request rejected by MassConvertController: " + e.getMessage());
+        response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+        int retryAfter = e instanceof OverloadException ? ((OverloadException) e).getRetryAfterSeconds() : OverloadException.DEFAULT_RETRY_AFTER_SECONDS;
+        response.setHeader("Retry-After", Integer.toString(retryAfter));
+        response.setContentType("text/plain");
+        try {
+            PrintWriter writer = response.getWriter();
+            writer.println(e.getMessage());
+        } catch (IOException e1) {
+            logger.error(e1);
+        }
+    }
+
+    private void handleException(Exception e, HttpServletResponse response) {
+        logger.error("Batch conversion failed: " + e.getMessage(), e);
+        response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR.value());
+        response.setContentType("text/plain");
+        try {
+            PrintWriter writer = response.getWriter();
+            writer.println("Internal server error: " + e.getMessage());
+        } catch (IOException e1) {
+            logger.error(e1);
+        }
+    }
+
 
     private void sendRedirect(HttpServletResponse response, String batchFilePath) throws IOException {
         if (!useXAccelRerirect) {
@@ -129,36 +399,56 @@ public class MassConvertController {
 
     private File zipFiles(String[] sourceUrls, String outputFormat, String batchSignature) throws IOException {
         File batchFile = File.createTempFile("b_" + batchSignature, ".zip");
-        ZipOutputStream zipOutputStream = new ZipOutputStream(new FileOutputStream(batchFile));
-        zipOutputStream.setLevel(ZipOutputStream.STORED);
+        FileOutputStream batchStream = new FileOutputStream(batchFile);
+        StoredZipWriter zipWriter = new StoredZipWriter(batchStream.getChannel());
+        Set<String> entryNames = new HashSet<String>();
 
         try {
-            byte[] buffer = new byte[8 * 1024];
+            Map<String, BookFile> books = findConvertedBooks(Arrays.asList(sourceUrls), outputFormat, true);
             for (String sourceUrl : sourceUrls) {
-                UrlInfo urlInfo = urlDao.findUrlInfo(sourceUrl);
-                if (urlInfo != null) {
-                    File book = bookDao.findBook(urlInfo.getBookId(), outputFormat);
-                    if (book != null) {
-                        ZipEntry entry = new ZipEntry(book.getName());
-                        zipOutputStream.putNextEntry(entry);
-                        FileInputStream fileInputStream = new FileInputStream(book);
-                        int read;
-                        while ((read = fileInputStream.read(buffer)) > 0) {
-                            zipOutputStream.write(buffer, 0, read);
-                        }
-                        IOUtils.closeQuietly(fileInputStream);
-                    }
+                BookFile book = books.get(sourceUrl);
+                if (book != null && entryNames.add(book.getFile().getName())) {
+                    zipWriter.addEntry(book.getFile().getName(), book.getFile(), book.getSize(), book.getCrc32());
                 }
             }
+            zipWriter.finish();
         } catch (Exception e) {
+            IOUtils.closeQuietly(batchStream);
             batchFile.delete();
             throw new IOException(e);
         } finally {
-            IOUtils.closeQuietly(zipOutputStream);
+            IOUtils.closeQuietly(batchStream);
         }
         return batchFile;
     }
 
+    /**
+     * @param packed true if found books are packed into the batch at once, so they are accessed by the user
+     * @return converted books keyed by source url, resolved by bulk lookups of urls and books
+     */
+    private Map<String, BookFile> findConvertedBooks(Collection<String> sourceUrls, String outputFormat, boolean packed) {
+        Map<String, UrlInfo> urlInfos = urlDao.findUrlInfos(sourceUrls);
+        Set<String> bookIds = new HashSet<String>();
+        for (UrlInfo urlInfo : urlInfos.values()) {
+            bookIds.add(urlInfo.getBookId());
+        }
+        Map<String, BookFile> books = bookIds.isEmpty()
+                ? Collections.<String, BookFile>emptyMap()
+                : bookDao.findBooks(bookIds, outputFormat);
+
+        Map<String, BookFile> convertedBooks = new HashMap<String, BookFile>();
+        for (Map.Entry<String, UrlInfo> urlInfo : urlInfos.entrySet()) {
+            BookFile book = books.get(urlInfo.getValue().getBookId());
+            if (book != null) {
+                convertedBooks.put(urlInfo.getKey(), book);
+                if (packed) {
+                    bookDao.markAccessed(urlInfo.getValue().getBookId(), outputFormat, book.getFile());
+                }
+            }
+        }
+        return convertedBooks;
+    }
+
     private String calculateBatchSignature(String[] sourceUrls) {
         StringBuilder buffer = new StringBuilder();
         for (String sourceUrl : sourceUrls) {
@@ -175,26 +465,39 @@ public class MassConvertController {
                         try {
                             singleConverterController.convert(sourceUrl, null, outputFormat, null, null);
                         } catch (Exception e) {
-                            e.printStackTrace();
+                            logger.error("Conversion of " + sourceUrl + " to " + outputFormat + " failed: " + e.getMessage(), e);
                         }
                     }
                 }
         );
     }
 
-    public void shutdown() {
-        converterExecutor.shutdown();
+    private Callable<Object> createStreamedConversionTask(final String sourceUrl, final String outputFormat) {
+        return new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                singleConverterController.convert(sourceUrl, null, outputFormat, null, null);
+                return null;
+            }
+        };
     }
 
     public void setStaticRedirectUrlPrefix(String staticRedirectUrlPrefix) {
         this.staticRedirectUrlPrefix = staticRedirectUrlPrefix;
     }
 
-    public void setConvertersPoolSize(int convertersPoolSize) {
-        this.convertersPoolSize = convertersPoolSize;
-    }
-
     public void setUseXAccelRerirect(Boolean useXAccelRerirect) {
         this.useXAccelRerirect = useXAccelRerirect;
     }
+
+    public void setMaxAsyncWaitSeconds(int maxAsyncWaitSeconds) {
+        this.maxAsyncWaitSeconds = maxAsyncWaitSeconds;
+    }
+
+    /**
+     * @param streamBatches stream ZIP of /batch request unless <code>stream</code> parameter says otherwise
+     */
+    public void setStreamBatches(boolean streamBatches) {
+        this.streamBatches = streamBatches;
+    }
 }
@@ -0,0 +1,38 @@
+package net.flibusta.servlet;
+
+import net.flibusta.monitor.StatisticsSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+@Controller
+public class StatisticsController {
+
+    @Autowired(required = false)
+    private List<StatisticsSource> statisticsSources = Collections.emptyList();
+
+    @RequestMapping(value = "/stats", method = RequestMethod.GET)
+    public void statistics(HttpServletResponse response) throws IOException {
+        Map<String, Object> statistics = new TreeMap<String, Object>();
+        for (StatisticsSource source : statisticsSources) {
+            source.collectStatistics(statistics);
+        }
+
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType("text/plain");
+        PrintWriter writer = response.getWriter();
+        for (Map.Entry<String, Object> entry : statistics.entrySet()) {
+            writer.println(entry.getKey() + " = " + entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package net.flibusta.util;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+public class FileChecksum {
+
+    public static long crc32(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = inputStream.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+            }
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,232 @@
+package net.flibusta.util;
+
+import net.flibusta.monitor.StatisticsSource;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Contents of frequently requested small files in direct (off-heap) buffers, bounded by total size. Least
+ * recently used files are evicted, but a new file is admitted only if it was requested more often than the files
+ * it would evict (TinyLFU), so one-off requests don't wash out hot files. Request frequencies are approximated by
+ * count-min sketch which is halved periodically, so popularity ages.
+ * <p/>
+ * Evicted buffer is freed by garbage collector, so direct memory limit of JVM should leave room above
+ * <code>maxBytes</code>.
+ */
+public class HotFileCache implements StatisticsSource {
+    Logger logger = Logger.getLogger(HotFileCache.class);
+
+    private long maxBytes = 0;
+    private int maxFileBytes = 4 * 1024 * 1024;
+
+    private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<String, ByteBuffer>(256, 0.75f, true);
+    private long usedBytes = 0;
+    private FrequencySketch sketch;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long admittedCount = 0;
+    private long rejectedCount = 0;
+    private long evictedCount = 0;
+
+    public void init() {
+        if (!isEnabled()) {
+            return;
+        }
+        // sized for entries of 256 Kb average
+        sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(1024, maxBytes / (256 * 1024))));
+        logger.info("Hot file cache of " + maxBytes / (1024 * 1024) + " Mb started");
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Returns cached content or loads the file when it is worth caching.
+     *
+     * @param key identifies content of the file, i.e. strong ETag
+     * @return read-only content of the file or null if the file should be read from disk
+     */
+    public ByteBuffer get(String key, File file) throws IOException {
+        if (!isEnabled()) {
+            return null;
+        }
+        long length = file.length();
+        synchronized (this) {
+            sketch.increment(key);
+            ByteBuffer content = entries.get(key);
+            if (content != null) {
+                hitCount++;
+                return content.duplicate();
+            }
+            missCount++;
+            if (length == 0 || length > maxFileBytes || findVictims(key, length) == null) {
+                rejectedCount++;
+                return null;
+            }
+        }
+
+        ByteBuffer content = load(file, length); // outside of lock, hits of other files are not delayed
+
+        synchronized (this) {
+            ByteBuffer cached = entries.get(key);
+            if (cached != null) { // loaded concurrently
+                return cached.duplicate();
+            }
+            List<String> victims = findVictims(key, length);
+            if (victims == null) {
+                rejectedCount++;
+                return content.duplicate();
+            }
+            for (String victim : victims) {
+                usedBytes -= entries.remove(victim).capacity();
+                evictedCount++;
+            }
+            entries.put(key, content);
+            usedBytes += length;
+            admittedCount++;
+            return content.duplicate();
+        }
+    }
+
+    /**
+     * @return least recently used entries to evict for the candidate, empty if it fits, null if the candidate is
+     *         not requested more often than any of them
+     */
+    private List<String> findVictims(String key, long length) {
+        List<String> victims = new ArrayList<String>();
+        long freeBytes = maxBytes - usedBytes;
+        if (freeBytes >= length) {
+            return victims;
+        }
+        int candidateFrequency = sketch.frequency(key);
+        Iterator<Map.Entry<String, ByteBuffer>> iterator = entries.entrySet().iterator();
+        while (freeBytes < length && iterator.hasNext()) {
+            Map.Entry<String, ByteBuffer> entry = iterator.next();
+            if (sketch.frequency(entry.getKey()) >= candidateFrequency) {
+                return null;
+            }
+            victims.add(entry.getKey());
+            freeBytes += entry.getValue().capacity();
+        }
+        return freeBytes >= length ? victims : null;
+    }
+
+    private ByteBuffer load(File file, long length) throws IOException {
+        ByteBuffer content = ByteBuffer.allocateDirect((int) length);
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            while (content.hasRemaining()) {
+                if (channel.read(content) < 0) {
+                    throw new IOException("File is truncated while cached: " + file);
+                }
+            }
+        } finally {
+            channel.close();
+        }
+        content.flip();
+        return content.asReadOnlyBuffer();
+    }
+
+    @Override
+    public synchronized void collectStatistics(Map<String, Object> statistics) {
+        if (!isEnabled()) {
+            return;
+        }
+        long requests = hitCount + missCount;
+        statistics.put("hotCache.entries", entries.size());
+        statistics.put("hotCache.bytes", usedBytes);
+        statistics.put("hotCache.maxBytes", maxBytes);
+        statistics.put("hotCache.hits", hitCount);
+        statistics.put("hotCache.misses", missCount);
+        statistics.put("hotCache.hitRatio", requests > 0 ? (double) hitCount / requests : 0.0);
+        statistics.put("hotCache.admitted", admittedCount);
+        statistics.put("hotCache.rejected", rejectedCount);
+        statistics.put("hotCache.evicted", evictedCount);
+    }
+
+    /**
+     * Count-min sketch of 4 rows with counters saturated at 15. All counters are halved after
+     * <code>10 * width</code> increments.
+     */
+    static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+        private final byte[][] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions = 0;
+
+        FrequencySketch(int expectedEntries) {
+            int width = Integer.highestOneBit(Math.max(16, expectedEntries - 1)) << 1;
+            counters = new byte[DEPTH][width];
+            mask = width - 1;
+            sampleSize = 10 * width;
+        }
+
+        void increment(String key) {
+            int hash = key.hashCode();
+            boolean added = false;
+            for (int i = 0; i < DEPTH; i++) {
+                int index = index(hash, i);
+                if (counters[i][index] < MAX_COUNT) {
+                    counters[i][index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(String key) {
+            int hash = key.hashCode();
+            int frequency = MAX_COUNT;
+            for (int i = 0; i < DEPTH; i++) {
+                frequency = Math.min(frequency, counters[i][index(hash, i)]);
+            }
+            return frequency;
+        }
+
+        private int index(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * SEEDS[row];
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        private void reset() {
+            for (byte[] row : counters) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = (byte) (row[i] >> 1);
+                }
+            }
+            additions /= 2;
+        }
+    }
+
+    /**
+     * @param maxBytes total size of cached files, 0 - cache is disabled
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param maxFileBytes larger files are never cached
+     */
+    public void setMaxFileBytes(int maxFileBytes) {
+        this.maxFileBytes = maxFileBytes;
+    }
+}
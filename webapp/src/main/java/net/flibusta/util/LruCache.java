@@ -0,0 +1,121 @@
+package net.flibusta.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded map which evicts least recently used entries. Map is split into independently locked segments, so
+ * concurrent readers rarely wait for each other.
+ * <p/>
+ * Value loaded from storage may be stale if the key was invalidated while loading. Loader takes
+ * {@link #getInvalidationCount()} before loading and puts value by {@link #putIfNotInvalidated} to avoid caching
+ * stale value.
+ */
+public class LruCache<K, V> {
+    private final Segment<K, V>[] segments;
+    private final AtomicLong invalidationCount = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    public LruCache(int maxSize, int concurrencyLevel) {
+        int segmentCount = 1;
+        while (segmentCount < concurrencyLevel) {
+            segmentCount <<= 1;
+        }
+        segments = new Segment[segmentCount];
+        int segmentSize = Math.max(1, maxSize / segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment<K, V>(segmentSize);
+        }
+    }
+
+    public V get(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        V value;
+        synchronized (segment) {
+            value = segment.get(key);
+        }
+        if (value == null) {
+            missCount.incrementAndGet();
+        } else {
+            hitCount.incrementAndGet();
+        }
+        return value;
+    }
+
+    public void put(K key, V value) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, value);
+        }
+    }
+
+    /**
+     * Puts value unless any key was invalidated since the invalidation count was taken
+     *
+     * @return true if value is put
+     */
+    public boolean putIfNotInvalidated(K key, V value, long invalidationCount) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            if (this.invalidationCount.get() != invalidationCount) {
+                return false;
+            }
+            segment.put(key, value);
+            return true;
+        }
+    }
+
+    public void remove(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            invalidationCount.incrementAndGet();
+            segment.remove(key);
+        }
+    }
+
+    public long getInvalidationCount() {
+        return invalidationCount.get();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[h & (segments.length - 1)];
+    }
+
+    private static class Segment<K, V> extends LinkedHashMap<K, V> {
+        private final int maxSize;
+
+        private Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package net.flibusta.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Writes ZIP of STORED (not compressed) entries. Headers are made of known size and CRC32, so file bodies are
+ * moved to the target by {@link FileChannel#transferTo} without passing through the heap. Only plain ZIP is
+ * written: up to 65535 entries and 4 GB in total.
+ */
+public class StoredZipWriter {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int VERSION = 10;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final long MAX_OFFSET = 0xFFFFFFFFL;
+    private static final int MAX_ENTRIES = 0xFFFF;
+
+    private final WritableByteChannel target;
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private long offset = 0;
+    private boolean finished = false;
+
+    public StoredZipWriter(WritableByteChannel target) {
+        this.target = target;
+    }
+
+    /**
+     * @param size  recorded size of the file
+     * @param crc32 recorded CRC32 of the file, it is computed again if negative or the file size differs
+     */
+    public void addEntry(String name, File file, long size, long crc32) throws IOException {
+        FileChannel source = new FileInputStream(file).getChannel();
+        try {
+            long actualSize = source.size();
+            if (actualSize != size || crc32 < 0) {
+                crc32 = FileChecksum.crc32(file);
+            }
+            Entry entry = startEntry(name, actualSize, crc32, file.lastModified());
+            long position = 0;
+            while (position < actualSize) {
+                long transferred = source.transferTo(position, actualSize - position, target);
+                if (transferred <= 0) {
+                    throw new IOException("File is truncated while written to ZIP: " + file);
+                }
+                position += transferred;
+                offset += transferred;
+            }
+            entries.add(entry);
+        } finally {
+            source.close();
+        }
+    }
+
+    public void addEntry(String name, byte[] content) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        Entry entry = startEntry(name, content.length, crc.getValue(), System.currentTimeMillis());
+        write(ByteBuffer.wrap(content));
+        entries.add(entry);
+    }
+
+    /**
+     * Writes central directory. Target channel is not closed.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        long directoryOffset = offset;
+        for (Entry entry : entries) {
+            ByteBuffer header = allocate(46 + entry.name.length);
+            header.putInt(CENTRAL_HEADER_SIGNATURE);
+            header.putShort((short) VERSION); // made by
+            putEntryFields(header, entry);
+            header.putShort((short) 0); // comment length
+            header.putShort((short) 0); // disk number
+            header.putShort((short) 0); // internal attributes
+            header.putInt(0); // external attributes
+            header.putInt((int) entry.offset);
+            header.put(entry.name);
+            header.flip();
+            write(header);
+        }
+        long directorySize = offset - directoryOffset;
+        checkLimits(entries.size());
+
+        ByteBuffer end = allocate(22);
+        end.putInt(END_SIGNATURE);
+        end.putShort((short) 0); // disk number
+        end.putShort((short) 0); // disk with directory
+        end.putShort((short) entries.size());
+        end.putShort((short) entries.size());
+        end.putInt((int) directorySize);
+        end.putInt((int) directoryOffset);
+        end.putShort((short) 0); // comment length
+        end.flip();
+        write(end);
+    }
+
+    public long getBytesWritten() {
+        return offset;
+    }
+
+    private Entry startEntry(String name, long size, long crc32, long time) throws IOException {
+        if (finished) {
+            throw new IOException("ZIP is finished");
+        }
+        checkLimits(entries.size() + 1);
+        if (offset + 30 + size > MAX_OFFSET) {
+            throw new IOException("ZIP size exceeds 4 GB");
+        }
+        Entry entry = new Entry(name.getBytes(UTF8), size, crc32, toDosTime(time), offset);
+        ByteBuffer header = allocate(30 + entry.name.length);
+        header.putInt(LOCAL_HEADER_SIGNATURE);
+        putEntryFields(header, entry);
+        header.put(entry.name);
+        header.flip();
+        write(header);
+        return entry;
+    }
+
+    /**
+     * Fields shared by local and central headers, from version needed to extra field length
+     */
+    private void putEntryFields(ByteBuffer header, Entry entry) {
+        header.putShort((short) VERSION);
+        header.putShort((short) FLAG_UTF8);
+        header.putShort((short) 0); // STORED
+        header.putInt((int) entry.dosTime);
+        header.putInt((int) entry.crc32);
+        header.putInt((int) entry.size); // compressed
+        header.putInt((int) entry.size);
+        header.putShort((short) entry.name.length);
+        header.putShort((short) 0); // extra field length
+    }
+
+    private void checkLimits(int entryCount) throws IOException {
+        if (entryCount > MAX_ENTRIES) {
+            throw new IOException("ZIP can't contain more than " + MAX_ENTRIES + " entries");
+        }
+        if (offset > MAX_OFFSET) {
+            throw new IOException("ZIP size exceeds 4 GB");
+        }
+    }
+
+    private ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            offset += target.write(buffer);
+        }
+    }
+
+    /**
+     * @return MS-DOS date in high and time in low 16 bits
+     */
+    private static long toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16); // 1980-01-01
+        }
+        return (year - 1980) << 25
+                | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    private static class Entry {
+        private final byte[] name;
+        private final long size;
+        private final long crc32;
+        private final long dosTime;
+        private final long offset;
+
+        private Entry(byte[] name, long size, long crc32, long dosTime, long offset) {
+            this.name = name;
+            this.size = size;
+            this.crc32 = crc32;
+            this.dosTime = dosTime;
+            this.offset = offset;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package net.flibusta.util;
+
+import org.apache.log4j.Logger;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+public class UrlUtil {
+    private static final Logger logger = Logger.getLogger(UrlUtil.class);
+
+    /**
+     * Removes query from flibusta url, so the same book has the same url
+     */
+    public static String clearFlibustaUrl(String url) {
+        if (url.toLowerCase().contains("flibusta.net")) {
+            try {
+                URI uri = new URI(url);
+                if (uri.getQuery() != null) {
+                    return new URI(uri.getScheme(), uri.getHost(), uri.getPath(), null).toString();
+                }
+            } catch (URISyntaxException e) {
+                logger.error("invalid url=" + url, e);
+            }
+        }
+        return url;
+    }
+}
@@ -11,6 +11,8 @@ create table book (
   bookid char(32),
   format varchar(32),
   file_name varchar (1024),
+  file_size bigint,
+  crc32 bigint,
   primary key (bookid, format)
 );
 
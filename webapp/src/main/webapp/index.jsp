@@ -39,6 +39,10 @@
                     cached files.<br/>
                     src - source file format. Service try to determine source file format by file name extension. This
                     parameter set source file format explicitly.<br/>
+                    async - set to true to not wait for conversion. Service responds with job id (HTTP 202) and
+                    Location of conversion result. Poll <span style="font-weight: bold;">/converter/get/status/</span>[job id]
+                    for job status or request <span style="font-weight: bold;">/converter/get/result/</span>[job id]<span
+                            style="font-weight: bold;">?wait=</span>[seconds] to be redirected to converted file when it is ready.<br/>
                 </p>
 
                 <p>
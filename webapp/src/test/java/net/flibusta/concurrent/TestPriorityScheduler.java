@@ -0,0 +1,137 @@
+package net.flibusta.concurrent;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+public class TestPriorityScheduler {
+    PriorityScheduler scheduler;
+    final List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch started = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        scheduler = new PriorityScheduler();
+        scheduler.setPoolSize(1);
+        scheduler.setAgingSeconds(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        release.countDown();
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testPriorityOrder() throws Exception {
+        scheduler.init();
+        Future<?> blocker = scheduler.submit(Priority.BATCH, new Blocker());
+        Assert.assertTrue(started.await(1, TimeUnit.SECONDS));
+        scheduler.submit(Priority.SPECULATIVE, new Recorder("speculative"));
+        scheduler.submit(Priority.BATCH, new Recorder("batch"));
+        scheduler.submit(Priority.MAIL, new Recorder("mail"));
+        Future<?> last = scheduler.submit(Priority.INTERACTIVE, new Recorder("interactive"));
+        scheduler.submit(Priority.INTERACTIVE, new Recorder("interactive2"));
+
+        release.countDown();
+        blocker.get(1, TimeUnit.SECONDS);
+        last.get(1, TimeUnit.SECONDS);
+        waitExecuted(5);
+        Assert.assertEquals("[interactive, interactive2, mail, batch, speculative]", executed.toString());
+    }
+
+    @Test
+    public void testAging() throws Exception {
+        scheduler.setAgingSeconds(1);
+        scheduler.init();
+        Future<?> blocker = scheduler.submit(Priority.INTERACTIVE, new Blocker());
+        Assert.assertTrue(started.await(1, TimeUnit.SECONDS));
+        scheduler.submit(Priority.BATCH, new Recorder("batch"));
+        Thread.sleep(2100); // batch task is promoted to interactive class
+        scheduler.submit(Priority.INTERACTIVE, new Recorder("interactive"));
+
+        release.countDown();
+        blocker.get(1, TimeUnit.SECONDS);
+        waitExecuted(2);
+        Assert.assertEquals("[batch, interactive]", executed.toString());
+    }
+
+    @Test
+    public void testClassLimits() throws Exception {
+        scheduler.setPoolSize(2);
+        scheduler.setBatchMaxRunning(1);
+        scheduler.setBatchQueueCapacity(1);
+        scheduler.init();
+        scheduler.submit(Priority.BATCH, new Blocker());
+        Assert.assertTrue(started.await(1, TimeUnit.SECONDS));
+        scheduler.submit(Priority.BATCH, new Recorder("batch"));
+        try {
+            scheduler.submit(Priority.BATCH, new Recorder("rejected"));
+            Assert.fail("Batch queue expected to be full");
+        } catch (RejectedExecutionException e) {
+            // ok
+        }
+
+        // batch can't take the second thread
+        Future<?> interactive = scheduler.submit(Priority.INTERACTIVE, new Recorder("interactive"));
+        interactive.get(1, TimeUnit.SECONDS);
+        Assert.assertEquals("[interactive]", executed.toString());
+
+        release.countDown();
+        waitExecuted(2);
+        Assert.assertEquals("[interactive, batch]", executed.toString());
+    }
+
+    @Test
+    public void testStrayInterrupt() throws Exception {
+        scheduler.init();
+        Thread.sleep(50); // let the worker block waiting for tasks
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("scheduler-0")) {
+                thread.interrupt();
+            }
+        }
+        Thread.sleep(50);
+
+        // the only worker is still serving
+        Future<?> interactive = scheduler.submit(Priority.INTERACTIVE, new Recorder("interactive"));
+        interactive.get(1, TimeUnit.SECONDS);
+        Assert.assertEquals("[interactive]", executed.toString());
+    }
+
+    private void waitExecuted(int count) throws InterruptedException {
+        for (int i = 0; i < 100 && executed.size() < count; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    private class Blocker implements Callable<Object> {
+        @Override
+        public Object call() throws Exception {
+            started.countDown();
+            release.await();
+            return null;
+        }
+    }
+
+    private class Recorder implements Callable<Object> {
+        private final String name;
+
+        private Recorder(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Object call() throws Exception {
+            executed.add(name);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package net.flibusta.concurrent;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestSingleFlight {
+    ExecutorService executorService;
+
+    @Before
+    public void setUp() throws Exception {
+        executorService = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executorService.shutdown();
+    }
+
+    @Test
+    public void testCoalesced() throws Exception {
+        final SingleFlight<String> singleFlight = new SingleFlight<String>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger executions = new AtomicInteger();
+
+        final Callable<String> task = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                executions.incrementAndGet();
+                started.countDown();
+                release.await();
+                return "converted";
+            }
+        };
+
+        Future<String> leader = executorService.submit(new Caller(singleFlight, "1", task));
+        Assert.assertTrue(started.await(1, TimeUnit.SECONDS));
+        Future<String> follower = executorService.submit(new Caller(singleFlight, "1", task));
+
+        try {
+            follower.get(100, TimeUnit.MILLISECONDS);
+            Assert.fail("Follower expected to wait for leader");
+        } catch (TimeoutException e) {
+            // ok
+        }
+        release.countDown();
+
+        Assert.assertEquals("converted", leader.get(1, TimeUnit.SECONDS));
+        Assert.assertEquals("converted", follower.get(1, TimeUnit.SECONDS));
+        Assert.assertEquals(1, executions.get());
+        Assert.assertEquals(1, singleFlight.getCoalescedCount());
+        Assert.assertEquals(0, singleFlight.getInFlightCount());
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        SingleFlight<String> singleFlight = new SingleFlight<String>();
+        try {
+            singleFlight.execute("1", new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    throw new IllegalStateException("failed");
+                }
+            });
+            Assert.fail("Exception expected");
+        } catch (IllegalStateException e) {
+            // ok
+        }
+        Assert.assertFalse(singleFlight.isInFlight("1"));
+    }
+
+    @Test
+    public void testCancelledWhenNobodyWaits() throws Exception {
+        final SingleFlight<String> singleFlight = new SingleFlight<String>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final Callable<String> task = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                started.countDown();
+                while (true) { // cooperative long step
+                    Cancellation.checkCurrent();
+                    Thread.sleep(10);
+                }
+            }
+        };
+
+        Cancellation leaderCancellation = new Cancellation();
+        Cancellation followerCancellation = new Cancellation();
+        Future<String> leader = executorService.submit(new Caller(singleFlight, "1", task, leaderCancellation));
+        Assert.assertTrue(started.await(1, TimeUnit.SECONDS));
+        Future<String> follower = executorService.submit(new Caller(singleFlight, "1", task, followerCancellation));
+        Thread.sleep(50);
+
+        // follower still waits, so the task goes on
+        leaderCancellation.cancel();
+        Thread.sleep(100);
+        Assert.assertFalse(leader.isDone());
+        Assert.assertTrue(singleFlight.isInFlight("1"));
+
+        followerCancellation.cancel();
+        assertCancelled(follower);
+        assertCancelled(leader);
+        Assert.assertEquals(1, singleFlight.getAbandonedCount());
+        Assert.assertFalse(singleFlight.isInFlight("1"));
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        final SingleFlight<String> singleFlight = new SingleFlight<String>();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<String> task = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                release.await();
+                return "converted";
+            }
+        };
+
+        Future<String> leader = executorService.submit(new Caller(singleFlight, "1", task, null));
+        Thread.sleep(50);
+        Future<String> follower = executorService.submit(new Caller(singleFlight, "1", task, new Cancellation(100)));
+
+        // follower stops waiting at deadline, uncancellable leader completes the task
+        assertCancelled(follower);
+        Assert.assertFalse(leader.isDone());
+        release.countDown();
+        Assert.assertEquals("converted", leader.get(1, TimeUnit.SECONDS));
+    }
+
+    private void assertCancelled(Future<String> caller) throws Exception {
+        try {
+            caller.get(1, TimeUnit.SECONDS);
+            Assert.fail("Cancellation expected");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof CancellationException);
+        }
+    }
+
+    private static class Caller implements Callable<String> {
+        private final SingleFlight<String> singleFlight;
+        private final String key;
+        private final Callable<String> task;
+        private final Cancellation cancellation;
+
+        private Caller(SingleFlight<String> singleFlight, String key, Callable<String> task) {
+            this(singleFlight, key, task, null);
+        }
+
+        private Caller(SingleFlight<String> singleFlight, String key, Callable<String> task, Cancellation cancellation) {
+            this.singleFlight = singleFlight;
+            this.key = key;
+            this.task = task;
+            this.cancellation = cancellation;
+        }
+
+        @Override
+        public String call() throws Exception {
+            Cancellation previous = Cancellation.attach(cancellation);
+            try {
+                return singleFlight.execute(key, task);
+            } finally {
+                Cancellation.restore(previous);
+            }
+        }
+    }
+}
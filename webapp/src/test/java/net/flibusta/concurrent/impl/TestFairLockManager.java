@@ -0,0 +1,124 @@
+package net.flibusta.concurrent.impl;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+
+public class TestFairLockManager {
+    ExecutorService executorService;
+
+    @Before
+    public void setUp() throws Exception {
+        executorService = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executorService.shutdown();
+    }
+
+    @Test
+    public void testSimple() throws InterruptedException {
+        FairLockManager lockManager = new FairLockManager();
+        lockManager.lock("1");
+        lockManager.unlock("1");
+        lockManager.unlock("1");
+        lockManager.unlock("2");
+        Assert.assertEquals(0, lockManager.getLockCount());
+    }
+
+    @Test
+    public void testTryLock() throws InterruptedException {
+        FairLockManager lockManager = new FairLockManager();
+        Assert.assertTrue(lockManager.tryLock("1", 10, TimeUnit.MILLISECONDS));
+        Assert.assertFalse(lockManager.tryLock("1", 10, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(lockManager.tryLock("2", 10, TimeUnit.MILLISECONDS));
+        lockManager.unlock("1");
+        lockManager.unlock("2");
+        Assert.assertEquals(0, lockManager.getLockCount());
+
+        Map<String, Object> statistics = new HashMap<String, Object>();
+        lockManager.collectStatistics(statistics);
+        Assert.assertEquals(1L, statistics.get("locks.book.timeouts"));
+    }
+
+    @Test
+    public void testLocked() throws Exception {
+        final FairLockManager lockManager = new FairLockManager();
+        lockManager.lock("http://flibusta.net/b/1");
+
+        Future<?> future = executorService.submit(new Locker(lockManager, "http://flibusta.net/b/1"));
+        try {
+            future.get(100, TimeUnit.MILLISECONDS);
+            Assert.fail("Object expected to be locked by another thread");
+        } catch (TimeoutException e) {
+            // ok
+        }
+
+        lockManager.unlock("http://flibusta.net/b/1");
+        future.get(1, TimeUnit.SECONDS);
+        Assert.assertEquals(1, lockManager.getLockCount());
+        lockManager.unlock("http://flibusta.net/b/1");
+        Assert.assertEquals(0, lockManager.getLockCount());
+
+        Map<String, Object> statistics = new HashMap<String, Object>();
+        lockManager.collectStatistics(statistics);
+        Assert.assertEquals(1L, statistics.get("locks.url.contended"));
+        Assert.assertEquals(0, statistics.get("locks.url.queue"));
+    }
+
+    @Test
+    public void testMutualExclusion() throws Exception {
+        final FairLockManager lockManager = new FairLockManager();
+        final int[] counter = new int[1];
+        Callable<Object> task = new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                for (int i = 0; i < 1000; i++) {
+                    lockManager.lock("1");
+                    try {
+                        counter[0]++;
+                    } finally {
+                        lockManager.unlock("1");
+                    }
+                }
+                return null;
+            }
+        };
+        Future<?>[] futures = new Future<?>[8];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = executorService.submit(task);
+        }
+        for (Future<?> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        lockManager.lock("1");
+        Assert.assertEquals(8000, counter[0]);
+        lockManager.unlock("1");
+        Assert.assertEquals(0, lockManager.getLockCount());
+    }
+
+    private static class Locker implements Runnable {
+        private final FairLockManager lockManager;
+        private final String id;
+
+        public Locker(FairLockManager lockManager, String id) {
+            this.lockManager = lockManager;
+            this.id = id;
+        }
+
+        @Override
+        public void run() {
+            try {
+                lockManager.lock(id);
+            } catch (InterruptedException e) {
+                throw new RuntimeException();
+            }
+        }
+    }
+}
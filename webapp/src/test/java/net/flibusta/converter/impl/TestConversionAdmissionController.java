@@ -0,0 +1,122 @@
+package net.flibusta.converter.impl;
+
+import net.flibusta.concurrent.OverloadException;
+import net.flibusta.converter.ConversionException;
+import net.flibusta.converter.ConversionService;
+import net.flibusta.converter.ConversionServiceFactory;
+import net.flibusta.persistence.dao.BookDao;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.mock;
+
+public class TestConversionAdmissionController {
+    ExecutorService executorService;
+
+    @Before
+    public void setUp() throws Exception {
+        executorService = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void testQueueOverflow() throws Exception {
+        final ConversionAdmissionController controller = createController(1, 1, 0);
+        controller.acquire(10);
+        Assert.assertTrue(controller.isAdmitted());
+        try {
+            controller.acquire(10);
+            Assert.fail("Conversion expected to be rejected");
+        } catch (OverloadException e) {
+            Assert.assertEquals(5, e.getRetryAfterSeconds());
+        }
+        controller.release(10);
+        Assert.assertFalse(controller.isAdmitted());
+    }
+
+    @Test
+    public void testHeapLimit() throws Exception {
+        final ConversionAdmissionController controller = createController(10, 1, 1);
+        controller.acquire(800 * 1024);
+
+        Future<?> future = executorService.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                controller.acquire(800 * 1024);
+                controller.release(800 * 1024);
+                return null;
+            }
+        });
+        try {
+            future.get(100, TimeUnit.MILLISECONDS);
+            Assert.fail("Conversion expected to wait for heap");
+        } catch (TimeoutException e) {
+            // ok
+        }
+
+        controller.release(800 * 1024);
+        future.get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testLargeConversionRunsAlone() throws Exception {
+        ConversionAdmissionController controller = createController(10, 1, 0);
+        controller.acquire(10 * 1024 * 1024);
+        controller.release(10 * 1024 * 1024);
+    }
+
+    @Test
+    public void testIntermediateConvertedBeforeAdmission() throws Exception {
+        final ConversionAdmissionController controller = createController(1, 1, 0);
+        final AtomicInteger runningDuringEpub = new AtomicInteger(-1);
+
+        AdmissionControlledConversionService mobiService = new AdmissionControlledConversionService();
+        mobiService.setAdmissionController(controller);
+        mobiService.setBookDao(mock(BookDao.class));
+        mobiService.setIntermediateFormat("epub");
+        mobiService.setConversionServiceFactory(new ConversionServiceFactory() {
+            @Override
+            public ConversionService getConversionService(String targetFormat) {
+                return new ConversionService() {
+                    @Override
+                    public File convert(String bookId) throws ConversionException {
+                        runningDuringEpub.set(controller.getRunning());
+                        return new File(bookId + ".epub");
+                    }
+                };
+            }
+        });
+        mobiService.setConversionService(new ConversionService() {
+            @Override
+            public File convert(String bookId) throws ConversionException {
+                Assert.assertEquals(1, controller.getRunning());
+                return new File(bookId + ".mobi");
+            }
+        });
+
+        Assert.assertEquals(new File("1.mobi"), mobiService.convert("1"));
+        Assert.assertEquals(0, runningDuringEpub.get());
+        Assert.assertEquals(0, controller.getRunning());
+    }
+
+    private ConversionAdmissionController createController(int maxConcurrent, long maxHeapCostMb, int maxQueueLength) {
+        ConversionAdmissionController controller = new ConversionAdmissionController();
+        controller.setMaxConcurrent(maxConcurrent);
+        controller.setMaxHeapCostMb(maxHeapCostMb);
+        controller.setMaxQueueLength(maxQueueLength);
+        controller.setMaxQueueWaitSeconds(5);
+        controller.setRetryAfterSeconds(5);
+        controller.init();
+        return controller;
+    }
+}
@@ -0,0 +1,120 @@
+package net.flibusta.converter.impl;
+
+import net.flibusta.concurrent.Cancellation;
+import net.flibusta.concurrent.PriorityScheduler;
+import net.flibusta.converter.ConversionException;
+import net.flibusta.converter.ConversionService;
+import net.flibusta.converter.ConversionServiceFactory;
+import net.flibusta.persistence.dao.BookDao;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.Mockito.mock;
+
+public class TestIdleSpeculativeConverter {
+    ConversionAdmissionController admissionController;
+    IdleSpeculativeConverter speculativeConverter;
+    PriorityScheduler priorityScheduler;
+    final List<String> converted = new ArrayList<String>();
+    volatile boolean foregroundArrives = false;
+
+    @Before
+    public void setUp() throws Exception {
+        admissionController = new ConversionAdmissionController();
+        admissionController.setMaxConcurrent(2);
+        admissionController.init();
+
+        priorityScheduler = new PriorityScheduler();
+        priorityScheduler.setPoolSize(1);
+        priorityScheduler.init();
+
+        speculativeConverter = new IdleSpeculativeConverter();
+        speculativeConverter.setPriorityScheduler(priorityScheduler);
+        speculativeConverter.setAdmissionController(admissionController);
+        speculativeConverter.setBookDao(mock(BookDao.class));
+        speculativeConverter.setMaxLoadPerCpu(1000);
+        speculativeConverter.setIdleCheckMillis(10);
+        speculativeConverter.setConversionServiceFactory(new ConversionServiceFactory() {
+            @Override
+            public ConversionService getConversionService(final String targetFormat) {
+                return new ConversionService() {
+                    @Override
+                    public File convert(String bookId) throws ConversionException {
+                        try {
+                            admissionController.acquire(0);
+                        } catch (InterruptedException e) {
+                            throw new ConversionException("interrupted", e);
+                        }
+                        try {
+                            if (foregroundArrives) { // foreground conversion runs along with speculative one
+                                admissionController.acquire(0);
+                                try {
+                                    Cancellation.checkCurrent();
+                                } finally {
+                                    admissionController.release(0);
+                                }
+                            }
+                            converted.add(bookId + "." + targetFormat);
+                            return new File(bookId + "." + targetFormat);
+                        } catch (InterruptedException e) {
+                            throw new ConversionException("interrupted", e);
+                        } finally {
+                            admissionController.release(0);
+                        }
+                    }
+                };
+            }
+        });
+        speculativeConverter.init();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        priorityScheduler.shutdown();
+    }
+
+    @Test
+    public void testOtherFormatsConverted() throws Exception {
+        Assert.assertTrue(speculativeConverter.convert(new IdleSpeculativeConverter.Task("123", "mobi")));
+        Assert.assertEquals(1, converted.size());
+        Assert.assertEquals("123.epub", converted.get(0));
+
+        Assert.assertTrue(speculativeConverter.convert(new IdleSpeculativeConverter.Task("456", null)));
+        Assert.assertEquals(3, converted.size());
+    }
+
+    @Test
+    public void testPreemptedByForeground() throws Exception {
+        Assert.assertTrue(speculativeConverter.isIdle());
+        admissionController.acquire(0);
+        Assert.assertFalse(speculativeConverter.isIdle());
+        Assert.assertFalse(speculativeConverter.isPreempted());
+        admissionController.release(0);
+
+        // speculative conversion without admission slot, i.e. waiting for its epub step, gives way as well
+        Thread foreground = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    admissionController.acquire(0);
+                } catch (InterruptedException e) {
+                    // test fails below
+                }
+            }
+        });
+        foreground.start();
+        foreground.join();
+        Assert.assertTrue(speculativeConverter.isPreempted());
+        admissionController.release(0);
+
+        foregroundArrives = true;
+        Assert.assertFalse(speculativeConverter.convert(new IdleSpeculativeConverter.Task("123", null)));
+        Assert.assertTrue(converted.isEmpty());
+    }
+}
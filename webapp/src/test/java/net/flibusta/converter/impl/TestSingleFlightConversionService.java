@@ -0,0 +1,100 @@
+package net.flibusta.converter.impl;
+
+import net.flibusta.concurrent.SingleFlight;
+import net.flibusta.concurrent.impl.FairLockManager;
+import net.flibusta.converter.ConversionException;
+import net.flibusta.converter.ConversionService;
+import net.flibusta.persistence.dao.BookDao;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.mockito.Mockito.mock;
+
+public class TestSingleFlightConversionService {
+    ExecutorService executorService;
+    FairLockManager lockManager;
+    CountDownLatch started;
+    CountDownLatch release;
+
+    @Before
+    public void setUp() throws Exception {
+        executorService = Executors.newCachedThreadPool();
+        lockManager = new FairLockManager();
+        started = new CountDownLatch(1);
+        release = new CountDownLatch(1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        release.countDown();
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void testBookLockWaitsForConversion() throws Exception {
+        final SingleFlightConversionService service = createService("mobi");
+        Future<File> conversion = executorService.submit(new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                return service.convert("book1");
+            }
+        });
+        Assert.assertTrue(started.await(1, TimeUnit.SECONDS));
+
+        Assert.assertFalse(SingleFlightConversionService.tryLockBook(lockManager, "book1"));
+        Assert.assertTrue(SingleFlightConversionService.tryLockBook(lockManager, "book2"));
+        SingleFlightConversionService.unlockBook(lockManager, "book2");
+
+        Future<Boolean> clean = executorService.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                SingleFlightConversionService.lockBook(lockManager, "book1");
+                SingleFlightConversionService.unlockBook(lockManager, "book1");
+                return true;
+            }
+        });
+        try {
+            clean.get(100, TimeUnit.MILLISECONDS);
+            Assert.fail("Book lock expected to wait for conversion");
+        } catch (TimeoutException e) {
+            // ok
+        }
+
+        release.countDown();
+        Assert.assertNotNull(conversion.get(1, TimeUnit.SECONDS));
+        Assert.assertTrue(clean.get(1, TimeUnit.SECONDS));
+        Assert.assertEquals(0, lockManager.getLockCount());
+    }
+
+    private SingleFlightConversionService createService(String format) {
+        SingleFlightConversionService service = new SingleFlightConversionService();
+        service.setFormat(format);
+        service.setBookDao(mock(BookDao.class));
+        service.setLockManager(lockManager);
+        service.setSingleFlight(new SingleFlight<File>());
+        service.setConversionService(new ConversionService() {
+            @Override
+            public File convert(String bookId) throws ConversionException {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new ConversionException("interrupted", e);
+                }
+                return new File(bookId);
+            }
+        });
+        return service;
+    }
+}
@@ -0,0 +1,117 @@
+package net.flibusta.download.impl;
+
+import net.flibusta.download.DownloadedFile;
+import net.flibusta.persistence.dao.BookDao;
+import net.flibusta.persistence.dao.BookFile;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+public class TestDownloadDeduplicator {
+    private Map<String, File> books;
+    private DownloadDeduplicator deduplicator;
+
+    @Before
+    public void setUp() throws Exception {
+        books = new HashMap<String, File>();
+        deduplicator = new DownloadDeduplicator();
+        deduplicator.setBookDao(new BookDao() {
+            @Override
+            public File findBook(String bookId, String type) {
+                return books.get(bookId + "." + type);
+            }
+
+            @Override
+            public BookFile findBookFile(String bookId, String type) {
+                return null;
+            }
+
+            @Override
+            public Map<String, BookFile> findBooks(Collection<String> bookIds, String type) {
+                return null;
+            }
+
+            @Override
+            public String findBookPath(String bookId, String type) {
+                return null;
+            }
+
+            @Override
+            public void markAccessed(String bookId, String type, File file) {
+            }
+
+            @Override
+            public File addBook(String bookId, String sourceFormat, File sourceFile) {
+                return null;
+            }
+
+            @Override
+            public void deleteBook(String bookId) {
+            }
+
+            @Override
+            public void deleteBook(String bookId, String format) {
+            }
+        });
+        deduplicator.setMaxEntries(1);
+        deduplicator.init();
+    }
+
+    @Test
+    public void testFingerprint() throws Exception {
+        byte[] content = "<?xml version=\"1.0\"?><book/>".getBytes("UTF-8");
+        String bookId = DigestUtils.md5Hex(content);
+        String contentMd5 = new String(Base64.encodeBase64(DigestUtils.md5(content)));
+        String fingerprint = deduplicator.getFingerprint(1000, content, 10);
+        deduplicator.register(fingerprint, null, new DownloadedFile(new File("a.fb2"), bookId, "fb2", 1000));
+        Assert.assertNull("book is not stored", deduplicator.findByFingerprint(fingerprint, contentMd5, 1000));
+
+        books.put(bookId + ".fb2", new File("a.fb2"));
+        DownloadedFile storedFile = deduplicator.findByFingerprint(fingerprint, contentMd5, 1000);
+        Assert.assertNotNull(storedFile);
+        Assert.assertTrue(storedFile.isAlreadyStored());
+        Assert.assertEquals(bookId, storedFile.getMd5());
+        Assert.assertEquals("fb2", storedFile.getFormat());
+
+        Assert.assertNull("different length", deduplicator.findByFingerprint(deduplicator.getFingerprint(1001, content, 10), contentMd5, 1001));
+
+        deduplicator.register("other", null, new DownloadedFile(null, "other", "fb2", 10));
+        Assert.assertNull("evicted", deduplicator.findByFingerprint(fingerprint, contentMd5, 1000));
+    }
+
+    @Test
+    public void testFingerprintNotConfirmed() throws Exception {
+        byte[] content = "<?xml version=\"1.0\"?><book/>".getBytes("UTF-8");
+        String fingerprint = deduplicator.getFingerprint(1000, content, 10);
+        deduplicator.register(fingerprint, null, new DownloadedFile(new File("a.fb2"), "bookid", "fb2", 1000));
+        books.put("bookid.fb2", new File("a.fb2"));
+
+        Assert.assertNull("no Content-MD5", deduplicator.findByFingerprint(fingerprint, null, 1000));
+        String otherMd5 = new String(Base64.encodeBase64(DigestUtils.md5("other book".getBytes("UTF-8"))));
+        Assert.assertNull("same prefix of other book", deduplicator.findByFingerprint(fingerprint, otherMd5, 1000));
+
+        // zipped response is confirmed by Content-MD5 of the response it was registered from
+        deduplicator.register(fingerprint, otherMd5, new DownloadedFile(new File("a.fb2"), "bookid", "fb2", 1000));
+        Assert.assertNotNull(deduplicator.findByFingerprint(fingerprint, otherMd5, 1000));
+    }
+
+    @Test
+    public void testContentMd5() throws Exception {
+        byte[] content = "content".getBytes("UTF-8");
+        String contentMd5 = new String(Base64.encodeBase64(DigestUtils.md5(content)));
+        Assert.assertNull(deduplicator.findByContentMd5(contentMd5, content.length));
+
+        books.put(DigestUtils.md5Hex(content) + ".epub", new File("a.epub"));
+        DownloadedFile storedFile = deduplicator.findByContentMd5(contentMd5, content.length);
+        Assert.assertNotNull(storedFile);
+        Assert.assertEquals(DigestUtils.md5Hex(content), storedFile.getMd5());
+        Assert.assertEquals("epub", storedFile.getFormat());
+    }
+}
@@ -0,0 +1,82 @@
+package net.flibusta.download.impl;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+public class TestFairDownloadScheduler {
+    FairDownloadScheduler scheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        scheduler = new FairDownloadScheduler();
+        scheduler.setPoolSize(3);
+        scheduler.setMaxQueueLength(5);
+        scheduler.init();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testSlowHostDoesNotBlockOthers() throws Exception {
+        final CountDownLatch slowHost = new CountDownLatch(1);
+        Callable<String> slowTask = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                slowHost.await();
+                return "slow";
+            }
+        };
+        List<Future<String>> slowFutures = new ArrayList<Future<String>>();
+        for (int i = 0; i < 5; i++) {
+            slowFutures.add(scheduler.submit("slow.onion", 2, slowTask));
+        }
+
+        for (int i = 0; i < 10; i++) {
+            Future<String> future = scheduler.submit("flibusta.net", 2, new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return "fast";
+                }
+            });
+            Assert.assertEquals("fast", future.get(1, TimeUnit.SECONDS));
+        }
+
+        slowHost.countDown();
+        for (Future<String> future : slowFutures) {
+            Assert.assertEquals("slow", future.get(1, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testQueueLimit() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        Callable<Object> task = new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                latch.await();
+                return null;
+            }
+        };
+        scheduler.submit("host", 1, task);
+        Thread.sleep(100); // let the first task start
+        for (int i = 0; i < 5; i++) {
+            scheduler.submit("host", 1, task);
+        }
+        try {
+            scheduler.submit("host", 1, task);
+            Assert.fail("Queue limit expected");
+        } catch (RejectedExecutionException e) {
+            // ok
+        }
+        latch.countDown();
+    }
+}
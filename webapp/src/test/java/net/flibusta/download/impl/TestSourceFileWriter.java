@@ -0,0 +1,59 @@
+package net.flibusta.download.impl;
+
+import net.flibusta.download.DownloadedFile;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class TestSourceFileWriter {
+
+    private static final String FB2 = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n\n<FictionBook xmlns=\"http://www.gribuser.ru/xml/fictionbook/2.0\"></FictionBook>";
+
+    @Test
+    public void testZipped() throws Exception {
+        byte[] zip = zip(new String[]{"book.fbd", "dir/book"}, new String[]{"description", FB2});
+
+        DownloadedFile downloadedFile = SourceFileWriter.write(new ByteArrayInputStream(zip), "book.zip", true);
+        try {
+            assertEquals(DigestUtils.md5Hex(FB2), downloadedFile.getMd5());
+            assertEquals("fb2", downloadedFile.getFormat());
+            assertEquals(FB2.length(), downloadedFile.getSize());
+            assertEquals(FB2, FileUtils.readFileToString(downloadedFile.getFile()));
+        } finally {
+            downloadedFile.getFile().delete();
+        }
+    }
+
+    @Test(expected = Exception.class)
+    public void testMultifileArchive() throws Exception {
+        byte[] zip = zip(new String[]{"book1.fb2", "book2.fb2"}, new String[]{FB2, FB2});
+        SourceFileWriter.write(new ByteArrayInputStream(zip), "books.zip", true);
+    }
+
+    @Test
+    public void testDetectFormat() throws Exception {
+        assertEquals("rtf", SourceFileWriter.detectFormat("book.RTF", new byte[0]));
+        assertEquals("fb2", SourceFileWriter.detectFormat("download", ("ï»¿" + FB2).getBytes("ISO-8859-1")));
+        assertEquals("epub", SourceFileWriter.detectFormat("download", "PK\u0003\u0004mimetypeapplication/epub+zip".getBytes("ISO-8859-1")));
+        assertNull(SourceFileWriter.detectFormat("download", "<html></html>".getBytes("ISO-8859-1")));
+    }
+
+    private byte[] zip(String[] names, String[] contents) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ZipOutputStream zipStream = new ZipOutputStream(buffer);
+        for (int i = 0; i < names.length; i++) {
+            zipStream.putNextEntry(new ZipEntry(names[i]));
+            zipStream.write(contents[i].getBytes("UTF-8"));
+        }
+        zipStream.close();
+        return buffer.toByteArray();
+    }
+}
@@ -3,6 +3,8 @@ package net.flibusta.download.impl;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
+import net.flibusta.download.DownloadedFile;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -14,6 +16,7 @@ import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URL;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 public class TestSyncHttpDownloadService {
@@ -50,9 +53,13 @@ public class TestSyncHttpDownloadService {
     @Test
     public void test() throws Exception {
         SyncHttpDownloadService service = new SyncHttpDownloadService();
-        File file = service.fetch(new URL("http://127.0.0.2:8080/test/d.epub"));
+        DownloadedFile downloadedFile = service.fetch(new URL("http://127.0.0.2:8080/test/d.epub"));
+        File file = downloadedFile.getFile();
 //        File file = service.fetch(new URL("http://coronet2.iicm.tugraz.at/wbtmaster/kindle/zip_done/k/Kazenin_Tihie_konfliktyi_na_Severnom_Kavkaze__Adyigeya_Kabardino-Balkariya_Karachaevo-Cherkesiya_282954.epub"));
         assertTrue(file.exists());
+        assertEquals(DigestUtils.md5Hex("This is the response"), downloadedFile.getMd5());
+        assertEquals("epub", downloadedFile.getFormat());
+        assertEquals(20, downloadedFile.getSize());
         file.delete();
     }
 
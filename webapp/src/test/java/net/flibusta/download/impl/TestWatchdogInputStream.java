@@ -0,0 +1,59 @@
+package net.flibusta.download.impl;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class TestWatchdogInputStream {
+
+    @Test
+    public void testSizeLimit() throws Exception {
+        InputStream stream = new WatchdogInputStream(new ByteArrayInputStream(new byte[1000]), 100, 0, 1);
+        try {
+            IOUtils.copy(stream, new NullOutputStream());
+            Assert.fail("Size limit expected");
+        } catch (WatchdogInputStream.LimitExceededException e) {
+            Assert.assertTrue(e.isSizeExceeded());
+        }
+    }
+
+    @Test
+    public void testWithinLimit() throws Exception {
+        WatchdogInputStream stream = new WatchdogInputStream(new ByteArrayInputStream(new byte[1000]), 1000, 1, 1);
+        IOUtils.copy(stream, new NullOutputStream());
+        Assert.assertEquals(1000, stream.getSize());
+    }
+
+    @Test
+    public void testSlowDownload() throws Exception {
+        InputStream slowStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    throw new IOException(e.getMessage());
+                }
+                return 0;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                b[off] = (byte) read();
+                return 1;
+            }
+        };
+        InputStream stream = new WatchdogInputStream(slowStream, 0, 1000, 1);
+        try {
+            IOUtils.copy(stream, new NullOutputStream());
+            Assert.fail("Throughput limit expected");
+        } catch (WatchdogInputStream.LimitExceededException e) {
+            Assert.assertFalse(e.isSizeExceeded());
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package net.flibusta.mailer;
+
+import net.flibusta.concurrent.OverloadException;
+import net.flibusta.concurrent.Priority;
+import net.flibusta.concurrent.PriorityScheduler;
+import net.flibusta.util.TempFileUtil;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+public class TestMailSpool {
+    File dir;
+    PriorityScheduler priorityScheduler;
+    MailSpool.BookResolver failingResolver;
+    MailSpool spool;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = TempFileUtil.createTempDir();
+        priorityScheduler = mock(PriorityScheduler.class);
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                ((Runnable) invocation.getArguments()[1]).run();
+                return null;
+            }
+        }).when(priorityScheduler).execute(eq(Priority.MAIL), any(Runnable.class));
+        failingResolver = new MailSpool.BookResolver() {
+            @Override
+            public File resolveBook(MailJob job) throws Exception {
+                throw new Exception("Book download failed");
+            }
+        };
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (spool != null) {
+            spool.shutdown();
+        }
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Test
+    public void testRetriedAfterRestart() throws Exception {
+        spool = createSpool(2);
+        MailJob job = spool.submit("http://host/b/1/fb2", null, "mobi", "reader@localhost");
+        File jobFile = new File(dir, job.getId() + ".job");
+        Assert.assertTrue(jobFile.exists()); // stored before accepted
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (MailJob.load(jobFile).getAttempts() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        MailJob failedOnce = MailJob.load(jobFile);
+        Assert.assertEquals(1, failedOnce.getAttempts());
+        Assert.assertEquals("Book download failed", failedOnce.getLastError());
+        Assert.assertTrue(failedOnce.getNextAttemptTime() > System.currentTimeMillis()); // retried after delay
+        spool.shutdown();
+
+        spool = createSpool(2); // restart
+        Assert.assertEquals(1, getStatistics().get("mailSpool.queued"));
+        spool.failed(MailJob.load(jobFile), "Book download failed", false);
+        Assert.assertFalse(jobFile.exists());
+        Assert.assertTrue(new File(new File(dir, "failed"), jobFile.getName()).exists());
+        Assert.assertEquals(0, getStatistics().get("mailSpool.queued"));
+        Assert.assertEquals(1L, getStatistics().get("mailSpool.failed"));
+    }
+
+    @Test
+    public void testBookDeletedBeforeSending() throws Exception {
+        failingResolver = new MailSpool.BookResolver() {
+            @Override
+            public File resolveBook(MailJob job) throws Exception {
+                return new File(dir, "evicted.mobi");
+            }
+        };
+        spool = createSpool(2);
+        MailJob job = spool.submit("http://host/b/1/fb2", null, "mobi", "reader@localhost");
+        File jobFile = new File(dir, job.getId() + ".job");
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (MailJob.load(jobFile).getAttempts() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        MailJob failedOnce = MailJob.load(jobFile);
+        Assert.assertEquals(1, failedOnce.getAttempts());
+        Assert.assertTrue(failedOnce.getLastError().contains("evicted.mobi"));
+        Assert.assertEquals(1, getStatistics().get("mailSpool.queued"));
+    }
+
+    @Test(expected = OverloadException.class)
+    public void testFullSpoolRejects() throws Exception {
+        spool = createSpool(5);
+        spool.setMaxQueued(1);
+        spool.submit("http://host/b/1/fb2", null, "mobi", "reader@localhost");
+        spool.submit("http://host/b/2/fb2", null, "mobi", "reader@localhost");
+    }
+
+    private MailSpool createSpool(int maxAttempts) throws Exception {
+        MailSpool mailSpool = new MailSpool();
+        mailSpool.setSpoolPath(dir.getPath());
+        mailSpool.setPriorityScheduler(priorityScheduler);
+        mailSpool.setBookResolver(failingResolver);
+        mailSpool.setMailSessionProperties(new Properties());
+        mailSpool.setFromAddress("noreply@localhost");
+        mailSpool.setMaxAttempts(maxAttempts);
+        mailSpool.setRetryDelaySeconds(3600);
+        mailSpool.init();
+        return mailSpool;
+    }
+
+    private Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new TreeMap<String, Object>();
+        spool.collectStatistics(statistics);
+        return statistics;
+    }
+}
@@ -0,0 +1,85 @@
+package net.flibusta.persistence.dao.impl;
+
+import net.flibusta.persistence.dao.BookDao;
+import net.flibusta.persistence.dao.BookFile;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TestCachingBookDao {
+    BookDao bookDao;
+    CachingBookDao cachingBookDao;
+
+    @Before
+    public void setUp() throws Exception {
+        bookDao = mock(BookDao.class);
+        cachingBookDao = new CachingBookDao();
+        cachingBookDao.setBookDao(bookDao);
+        cachingBookDao.init();
+    }
+
+    @Test
+    public void testFindBookCached() throws Exception {
+        File file = new File("book.epub");
+        when(bookDao.findBook("123", "epub")).thenReturn(file);
+
+        Assert.assertSame(file, cachingBookDao.findBook("123", "epub"));
+        Assert.assertSame(file, cachingBookDao.findBook("123", "epub"));
+        Assert.assertNull(cachingBookDao.findBook("123", "mobi"));
+        Assert.assertNull(cachingBookDao.findBook("123", "mobi"));
+
+        verify(bookDao, times(1)).findBook("123", "epub");
+        verify(bookDao, times(1)).findBook("123", "mobi");
+    }
+
+    @Test
+    public void testInvalidation() throws Exception {
+        File mobi = new File("book.mobi");
+        Assert.assertNull(cachingBookDao.findBook("123", "mobi"));
+
+        cachingBookDao.addBook("123", "mobi", mobi);
+        when(bookDao.findBook("123", "mobi")).thenReturn(mobi);
+        Assert.assertSame(mobi, cachingBookDao.findBook("123", "mobi"));
+
+        cachingBookDao.deleteBook("123");
+        when(bookDao.findBook("123", "mobi")).thenReturn(null);
+        Assert.assertNull(cachingBookDao.findBook("123", "mobi"));
+
+        verify(bookDao, times(3)).findBook("123", "mobi");
+    }
+
+    @Test
+    public void testFindBooksLoadsMissedOnly() throws Exception {
+        BookFile epub = new BookFile(new File("book.epub"), 10, 20);
+        when(bookDao.findBooks(Arrays.asList("123", "456"), "epub")).thenReturn(Collections.singletonMap("123", epub));
+        Map<String, BookFile> books = cachingBookDao.findBooks(Arrays.asList("123", "456"), "epub");
+        Assert.assertEquals(Collections.singletonMap("123", epub), books);
+
+        when(bookDao.findBooks(Arrays.asList("789"), "epub")).thenReturn(Collections.<String, BookFile>emptyMap());
+        books = cachingBookDao.findBooks(Arrays.asList("123", "456", "789"), "epub");
+        Assert.assertEquals(Collections.singletonMap("123", epub), books);
+        Assert.assertSame(epub, cachingBookDao.findBookFile("123", "epub"));
+
+        verify(bookDao, times(1)).findBooks(Arrays.asList("789"), "epub");
+        verify(bookDao, never()).findBookFile("123", "epub");
+    }
+
+    @Test
+    public void testRevalidation() throws Exception {
+        cachingBookDao.setRevalidateSeconds(0);
+        cachingBookDao.findBookPath("123", "epub");
+        cachingBookDao.findBookPath("123", "epub");
+        verify(bookDao, times(2)).findBookPath("123", "epub");
+    }
+}
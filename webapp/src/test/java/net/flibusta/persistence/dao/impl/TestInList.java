@@ -0,0 +1,31 @@
+package net.flibusta.persistence.dao.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestInList {
+
+    @Test
+    public void testChunksPadded() throws Exception {
+        Assert.assertEquals(Arrays.asList(Arrays.asList("a")), InList.chunks(Arrays.asList("a")));
+        Assert.assertEquals(Arrays.asList(Arrays.asList("a", "b", "b", "b", "b", "b", "b", "b")),
+                InList.chunks(Arrays.asList("a", "b")));
+
+        List<Integer> values = new ArrayList<Integer>();
+        for (int i = 0; i < 300; i++) {
+            values.add(i);
+        }
+        List<List<Integer>> chunks = InList.chunks(values);
+        Assert.assertEquals(2, chunks.size());
+        Assert.assertEquals(values.subList(0, 256), chunks.get(0));
+        Assert.assertEquals(256, chunks.get(1).size()); // 44 values padded to the largest shape
+        Assert.assertEquals(values.subList(256, 300), chunks.get(1).subList(0, 44));
+        Assert.assertEquals(Integer.valueOf(299), chunks.get(1).get(255));
+
+        Assert.assertTrue(InList.chunks(new ArrayList<Integer>()).isEmpty());
+    }
+}
@@ -0,0 +1,138 @@
+package net.flibusta.persistence.dao.impl;
+
+import net.flibusta.concurrent.impl.FairLockManager;
+import net.flibusta.persistence.dao.BookFile;
+import net.flibusta.util.FileChecksum;
+import net.flibusta.util.TempFileUtil;
+import org.apache.commons.io.FileUtils;
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.File;
+import java.sql.SQLException;
+
+public class TestShardedStorageMigrator {
+    static final String BOOK_ID = "0123456789abcdef0123456789abcdef";
+    static final String OTHER_BOOK_ID = "fedcba9876543210fedcba9876543210";
+
+    File dir;
+    EmbeddedDataSource dataSource;
+    JdbcTemplate jdbcTemplate;
+    FileStorage fileStorage;
+    BookDaoSql bookDao;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = TempFileUtil.createTempDir();
+        dataSource = new EmbeddedDataSource();
+        dataSource.setDatabaseName(new File(dir, "database").getPath());
+        dataSource.setCreateDatabase("create");
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("create table book (bookid char(32), format varchar(32), file_name varchar (1024), primary key (bookid, format))");
+
+        fileStorage = new FileStorage(new File(dir, "files"));
+        bookDao = new BookDaoSql();
+        bookDao.setDataSource(dataSource);
+        bookDao.setFileStorage(fileStorage);
+        bookDao.afterPropertiesSet(); // adds size and CRC32 columns
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        dataSource.setShutdownDatabase("shutdown");
+        try {
+            dataSource.getConnection();
+        } catch (SQLException e) {
+            // database shut down
+        }
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Test
+    public void testShardedLayout() throws Exception {
+        fileStorage.setLayout("sharded");
+        // the same source name doesn't collide
+        File book = bookDao.addBook(BOOK_ID, "epub", createSource("book.epub", "first"));
+        File otherBook = bookDao.addBook(OTHER_BOOK_ID, "epub", createSource("book.epub", "second"));
+
+        Assert.assertEquals(fileStorage.getFile("01/23/" + BOOK_ID + "/book.epub"), book);
+        Assert.assertEquals("first", FileUtils.readFileToString(book));
+        Assert.assertEquals("second", FileUtils.readFileToString(otherBook));
+        Assert.assertEquals("01/23/" + BOOK_ID + "/book.epub", bookDao.findBookPath(BOOK_ID, "epub"));
+        Assert.assertEquals(1, book.getParentFile().list().length); // temporary file is renamed
+
+        // formats of the book share directory, the same format stored again replaces the file
+        bookDao.addBook(BOOK_ID, "fb2", createSource("book.fb2", "fb2 content"));
+        String renamedFileName = fileStorage.storeBook(BOOK_ID, "epub", createSource("renamed.epub", "third")).getFileName();
+        Assert.assertEquals("01/23/" + BOOK_ID + "/renamed.epub", renamedFileName);
+        Assert.assertFalse(book.exists());
+        Assert.assertEquals(fileStorage.getFile("01/23/" + BOOK_ID + "/book.fb2.zip"), bookDao.findBook(BOOK_ID, "fb2"));
+        Assert.assertEquals(2, book.getParentFile().list().length);
+    }
+
+    @Test
+    public void testMigrate() throws Exception {
+        File book = bookDao.addBook(BOOK_ID, "epub", createSource("book.epub", "epub content"));
+        bookDao.addBook(BOOK_ID, "fb2", createSource("book.fb2", "fb2 content"));
+        jdbcTemplate.update("insert into book (bookid, format, file_name) values (?, ?, ?)", OTHER_BOOK_ID, "epub", "2012/01/01/missing.epub");
+        Assert.assertTrue(bookDao.findBookPath(BOOK_ID, "epub").matches("\\d{4}/\\d{2}/\\d{2}/book\\.epub"));
+
+        CachingBookDao bookCache = new CachingBookDao();
+        bookCache.setBookDao(bookDao);
+        bookCache.init();
+        Assert.assertEquals(book, bookCache.findBook(BOOK_ID, "epub"));
+
+        ShardedStorageMigrator migrator = new ShardedStorageMigrator();
+        migrator.setDataSource(dataSource);
+        migrator.setFileStorage(fileStorage);
+        migrator.setBookCache(bookCache);
+        migrator.setLockManager(new FairLockManager());
+        migrator.setPageSize(1);
+        migrator.setPauseMillis(0);
+        migrator.migrate();
+
+        Assert.assertFalse(book.exists());
+        Assert.assertEquals("01/23/" + BOOK_ID + "/book.epub", bookDao.findBookPath(BOOK_ID, "epub"));
+        Assert.assertEquals("01/23/" + BOOK_ID + "/book.fb2.zip", bookDao.findBookPath(BOOK_ID, "fb2"));
+        BookFile bookFile = bookCache.findBookFile(BOOK_ID, "epub");
+        Assert.assertEquals(fileStorage.getFile("01/23/" + BOOK_ID + "/book.epub"), bookFile.getFile());
+        Assert.assertEquals("epub content", FileUtils.readFileToString(bookFile.getFile()));
+        Assert.assertEquals(bookFile.getFile(), bookCache.findBook(BOOK_ID, "epub"));
+        Assert.assertNull(bookDao.findBook(OTHER_BOOK_ID, "epub"));
+    }
+
+    @Test
+    public void testLookupOfMovedFile() throws Exception {
+        bookDao.addBook(BOOK_ID, "epub", createSource("book.epub", "epub content"));
+        String fileName = bookDao.findBookPath(BOOK_ID, "epub");
+        fileStorage.move(fileName, fileStorage.makeShardedBookFileName(BOOK_ID, "epub", "book.epub")); // row is not updated yet
+
+        Assert.assertEquals(fileStorage.getFile("01/23/" + BOOK_ID + "/book.epub"), bookDao.findBook(BOOK_ID, "epub"));
+        Assert.assertEquals(fileName, bookDao.findBookPath(BOOK_ID, "epub"));
+    }
+
+    @Test
+    public void testDateLayoutCollision() throws Exception {
+        File book = bookDao.addBook(BOOK_ID, "fb2", createSource("book.fb2", "first"));
+        File otherBook = bookDao.addBook(OTHER_BOOK_ID, "fb2", createSource("book.fb2", "second content"));
+
+        Assert.assertFalse(book.equals(otherBook));
+        Assert.assertTrue(bookDao.findBookPath(OTHER_BOOK_ID, "fb2").matches("\\d{4}/\\d{2}/\\d{2}/book_2\\.fb2\\.zip"));
+        // size and CRC recorded while compressing belong to the stored file of the book
+        for (String bookId : new String[]{BOOK_ID, OTHER_BOOK_ID}) {
+            BookFile bookFile = bookDao.findBookFile(bookId, "fb2");
+            Assert.assertEquals(bookFile.getFile().length(), bookFile.getSize());
+            Assert.assertEquals(FileChecksum.crc32(bookFile.getFile()), bookFile.getCrc32());
+        }
+    }
+
+    private File createSource(String name, String content) throws Exception {
+        File source = new File(new File(dir, "source"), name);
+        FileUtils.writeStringToFile(source, content);
+        return source;
+    }
+}
@@ -0,0 +1,141 @@
+package net.flibusta.persistence.dao.impl;
+
+import net.flibusta.concurrent.impl.FairLockManager;
+import net.flibusta.util.TempFileUtil;
+import org.apache.commons.io.FileUtils;
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.mockito.Mockito.mock;
+
+public class TestStorageQuotaGovernor {
+    static final String BOOK_A = "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa";
+    static final String BOOK_B = "bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb";
+    static final String BOOK_C = "cccccccccccccccccccccccccccccccc";
+
+    File dir;
+    EmbeddedDataSource dataSource;
+    BookDaoSql bookDaoSql;
+    CachingBookDao bookDao;
+    StorageQuotaGovernor governor;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = TempFileUtil.createTempDir();
+        dataSource = new EmbeddedDataSource();
+        dataSource.setDatabaseName(new File(dir, "database").getPath());
+        dataSource.setCreateDatabase("create");
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("create table book (bookid char(32), format varchar(32), file_name varchar (1024), primary key (bookid, format))");
+        jdbcTemplate.execute("create table batch (batchid char(32), format varchar(32), file_name varchar (1024), primary key (batchid, format))");
+
+        FileStorage fileStorage = new FileStorage(new File(dir, "files"));
+        fileStorage.setLayout("sharded");
+        bookDaoSql = new BookDaoSql();
+        bookDaoSql.setDataSource(dataSource);
+        bookDaoSql.setFileStorage(fileStorage);
+        bookDaoSql.afterPropertiesSet();
+        bookDao = new CachingBookDao();
+        bookDao.setBookDao(bookDaoSql);
+        bookDao.init();
+
+        governor = new StorageQuotaGovernor();
+        governor.setBookDao(bookDao);
+        governor.setBookDaoTarget(bookDaoSql);
+        governor.setBatchDao(mock(BatchDaoSql.class));
+        governor.setLockManager(new FairLockManager());
+        governor.setMinIdleSeconds(0);
+        governor.setMaxBytes(Long.MAX_VALUE);
+        bookDao.setStoredBookListener(governor);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        dataSource.setShutdownDatabase("shutdown");
+        try {
+            dataSource.getConnection();
+        } catch (SQLException e) {
+            // database shut down
+        }
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Test
+    public void testDerivedEvictedFirst() throws Exception {
+        store(BOOK_C, "epub", 1000); // downloaded epub is a source
+        store(BOOK_A, "fb2", 100);
+        store(BOOK_A, "epub", 1000);
+        store(BOOK_A, "mobi", 1000);
+        store(BOOK_B, "fb2", 100);
+        store(BOOK_B, "epub", 1000);
+        governor.scan();
+        Thread.sleep(10);
+        bookDao.markAccessed(BOOK_A, "epub", bookDao.findBook(BOOK_A, "epub"));
+        bookDao.markAccessed(BOOK_A, "mobi", bookDao.findBook(BOOK_A, "mobi"));
+        Thread.sleep(10);
+        bookDao.findBook(BOOK_B, "epub"); // lookup of conversion is not an access
+
+        long used = governor.getUsedBytes();
+        governor.setMaxBytes(used - 500); // one derived file fits the quota back
+        governor.evict();
+
+        Assert.assertNull(bookDao.findBook(BOOK_B, "epub")); // least recently used derived
+        Assert.assertNotNull(bookDao.findBook(BOOK_B, "fb2"));
+        Assert.assertNotNull(bookDao.findBook(BOOK_C, "epub"));
+        Assert.assertNotNull(bookDao.findBook(BOOK_A, "epub"));
+        Assert.assertNotNull(bookDao.findBook(BOOK_A, "mobi"));
+        Assert.assertEquals(used - 1000, governor.getUsedBytes());
+
+        store(BOOK_B, "epub", 1000); // converted again
+        Map<String, Object> statistics = new TreeMap<String, Object>();
+        governor.collectStatistics(statistics);
+        Assert.assertEquals(1L, statistics.get("storageQuota.evicted"));
+        Assert.assertEquals(1000L, statistics.get("storageQuota.reclaimedBytes"));
+        Assert.assertEquals(1L, statistics.get("storageQuota.rebuildMisses"));
+    }
+
+    @Test
+    public void testLockedBookSkipped() throws Exception {
+        store(BOOK_A, "fb2", 100);
+        store(BOOK_A, "epub", 1000);
+        governor.scan();
+        Thread.sleep(10);
+        governor.setMaxBytes(100);
+
+        FairLockManager lockManager = new FairLockManager();
+        governor.setLockManager(lockManager);
+        lockManager.lock(BOOK_A + ".mobi"); // epub is read by mobi conversion right now
+        try {
+            governor.evict();
+        } finally {
+            lockManager.unlock(BOOK_A + ".mobi");
+        }
+        Assert.assertNotNull(bookDao.findBook(BOOK_A, "epub"));
+
+        governor.evict();
+        Assert.assertNull(bookDao.findBook(BOOK_A, "epub"));
+        Assert.assertEquals(0, lockManager.getLockCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testIndexDaosRejected() throws Exception {
+        governor.setBookDaoTarget(mock(IndexBookDao.class));
+        governor.setBatchDao(mock(IndexBatchDao.class));
+        governor.init();
+    }
+
+    private void store(String bookId, String format, int size) throws Exception {
+        File source = new File(new File(dir, "source"), bookId + "." + format);
+        FileUtils.writeStringToFile(source, String.format("%0" + size + "d", 0));
+        bookDao.addBook(bookId, format, source);
+    }
+}
@@ -0,0 +1,104 @@
+package net.flibusta.persistence.index;
+
+import net.flibusta.persistence.dao.BookDao;
+import net.flibusta.persistence.dao.impl.BookDaoSql;
+import net.flibusta.persistence.dao.impl.IndexBookDao;
+import net.flibusta.util.TempFileUtil;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.Random;
+import java.util.concurrent.*;
+
+/**
+ * Compares lookup latency and throughput of {@link BookDaoSql} and {@link IndexBookDao}.
+ * <p/>
+ * Usage: IndexBenchmark [books [lookups [threads]]]
+ */
+public class IndexBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int books = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        File dir = TempFileUtil.createTempDir();
+        EmbeddedDataSource dataSource = new EmbeddedDataSource();
+        dataSource.setDatabaseName(new File(dir, "database").getPath());
+        dataSource.setCreateDatabase("create");
+        MetadataIndex index = new MetadataIndex();
+        index.setPath(new File(dir, "metadata.log").getPath());
+        index.setSyncWrites(false);
+        try {
+            index.open();
+            JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+            jdbcTemplate.execute("create table book (bookid char(32), format varchar(32), file_name varchar (1024), primary key (bookid, format))");
+
+            String[] bookIds = new String[books];
+            for (int i = 0; i < books; i++) {
+                bookIds[i] = DigestUtils.md5Hex("book" + i);
+                String fileName = "2012/01/01/book" + i + ".epub";
+                jdbcTemplate.update("insert into book (bookid, format, file_name) values (?, ?, ?)", bookIds[i], "epub", fileName);
+                index.put(MetadataIndex.Table.BOOK, Md5Key.fromId(bookIds[i]), "epub", fileName);
+            }
+
+            BookDaoSql bookDaoSql = new BookDaoSql();
+            bookDaoSql.setDataSource(dataSource);
+            bookDaoSql.setFileStoragePath(dir.getPath());
+            IndexBookDao indexBookDao = new IndexBookDao();
+            indexBookDao.setIndex(index);
+            indexBookDao.setFileStoragePath(dir.getPath());
+
+            for (int round = 0; round < 2; round++) { // the first round warms up
+                run("derby", bookDaoSql, bookIds, lookups, threads);
+                run("index", indexBookDao, bookIds, lookups, threads);
+            }
+        } finally {
+            index.close();
+            dataSource.setShutdownDatabase("shutdown");
+            try {
+                dataSource.getConnection();
+            } catch (SQLException e) {
+                // database shut down
+            }
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    private static void run(String name, final BookDao bookDao, final String[] bookIds, final int lookups, int threads) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final int lookupsPerThread = lookups / threads;
+        long start = System.nanoTime();
+        try {
+            Future<?>[] futures = new Future[threads];
+            for (int t = 0; t < threads; t++) {
+                futures[t] = executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        Random random = new Random();
+                        for (int i = 0; i < lookupsPerThread; i++) {
+                            if (bookDao.findBookPath(bookIds[random.nextInt(bookIds.length)], "epub") == null) {
+                                throw new IllegalStateException("book not found");
+                            }
+                        }
+                        return null;
+                    }
+                });
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        long nanos = System.nanoTime() - start;
+        int total = lookupsPerThread * threads;
+        System.out.println(name + ": " + total + " lookups in " + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms, "
+                + (total * 1000000000L / nanos) + " lookups/s, avg latency "
+                + (nanos * threads / total / 1000.0) + " us");
+    }
+}
@@ -0,0 +1,143 @@
+package net.flibusta.persistence.index;
+
+import net.flibusta.util.TempFileUtil;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+public class TestMetadataIndex {
+    private static final String BOOK_ID = "0123456789abcdef0123456789abcdef";
+
+    File dir;
+    File logFile;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = TempFileUtil.createTempDir();
+        logFile = new File(dir, "metadata.log");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Test
+    public void testPutRemove() throws Exception {
+        MetadataIndex index = open();
+        Md5Key key = Md5Key.fromId(BOOK_ID);
+        index.put(MetadataIndex.Table.BOOK, key, "fb2", "a.fb2.zip");
+        index.put(MetadataIndex.Table.BOOK, key, "epub", "a.epub");
+        Assert.assertEquals("a.fb2.zip", index.get(MetadataIndex.Table.BOOK, key, "fb2"));
+        Assert.assertEquals(2, index.get(MetadataIndex.Table.BOOK, key).size());
+        Assert.assertNull(index.get(MetadataIndex.Table.BATCH, key));
+
+        index.remove(MetadataIndex.Table.BOOK, key, "epub");
+        Assert.assertNull(index.get(MetadataIndex.Table.BOOK, key, "epub"));
+        index.remove(MetadataIndex.Table.BOOK, key, null);
+        Assert.assertNull(index.get(MetadataIndex.Table.BOOK, key));
+
+        index.set(MetadataIndex.Table.URL, Md5Key.digest("http://a"), "fb2", BOOK_ID);
+        index.set(MetadataIndex.Table.URL, Md5Key.digest("http://a"), "epub", BOOK_ID);
+        Assert.assertEquals(1, index.get(MetadataIndex.Table.URL, Md5Key.digest("http://a")).size());
+        index.close();
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        MetadataIndex index = open();
+        Md5Key key = Md5Key.fromId(BOOK_ID);
+        index.put(MetadataIndex.Table.BOOK, key, "fb2", "a.fb2.zip");
+        index.put(MetadataIndex.Table.BOOK, key, "epub", "a.epub");
+        index.close();
+        long validLength = logFile.length();
+
+        // incomplete record written while crashed
+        RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+        file.seek(validLength);
+        file.writeInt(100);
+        file.writeInt(0);
+        file.write(new byte[10]);
+        file.close();
+
+        index = open();
+        Assert.assertEquals("a.epub", index.get(MetadataIndex.Table.BOOK, key, "epub"));
+        Assert.assertEquals(validLength, logFile.length());
+        index.put(MetadataIndex.Table.BOOK, key, "mobi", "a.mobi");
+        index.close();
+
+        index = open();
+        Assert.assertEquals(3, index.get(MetadataIndex.Table.BOOK, key).size());
+        index.close();
+    }
+
+    @Test
+    public void testFailedAppend() throws Exception {
+        final boolean[] failNext = {false};
+        MetadataIndex index = new MetadataIndex() {
+            @Override
+            void writeRecord(ByteBuffer record) throws IOException {
+                if (failNext[0]) {
+                    failNext[0] = false;
+                    record.limit(record.limit() / 2);
+                    super.writeRecord(record);
+                    throw new IOException("No space left on device");
+                }
+                super.writeRecord(record);
+            }
+        };
+        index.setPath(logFile.getPath());
+        index.open();
+        Md5Key key = Md5Key.fromId(BOOK_ID);
+        index.put(MetadataIndex.Table.BOOK, key, "fb2", "a.fb2.zip");
+        failNext[0] = true;
+        try {
+            index.put(MetadataIndex.Table.BOOK, key, "epub", "a.epub");
+            Assert.fail("Append expected to fail");
+        } catch (IOException e) {
+            // ok
+        }
+        Assert.assertNull(index.get(MetadataIndex.Table.BOOK, key, "epub"));
+        index.put(MetadataIndex.Table.BOOK, key, "mobi", "a.mobi");
+        index.close();
+
+        index = open();
+        Assert.assertEquals("a.fb2.zip", index.get(MetadataIndex.Table.BOOK, key, "fb2"));
+        Assert.assertEquals("a.mobi", index.get(MetadataIndex.Table.BOOK, key, "mobi"));
+        Assert.assertNull(index.get(MetadataIndex.Table.BOOK, key, "epub"));
+        index.close();
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        MetadataIndex index = open();
+        index.setMinCompactionRecords(10);
+        Md5Key key = Md5Key.fromId(BOOK_ID);
+        for (int i = 0; i < 100; i++) {
+            index.put(MetadataIndex.Table.BOOK, key, "epub", "a" + i + ".epub");
+        }
+        index.put(MetadataIndex.Table.BATCH, key, "zip", "batch.zip");
+        long length = logFile.length();
+        index.close();
+        Assert.assertTrue("log compacted", length < 30 * 50);
+
+        index = open();
+        Assert.assertEquals("a99.epub", index.get(MetadataIndex.Table.BOOK, key, "epub"));
+        Assert.assertEquals("batch.zip", index.get(MetadataIndex.Table.BATCH, key, "zip"));
+        index.close();
+    }
+
+    private MetadataIndex open() throws Exception {
+        MetadataIndex index = new MetadataIndex();
+        index.setPath(logFile.getPath());
+        index.open();
+        return index;
+    }
+}
@@ -0,0 +1,139 @@
+package net.flibusta.servlet;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TestAsyncResponder {
+
+    private static class CountingTask implements AsyncResponder.ResponseTask {
+        int count = 0;
+
+        @Override
+        public void execute(HttpServletResponse response) throws Exception {
+            count++;
+        }
+    }
+
+    private static class CountingErrorHandler implements AsyncResponder.ErrorHandler {
+        int count = 0;
+
+        @Override
+        public void handleError(Exception e, HttpServletResponse response) {
+            count++;
+        }
+    }
+
+    @Test
+    public void testResponseWrittenOnce() throws Exception {
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.startAsync()).thenReturn(asyncContext);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(asyncContext.getResponse()).thenReturn(response);
+        CountingTask timeoutTask = new CountingTask();
+        CountingErrorHandler errorHandler = new CountingErrorHandler();
+
+        AsyncResponder responder = new AsyncResponder(request, 10, timeoutTask, errorHandler);
+        verify(asyncContext).setTimeout(10000);
+        ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+        verify(asyncContext).addListener(listener.capture());
+
+        CountingTask task = new CountingTask();
+        responder.complete(task, errorHandler);
+        responder.complete(task, errorHandler);
+        listener.getValue().onTimeout(new AsyncEvent(asyncContext));
+
+        assertEquals(1, task.count);
+        assertEquals(0, timeoutTask.count);
+        assertEquals(0, errorHandler.count);
+        verify(asyncContext, times(1)).complete();
+    }
+
+    @Test
+    public void testTimeoutAndFailure() throws Exception {
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.startAsync()).thenReturn(asyncContext);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(asyncContext.getResponse()).thenReturn(response);
+        CountingTask timeoutTask = new CountingTask();
+        CountingErrorHandler errorHandler = new CountingErrorHandler();
+
+        AsyncResponder responder = new AsyncResponder(request, 10, timeoutTask, errorHandler);
+        ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+        verify(asyncContext).addListener(listener.capture());
+        listener.getValue().onTimeout(new AsyncEvent(asyncContext));
+        responder.complete(new AsyncResponder.ResponseTask() {
+            @Override
+            public void execute(HttpServletResponse response) throws Exception {
+                throw new Exception("late");
+            }
+        }, errorHandler);
+        assertEquals(1, timeoutTask.count);
+        assertEquals(0, errorHandler.count);
+
+        AsyncResponder failing = new AsyncResponder(request, 10, timeoutTask, errorHandler);
+        failing.complete(new AsyncResponder.ResponseTask() {
+            @Override
+            public void execute(HttpServletResponse response) throws Exception {
+                throw new Exception("failed");
+            }
+        }, errorHandler);
+        assertEquals(1, errorHandler.count);
+    }
+
+    @Test
+    public void testAbandoned() throws Exception {
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.startAsync()).thenReturn(asyncContext);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(asyncContext.getResponse()).thenReturn(response);
+        CountingTask timeoutTask = new CountingTask();
+        CountingErrorHandler errorHandler = new CountingErrorHandler();
+        final AtomicInteger abandoned = new AtomicInteger();
+        Runnable abandonListener = new Runnable() {
+            @Override
+            public void run() {
+                abandoned.incrementAndGet();
+            }
+        };
+
+        AsyncResponder delivered = new AsyncResponder(request, 10, timeoutTask, errorHandler);
+        delivered.setAbandonListener(abandonListener);
+        ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+        verify(asyncContext).addListener(listener.capture());
+        delivered.complete(new CountingTask(), errorHandler);
+        listener.getValue().onComplete(new AsyncEvent(asyncContext));
+        assertEquals(0, abandoned.get());
+
+        AsyncResponder recycled = new AsyncResponder(request, 10, timeoutTask, errorHandler);
+        recycled.setAbandonListener(abandonListener);
+        verify(asyncContext, times(2)).addListener(listener.capture());
+        listener.getValue().onComplete(new AsyncEvent(asyncContext));
+        assertEquals(1, abandoned.get());
+
+        doThrow(new IOException("Broken pipe")).when(response).flushBuffer();
+        AsyncResponder disconnected = new AsyncResponder(request, 10, timeoutTask, errorHandler);
+        disconnected.setAbandonListener(abandonListener);
+        verify(asyncContext, times(3)).addListener(listener.capture());
+        listener.getValue().onTimeout(new AsyncEvent(asyncContext));
+        assertEquals(1, timeoutTask.count);
+        assertEquals(2, abandoned.get());
+    }
+}
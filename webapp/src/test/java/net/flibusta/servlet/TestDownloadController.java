@@ -0,0 +1,160 @@
+package net.flibusta.servlet;
+
+import net.flibusta.persistence.dao.BookDao;
+import net.flibusta.persistence.dao.BookFile;
+import net.flibusta.util.FileChecksum;
+import net.flibusta.util.HotFileCache;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TestDownloadController {
+    DownloadController controller;
+    File book;
+    String eTag;
+    HttpServletRequest request;
+    HttpServletResponse response;
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    @Before
+    public void setUp() throws Exception {
+        book = File.createTempFile("book", ".epub");
+        FileUtils.writeStringToFile(book, "0123456789");
+        long crc32 = FileChecksum.crc32(book);
+        eTag = "\"123-" + Long.toHexString(crc32) + "\"";
+
+        BookDao bookDao = mock(BookDao.class);
+        BookFile bookFile = new BookFile(book, book.length(), crc32);
+        when(bookDao.findBookFile("123", "epub")).thenReturn(bookFile);
+        controller = new DownloadController();
+        controller.bookDao = bookDao;
+
+        request = mock(HttpServletRequest.class);
+        response = mock(HttpServletResponse.class);
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                output.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                output.write(b, off, len);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        book.delete();
+    }
+
+    @Test
+    public void testWholeFile() throws Exception {
+        download();
+        verify(response, never()).setStatus(anyInt());
+        verify(response).setHeader("ETag", eTag);
+        verify(response).setHeader("Content-Length", "10");
+        Assert.assertEquals("0123456789", output.toString("US-ASCII"));
+    }
+
+    @Test
+    public void testNotModified() throws Exception {
+        when(request.getHeader("If-None-Match")).thenReturn("\"other\", " + eTag);
+        download();
+        verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        Assert.assertEquals(0, output.size());
+    }
+
+    @Test
+    public void testModified() throws Exception {
+        when(request.getHeader("If-None-Match")).thenReturn("\"123-0\"");
+        download();
+        verify(response, never()).setStatus(anyInt());
+        Assert.assertEquals("0123456789", output.toString("US-ASCII"));
+    }
+
+    @Test
+    public void testSingleRange() throws Exception {
+        when(request.getHeader("Range")).thenReturn("bytes=2-5");
+        download();
+        verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        verify(response).setHeader("Content-Range", "bytes 2-5/10");
+        verify(response).setHeader("Content-Length", "4");
+        Assert.assertEquals("2345", output.toString("US-ASCII"));
+    }
+
+    @Test
+    public void testIfRangeMismatch() throws Exception {
+        when(request.getHeader("Range")).thenReturn("bytes=2-5");
+        when(request.getHeader("If-Range")).thenReturn("\"123-0\"");
+        download();
+        verify(response, never()).setStatus(anyInt());
+        Assert.assertEquals("0123456789", output.toString("US-ASCII"));
+    }
+
+    @Test
+    public void testMultipleRanges() throws Exception {
+        when(request.getHeader("Range")).thenReturn("bytes=0-1, -2");
+        download();
+        verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        String body = output.toString("US-ASCII");
+        Assert.assertTrue(body.contains("Content-Range: bytes 0-1/10\r\n\r\n01\r\n"));
+        Assert.assertTrue(body.contains("Content-Range: bytes 8-9/10\r\n\r\n89\r\n"));
+        Assert.assertTrue(body.endsWith("--\r\n"));
+    }
+
+    @Test
+    public void testUnsatisfiableRange() throws Exception {
+        when(request.getHeader("Range")).thenReturn("bytes=10-");
+        download();
+        verify(response).setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        verify(response).setHeader("Content-Range", "bytes */10");
+        Assert.assertEquals(0, output.size());
+    }
+
+    @Test
+    public void testSendfile() throws Exception {
+        when(request.getHeader("Range")).thenReturn("bytes=5-");
+        when(request.getAttribute(DownloadController.SENDFILE_SUPPORT_ATTRIBUTE)).thenReturn(Boolean.TRUE);
+        download();
+        verify(request).setAttribute(DownloadController.SENDFILE_START_ATTRIBUTE, 5L);
+        verify(request).setAttribute(DownloadController.SENDFILE_END_ATTRIBUTE, 10L);
+        Assert.assertEquals(0, output.size());
+    }
+
+    @Test
+    public void testHotCache() throws Exception {
+        HotFileCache hotFileCache = new HotFileCache();
+        hotFileCache.setMaxBytes(100);
+        hotFileCache.init();
+        controller.hotFileCache = hotFileCache;
+        download(); // admitted
+
+        output.reset();
+        when(request.getHeader("Range")).thenReturn("bytes=2-5");
+        when(request.getAttribute(DownloadController.SENDFILE_SUPPORT_ATTRIBUTE)).thenReturn(Boolean.TRUE);
+        download();
+        verify(request, never()).setAttribute(DownloadController.SENDFILE_FILENAME_ATTRIBUTE, book.getAbsolutePath());
+        Assert.assertEquals("2345", output.toString("US-ASCII"));
+    }
+
+    private void download() throws IOException {
+        controller.download("123", "epub", "book.epub", request, response);
+    }
+}
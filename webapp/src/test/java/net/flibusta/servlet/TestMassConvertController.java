@@ -1,23 +1,51 @@
 package net.flibusta.servlet;
 
+import net.flibusta.concurrent.PriorityScheduler;
 import net.flibusta.persistence.dao.BatchDao;
 import net.flibusta.persistence.dao.BookDao;
+import net.flibusta.persistence.dao.BookFile;
 import net.flibusta.persistence.dao.UrlDao;
 import net.flibusta.persistence.dao.UrlInfo;
+import net.flibusta.util.FileChecksum;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
 import org.junit.Test;
-import org.mockito.invocation.InvocationOnMock;
-import org.mockito.stubbing.Answer;
+import org.mockito.ArgumentCaptor;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
-
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollection;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class TestMassConvertController {
@@ -37,39 +65,31 @@ public class TestMassConvertController {
         controller.batchDao = batchDao;
 
         UrlDao urlDao = mock(UrlDao.class);
-        when(urlDao.findUrlInfo("http://flibusta.net/b/123/fb2")).thenAnswer(new Answer<UrlInfo>() {
-            @Override
-            public UrlInfo answer(InvocationOnMock invocation) throws Throwable {
-                UrlInfo info = new UrlInfo();
-                info.setBookId("123");
-                info.setSourceFormat("epub");
-                return info;
-            }
-        });
-        when(urlDao.findUrlInfo("http://flibusta.net/b/345/fb2?t=def")).thenAnswer(new Answer<UrlInfo>() {
-            @Override
-            public UrlInfo answer(InvocationOnMock invocation) throws Throwable {
-                UrlInfo info = new UrlInfo();
-                info.setBookId("345");
-                info.setSourceFormat("epub");
-                return info;
-            }
-        });
+        Map<String, UrlInfo> urlInfos = new HashMap<String, UrlInfo>();
+        urlInfos.put("http://flibusta.net/b/123/fb2?t=abc", createUrlInfo("123"));
+        urlInfos.put("http://flibusta.net/b/345/fb2?t=def", createUrlInfo("345"));
+        when(urlDao.findUrlInfos(anyCollection())).thenReturn(urlInfos);
 
         controller.urlDao = urlDao;
 
 
         BookDao bookDao = mock(BookDao.class);
-        when(bookDao.findBook("123", "epub")).thenReturn(null);
         File testFile = createTestFile("345", "epub");
-        when(bookDao.findBook("345", "epub")).thenReturn(testFile);
+        Map<String, BookFile> books = new HashMap<String, BookFile>();
+        books.put("345", new BookFile(testFile, BookFile.UNKNOWN, BookFile.UNKNOWN));
+        when(bookDao.findBooks(anyCollection(), eq("epub"))).thenReturn(books);
 
         controller.bookDao = bookDao;
 
+        PriorityScheduler priorityScheduler = new PriorityScheduler();
+        priorityScheduler.init();
+        controller.priorityScheduler = priorityScheduler;
+
+        final List<String> convertedUrls = Collections.synchronizedList(new ArrayList<String>());
         controller.singleConverterController = new SingleUrlConverter() {
             @Override
             public void convert(String sourceUrl, String sourceMd5, String outputFormat, String sourceFormat, HttpServletResponse response) throws Exception {
-
+                convertedUrls.add(sourceUrl);
             }
         };
 
@@ -234,9 +254,168 @@ public class TestMassConvertController {
             public Locale getLocale() {
                 return null;
             }
+
+            @Override
+            public int getStatus() {
+                return 0;
+            }
+
+            @Override
+            public String getHeader(String name) {
+                return null;
+            }
+
+            @Override
+            public Collection<String> getHeaders(String name) {
+                return null;
+            }
+
+            @Override
+            public Collection<String> getHeaderNames() {
+                return null;
+            }
+        });
+
+        priorityScheduler.shutdown();
+        // converted book is found by bulk lookup and not converted again
+        Assert.assertEquals(Arrays.asList("http://flibusta.net/b/123/fb2?t=abc"), convertedUrls);
+    }
+
+    private UrlInfo createUrlInfo(String bookId) {
+        UrlInfo info = new UrlInfo();
+        info.setBookId(bookId);
+        info.setSourceFormat("fb2");
+        return info;
+    }
+
+    @Test
+    public void testStreamedZip() throws Exception {
+        MassConvertController controller = new MassConvertController();
+        controller.batchDao = mock(BatchDao.class);
+
+        UrlDao urlDao = mock(UrlDao.class);
+        UrlInfo urlInfo = new UrlInfo();
+        urlInfo.setBookId("345");
+        when(urlDao.findUrlInfo("http://flibusta.net/b/345/fb2")).thenReturn(urlInfo);
+        controller.urlDao = urlDao;
+
+        BookDao bookDao = mock(BookDao.class);
+        File testFile = createTestFile("345", "epub");
+        FileUtils.writeStringToFile(testFile, "book 345");
+        BookFile bookFile = new BookFile(testFile, testFile.length(), FileChecksum.crc32(testFile));
+        when(bookDao.findBookFile("345", "epub")).thenReturn(bookFile);
+        controller.bookDao = bookDao;
+
+        PriorityScheduler priorityScheduler = new PriorityScheduler();
+        priorityScheduler.init();
+        controller.priorityScheduler = priorityScheduler;
+
+        controller.singleConverterController = new SingleUrlConverter() {
+            @Override
+            public void convert(String sourceUrl, String sourceMd5, String outputFormat, String sourceFormat, HttpServletResponse response) throws Exception {
+                if (sourceUrl.contains("123")) {
+                    throw new Exception("broken book");
+                }
+            }
+        };
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                output.write(b);
+            }
         });
 
+        try {
+            controller.convert("123_345", "http://flibusta.net/b/{0}/fb2", "epub", true, null, response);
+        } finally {
+            priorityScheduler.shutdown();
+        }
+
+        Map<String, String> entries = new HashMap<String, String>();
+        ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(output.toByteArray()));
+        ZipEntry entry;
+        while ((entry = zipInputStream.getNextEntry()) != null) {
+            Assert.assertEquals(ZipEntry.STORED, entry.getMethod());
+            entries.put(entry.getName(), IOUtils.toString(zipInputStream, "UTF-8"));
+        }
+        Assert.assertEquals(2, entries.size());
+        Assert.assertEquals("book 345", entries.get(testFile.getName()));
+        Assert.assertTrue(entries.get("flibusta.net_b_123_fb2.error.txt").contains("broken book"));
+        // batch with failed book is not cached
+        verify(controller.batchDao, never()).addBatch(anyString(), anyString(), any(File.class));
+    }
+
+    @Test
+    public void testStreamAbandoned() throws Exception {
+        MassConvertController controller = new MassConvertController();
+        controller.batchDao = mock(BatchDao.class);
 
+        UrlDao urlDao = mock(UrlDao.class);
+        UrlInfo urlInfo = new UrlInfo();
+        urlInfo.setBookId("345");
+        when(urlDao.findUrlInfo("http://flibusta.net/b/345/fb2")).thenReturn(urlInfo);
+        controller.urlDao = urlDao;
+
+        BookDao bookDao = mock(BookDao.class);
+        File testFile = createTestFile("345", "epub");
+        FileUtils.writeStringToFile(testFile, "book 345");
+        BookFile bookFile = new BookFile(testFile, testFile.length(), FileChecksum.crc32(testFile));
+        when(bookDao.findBookFile("345", "epub")).thenReturn(bookFile);
+        controller.bookDao = bookDao;
+
+        PriorityScheduler priorityScheduler = new PriorityScheduler();
+        priorityScheduler.init();
+        controller.priorityScheduler = priorityScheduler;
+
+        final CountDownLatch release = new CountDownLatch(1);
+        controller.singleConverterController = new SingleUrlConverter() {
+            @Override
+            public void convert(String sourceUrl, String sourceMd5, String outputFormat, String sourceFormat, HttpServletResponse response) throws Exception {
+                release.await();
+            }
+        };
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                output.write(b);
+            }
+        });
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.isAsyncSupported()).thenReturn(true);
+        when(request.startAsync()).thenReturn(asyncContext);
+        when(asyncContext.getResponse()).thenReturn(response);
+
+        try {
+            controller.convert("345", "http://flibusta.net/b/{0}/fb2", "epub", true, request, response);
+            ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+            verify(asyncContext).addListener(listener.capture());
+            // container ends the request while the book is converted
+            listener.getValue().onError(new AsyncEvent(asyncContext, new IOException("Broken pipe")));
+            release.countDown();
+
+            // the book goes to the batch file only
+            ArgumentCaptor<File> batchFile = ArgumentCaptor.forClass(File.class);
+            verify(controller.batchDao, timeout(1000)).addBatch(anyString(), eq("epub"), batchFile.capture());
+            Assert.assertEquals(0, output.size());
+            ZipInputStream zipInputStream = new ZipInputStream(new FileInputStream(batchFile.getValue()));
+            try {
+                Assert.assertEquals(testFile.getName(), zipInputStream.getNextEntry().getName());
+                Assert.assertEquals("book 345", IOUtils.toString(zipInputStream, "UTF-8"));
+            } finally {
+                zipInputStream.close();
+                batchFile.getValue().delete();
+            }
+        } finally {
+            release.countDown();
+            priorityScheduler.shutdown();
+        }
     }
 
     private File createTestFile(String batchId, String batchFormat) {
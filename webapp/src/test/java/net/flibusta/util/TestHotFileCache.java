@@ -0,0 +1,84 @@
+package net.flibusta.util;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+public class TestHotFileCache {
+    File dir;
+    HotFileCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = TempFileUtil.createTempDir();
+        cache = new HotFileCache();
+        cache.setMaxBytes(20);
+        cache.setMaxFileBytes(10);
+        cache.init();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testHotFileIsNotWashedOut() throws Exception {
+        File hot = createFile("hot", "0123456789");
+        File warm = createFile("warm", "abcdefghij");
+        File cold = createFile("cold", "ABCDEFGHIJ");
+
+        Assert.assertEquals("0123456789", toString(cache.get("hot", hot)));
+        cache.get("hot", hot);
+        cache.get("warm", warm);
+        Assert.assertEquals(2L, statistics().get("hotCache.admitted"));
+
+        // cache is full, cold file requested once is read from disk and does not evict hot one
+        Assert.assertNull(cache.get("cold", cold));
+        Assert.assertEquals(1L, statistics().get("hotCache.rejected"));
+
+        // requested more often than warm one, cold file replaces it
+        cache.get("cold", cold);
+        cache.get("hot", hot);
+        Assert.assertEquals("ABCDEFGHIJ", toString(cache.get("cold", cold)));
+        Map<String, Object> statistics = statistics();
+        Assert.assertEquals(3L, statistics.get("hotCache.admitted"));
+        Assert.assertEquals(1L, statistics.get("hotCache.evicted"));
+        Assert.assertEquals(20L, statistics.get("hotCache.bytes"));
+
+        Assert.assertEquals("0123456789", toString(cache.get("hot", hot)));
+        Assert.assertEquals(3L, statistics().get("hotCache.hits"));
+    }
+
+    @Test
+    public void testLargeFileIsNotCached() throws Exception {
+        File large = createFile("large", "0123456789abc");
+        Assert.assertNull(cache.get("large", large));
+        Assert.assertEquals(0L, statistics().get("hotCache.bytes"));
+    }
+
+    private File createFile(String name, String content) throws Exception {
+        File file = new File(dir, name);
+        FileUtils.writeStringToFile(file, content);
+        return file;
+    }
+
+    private String toString(ByteBuffer content) throws Exception {
+        byte[] bytes = new byte[content.remaining()];
+        content.get(bytes);
+        return new String(bytes, "US-ASCII");
+    }
+
+    private Map<String, Object> statistics() {
+        Map<String, Object> statistics = new HashMap<String, Object>();
+        cache.collectStatistics(statistics);
+        return statistics;
+    }
+}
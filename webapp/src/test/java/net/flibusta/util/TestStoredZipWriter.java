@@ -0,0 +1,87 @@
+package net.flibusta.util;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+public class TestStoredZipWriter {
+    File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = TempFileUtil.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testReadableByZipReaders() throws Exception {
+        File book = new File(dir, "book.epub");
+        FileUtils.writeStringToFile(book, "epub content");
+        File legacyBook = new File(dir, "книга.mobi");
+        FileUtils.writeStringToFile(legacyBook, "mobi content");
+
+        File zip = new File(dir, "batch.zip");
+        FileChannel channel = new FileOutputStream(zip).getChannel();
+        try {
+            StoredZipWriter writer = new StoredZipWriter(channel);
+            writer.addEntry(book.getName(), book, book.length(), FileChecksum.crc32(book));
+            writer.addEntry(legacyBook.getName(), legacyBook, -1, -1); // metadata is not recorded
+            writer.addEntry("error.txt", "failed".getBytes("UTF-8"));
+            writer.finish();
+            Assert.assertEquals(channel.size(), writer.getBytesWritten());
+        } finally {
+            channel.close();
+        }
+
+        Map<String, String> expected = new LinkedHashMap<String, String>();
+        expected.put("book.epub", "epub content");
+        expected.put("книга.mobi", "mobi content");
+        expected.put("error.txt", "failed");
+
+        // local headers and CRC
+        Map<String, String> streamed = new LinkedHashMap<String, String>();
+        ZipInputStream zipInputStream = new ZipInputStream(new FileInputStream(zip));
+        try {
+            ZipEntry entry;
+            while ((entry = zipInputStream.getNextEntry()) != null) {
+                Assert.assertEquals(ZipEntry.STORED, entry.getMethod());
+                streamed.put(entry.getName(), IOUtils.toString(zipInputStream, "UTF-8"));
+            }
+        } finally {
+            zipInputStream.close();
+        }
+        Assert.assertEquals(expected, streamed);
+
+        // central directory
+        Map<String, String> listed = new LinkedHashMap<String, String>();
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                listed.put(entry.getName(), IOUtils.toString(zipFile.getInputStream(entry), "UTF-8"));
+            }
+        } finally {
+            zipFile.close();
+        }
+        Assert.assertEquals(expected, listed);
+    }
+}